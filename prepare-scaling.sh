@@ -3,4 +3,5 @@ java -cp matsim-example-project-0.0.1-SNAPSHOT.jar org.matsim.prepare.PrepareRus
  -e /Users/janek/Documents/writing/RustQSim/data-files-nextcloud/scenarios/berlin/input/berlin-v6.0-run004/004.output_events.xml.gz\
  -o /Users/janek/Documents/writing/RustQSim/data-files-nextcloud/scenarios/berlin/input/test\
  -sss 0.25\
- -tss 0.001
\ No newline at end of file
+ -tss 0.001,0.01,0.1,0.25,0.5,1.0,2.0,5.0,10.0\
+ -wn
\ No newline at end of file
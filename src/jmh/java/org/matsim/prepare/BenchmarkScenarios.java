@@ -0,0 +1,63 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Scenarios of the benchmarks. All of them use the equil network. 'equil' uses the 100 persons of the equil scenario,
+ * 'synthetic' replaces them by car plans of {@link GenerateSyntheticPopulation}.
+ */
+class BenchmarkScenarios {
+
+    static final String EQUIL = "equil";
+    static final String SYNTHETIC = "synthetic";
+
+    static Scenario load(String population, int syntheticSize) {
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        scenario.getVehicles().addVehicleType(VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class)));
+
+        switch (population) {
+            case EQUIL -> {
+            }
+            case SYNTHETIC -> createSyntheticPopulation(scenario, syntheticSize);
+            default -> throw new IllegalArgumentException("Unknown population: " + population + ". Use " + EQUIL + " or " + SYNTHETIC);
+        }
+        return scenario;
+    }
+
+    /**
+     * @return the persons of the scenario, each with vehicles and routing modes, as routing needs them.
+     */
+    static Person[] preparedPersons(Scenario scenario) {
+        var modeVehicleTypes = UpscaleAlgorithm.createModeVehicleTypes(scenario.getConfig(), scenario);
+        var persons = scenario.getPopulation().getPersons().values().toArray(new Person[0]);
+        for (var person : persons) {
+            UpscaleAlgorithm.addModeVehicles(person, modeVehicleTypes);
+            UpscaleAlgorithm.addRoutingModeIfNecessary(person, scenario.getConfig());
+        }
+        return persons;
+    }
+
+    private static void createSyntheticPopulation(Scenario scenario, int size) {
+        var population = scenario.getPopulation();
+        for (var id : new ArrayList<>(population.getPersons().keySet())) {
+            population.removePerson(id);
+        }
+
+        var args = new GenerateSyntheticPopulation.InputArgs();
+        args.size = size;
+        new GenerateSyntheticPopulation(scenario.getNetwork(), args).generate(population);
+    }
+}
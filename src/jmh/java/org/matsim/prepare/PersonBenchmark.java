@@ -0,0 +1,81 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.vehicles.VehicleType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per person steps of {@link UpscaleAlgorithm}, which run once for every original person or clone. Each invocation
+ * processes the next person of the population.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PersonBenchmark {
+
+    @Param({BenchmarkScenarios.EQUIL, BenchmarkScenarios.SYNTHETIC})
+    public String population;
+
+    @Param({"100000"})
+    public int syntheticSize;
+
+    private Scenario scenario;
+    private Person[] persons;
+    private Map<String, VehicleType> modeVehicleTypes;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        scenario = BenchmarkScenarios.load(population, syntheticSize);
+        persons = BenchmarkScenarios.preparedPersons(scenario);
+        modeVehicleTypes = UpscaleAlgorithm.createModeVehicleTypes(scenario.getConfig(), scenario);
+    }
+
+    private Person nextPerson() {
+        var person = persons[next];
+        next = next + 1 == persons.length ? 0 : next + 1;
+        return person;
+    }
+
+    @Benchmark
+    public boolean isPtPerson() {
+        return UpscaleAlgorithm.isPtPerson(nextPerson());
+    }
+
+    @Benchmark
+    public Person clonePerson() {
+        return UpscaleAlgorithm.clonePerson(nextPerson(), 0);
+    }
+
+    // includes cloning, as the vehicles are added to fresh clones in the upscaling
+    @Benchmark
+    public Person addModeVehicles() {
+        var clone = UpscaleAlgorithm.clonePerson(nextPerson(), 0);
+        UpscaleAlgorithm.addModeVehicles(clone, modeVehicleTypes);
+        return clone;
+    }
+
+    @Benchmark
+    public Person addRoutingModeIfNecessary() {
+        var person = nextPerson();
+        UpscaleAlgorithm.addRoutingModeIfNecessary(person, scenario.getConfig());
+        return person;
+    }
+}
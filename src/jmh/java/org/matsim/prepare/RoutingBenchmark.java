@@ -0,0 +1,90 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.population.algorithms.PlanAlgorithm;
+import org.matsim.core.population.algorithms.XY2Links;
+import org.matsim.core.router.PlanRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapping and routing of a plan, which {@link UpscaleAlgorithm} does once per original person. The router uses free
+ * speed travel times, as no events are read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({BenchmarkScenarios.EQUIL, BenchmarkScenarios.SYNTHETIC})
+    public String population;
+
+    @Param({"100000"})
+    public int syntheticSize;
+
+    private Plan[] plans;
+    private XY2Links xy2Links;
+    private PlanAlgorithm linkIndex;
+    private PlanRouter router;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        var scenario = BenchmarkScenarios.load(population, syntheticSize);
+        plans = Arrays.stream(BenchmarkScenarios.preparedPersons(scenario))
+                .map(person -> person.getSelectedPlan())
+                .toArray(Plan[]::new);
+        xy2Links = new XY2Links(scenario.getNetwork(), scenario.getActivityFacilities());
+        linkIndex = LinkIndex.create(scenario.getNetwork()).xy2Links(scenario.getActivityFacilities());
+        var injector = Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
+        router = RouterPool.create(injector, null, scenario.getConfig()).get();
+
+        // the router needs the links of the activities
+        for (var plan : plans) {
+            linkIndex.run(plan);
+        }
+    }
+
+    private Plan nextPlan() {
+        var plan = plans[next];
+        next = next + 1 == plans.length ? 0 : next + 1;
+        return plan;
+    }
+
+    @Benchmark
+    public Plan xy2Links() {
+        var plan = nextPlan();
+        xy2Links.run(plan);
+        return plan;
+    }
+
+    @Benchmark
+    public Plan linkIndex() {
+        var plan = nextPlan();
+        linkIndex.run(plan);
+        return plan;
+    }
+
+    @Benchmark
+    public Plan planRouter() {
+        var plan = nextPlan();
+        router.run(plan);
+        return plan;
+    }
+}
@@ -0,0 +1,113 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of routed persons into plans xml. {@link StreamingPopulationWriter} is the MATSim writer, which
+ * {@link PopulationXmlWriter} replaces. Both write uncompressed xml, so that compression does not hide the encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterBenchmark {
+
+    @Param({BenchmarkScenarios.EQUIL, BenchmarkScenarios.SYNTHETIC})
+    public String population;
+
+    @Param({"100000"})
+    public int syntheticSize;
+
+    private final PopulationXmlEncoder encoder = new PopulationXmlEncoder();
+    private Person[] persons;
+    private Path directory;
+    private StreamingPopulationWriter streamingWriter;
+    private PopulationXmlWriter xmlWriter;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        var scenario = BenchmarkScenarios.load(population, syntheticSize);
+        persons = BenchmarkScenarios.preparedPersons(scenario);
+        var linkIndex = LinkIndex.create(scenario.getNetwork()).xy2Links(scenario.getActivityFacilities());
+        var injector = Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
+        var router = RouterPool.create(injector, null, scenario.getConfig());
+        for (var person : persons) {
+            UpscaleAlgorithm.preparePersonForSim(person, linkIndex, router);
+        }
+        directory = Files.createTempDirectory("writer-benchmark");
+    }
+
+    // the files grow with every invocation, so they are replaced after each iteration
+    @Setup(Level.Iteration)
+    public void startWriters() {
+        streamingWriter = new StreamingPopulationWriter();
+        streamingWriter.startStreaming(directory.resolve("streaming.plans.xml").toString());
+        xmlWriter = new PopulationXmlWriter();
+        xmlWriter.startStreaming(directory.resolve("xml.plans.xml").toString());
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeWriters() {
+        streamingWriter.closeStreaming();
+        xmlWriter.closeStreaming();
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+            Files.delete(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Person nextPerson() {
+        var person = persons[next];
+        next = next + 1 == persons.length ? 0 : next + 1;
+        return person;
+    }
+
+    @Benchmark
+    public int encode() {
+        encoder.reset();
+        encoder.encode(nextPerson());
+        return encoder.size();
+    }
+
+    @Benchmark
+    public void streamingPopulationWriter() {
+        streamingWriter.run(nextPerson());
+    }
+
+    @Benchmark
+    public void populationXmlWriter() {
+        xmlWriter.run(nextPerson());
+    }
+}
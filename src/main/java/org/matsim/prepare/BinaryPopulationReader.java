@@ -0,0 +1,185 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.routes.GenericRouteImpl;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+
+import static org.matsim.prepare.BinaryPopulationWriter.*;
+
+/**
+ * Reads files written by {@link BinaryPopulationWriter} and passes each person to a {@link PersonAlgorithm}.
+ */
+public class BinaryPopulationReader {
+
+    private static final Logger log = LogManager.getLogger(BinaryPopulationReader.class);
+
+    private final PopulationFactory factory;
+    private final List<List<String>> dictionaries = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+
+    public BinaryPopulationReader(PopulationFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return number of persons read
+     */
+    public long readFile(String filename, PersonAlgorithm algorithm) {
+        var start = System.nanoTime();
+        dictionaries.forEach(List::clear);
+        var persons = 0L;
+
+        try (var in = new DataInputStream(new BufferedInputStream(IOUtils.getInputStream(IOUtils.getFileUrl(filename)), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException(filename + " is not a binary population file.");
+            var version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported version " + version + " of binary population file " + filename);
+
+            while (true) {
+                var kind = in.readByte();
+                var length = in.readInt();
+                switch (kind) {
+                    case DICTIONARY -> readDictionaryEntry(in, length);
+                    case PERSON -> {
+                        algorithm.run(readPerson(in));
+                        persons++;
+                    }
+                    case END -> {
+                        var expected = in.readLong();
+                        if (expected != persons) {
+                            throw new IOException("Expected " + expected + " persons in " + filename + " but read " + persons);
+                        }
+                        log.info(String.format("Read %d persons from %s in %.1fs", persons, filename, (System.nanoTime() - start) / 1e9));
+                        return persons;
+                    }
+                    default -> throw new IOException("Unknown record " + kind + " in " + filename);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readDictionaryEntry(DataInputStream in, int length) throws IOException {
+        var dictionary = dictionaries.get(in.readByte());
+        var id = in.readInt();
+        var bytes = in.readNBytes(length - 1 - Integer.BYTES);
+        if (id != dictionary.size()) throw new IOException("Dictionary entries are out of order. Expected id " + dictionary.size() + " but got " + id);
+        dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private Person readPerson(DataInputStream in) throws IOException {
+        var person = factory.createPerson(Id.createPersonId(readString(in)));
+
+        var numberOfVehicles = in.readUnsignedShort();
+        if (numberOfVehicles > 0) {
+            var vehicles = new HashMap<String, Id<Vehicle>>();
+            for (var i = 0; i < numberOfVehicles; i++) {
+                vehicles.put(lookup(MODES, in.readInt()), Id.createVehicleId(readString(in)));
+            }
+            VehicleUtils.insertVehicleIdsIntoAttributes(person, vehicles);
+        }
+
+        var plan = factory.createPlan();
+        var numberOfElements = in.readInt();
+        for (var i = 0; i < numberOfElements; i++) {
+            var type = in.readByte();
+            if (type == ACTIVITY) {
+                var activityType = lookup(ACTIVITY_TYPES, in.readInt());
+                var linkId = linkId(in.readInt());
+                var x = in.readDouble();
+                var y = in.readDouble();
+                var act = Double.isNaN(x) ?
+                        factory.createActivityFromLinkId(activityType, linkId) :
+                        factory.createActivityFromCoord(activityType, new Coord(x, y));
+                act.setLinkId(linkId);
+                readTime(in, act::setStartTime);
+                readTime(in, act::setEndTime);
+                readTime(in, act::setMaximumDuration);
+                plan.addActivity(act);
+            } else if (type == LEG) {
+                var leg = factory.createLeg(lookup(MODES, in.readInt()));
+                var routingMode = in.readInt();
+                if (routingMode >= 0) leg.setRoutingMode(lookup(MODES, routingMode));
+                readTime(in, leg::setDepartureTime);
+                readTime(in, leg::setTravelTime);
+                leg.setRoute(readRoute(in));
+                plan.addLeg(leg);
+            } else {
+                throw new IOException("Unknown plan element " + type + " of person " + person.getId());
+            }
+        }
+        person.addPlan(plan);
+        return person;
+    }
+
+    private Route readRoute(DataInputStream in) throws IOException {
+        var type = in.readByte();
+        if (type == NO_ROUTE) return null;
+
+        var startLinkId = linkId(in.readInt());
+        var endLinkId = linkId(in.readInt());
+        var travelTime = in.readDouble();
+        var distance = in.readDouble();
+
+        Route route;
+        if (type == NETWORK_ROUTE) {
+            var vehicleId = readString(in);
+            var numberOfLinks = in.readInt();
+            var linkIds = new ArrayList<Id<Link>>(numberOfLinks);
+            for (var i = 0; i < numberOfLinks; i++) {
+                linkIds.add(linkId(in.readInt()));
+            }
+            var networkRoute = RouteUtils.createLinkNetworkRouteImpl(startLinkId, linkIds, endLinkId);
+            if (!vehicleId.isEmpty()) networkRoute.setVehicleId(Id.createVehicleId(vehicleId));
+            route = networkRoute;
+        } else if (type == GENERIC_ROUTE) {
+            route = new GenericRouteImpl(startLinkId, endLinkId);
+            var description = readString(in);
+            if (!description.isEmpty()) route.setRouteDescription(description);
+        } else {
+            throw new IOException("Unknown route type " + type);
+        }
+        if (!Double.isNaN(travelTime)) route.setTravelTime(travelTime);
+        route.setDistance(distance);
+        return route;
+    }
+
+    private Id<Link> linkId(int id) {
+        return id < 0 ? null : Id.createLinkId(lookup(LINKS, id));
+    }
+
+    private String lookup(byte dictionary, int id) {
+        return dictionaries.get(dictionary).get(id);
+    }
+
+    private static void readTime(DataInputStream in, DoubleConsumer setter) throws IOException {
+        var time = in.readDouble();
+        if (!Double.isNaN(time)) setter.accept(time);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        var bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
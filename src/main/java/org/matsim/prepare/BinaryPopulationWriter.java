@@ -0,0 +1,305 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.misc.Counter;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the selected plans of persons into a compact binary file, which is much faster to load than gzipped xml. The
+ * file is read by {@link BinaryPopulationReader}.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * file      := MAGIC:int VERSION:int record*
+ * record    := kind:byte length:int payload[length]
+ * DICTIONARY payload := dictionary:byte id:int utf8 bytes of the entry
+ * PERSON     payload := id:string vehicles:unsigned short (mode:int vehicle:string)* elements:int element*
+ * END        payload := persons:long
+ * element   := ACTIVITY type:int link:int x:double y:double start:double end:double maxDur:double
+ *            | LEG mode:int routingMode:int depTime:double travTime:double route
+ * route     := NONE
+ *            | NETWORK start:int end:int travTime:double distance:double vehicle:string links:int link:int*
+ *            | GENERIC start:int end:int travTime:double distance:double description:string
+ * string    := length:int utf8 bytes
+ * </pre>
+ * Link ids, activity types and modes are replaced by integers of a dictionary. A dictionary entry is written as its own
+ * record right before the first person which uses it. Undefined times are NaN, missing links and modes are -1.
+ * Attributes other than the vehicles of a person are not written.
+ * <p>
+ * With {@link #sortByFirstDeparture(long)}, person records are held in the runs of a {@link SortPopulation} and written
+ * when the writer is closed. The dictionary entries are written right away, so they all precede the persons.
+ */
+public class BinaryPopulationWriter implements PopulationFileWriter {
+
+    private static final Logger log = LogManager.getLogger(BinaryPopulationWriter.class);
+
+    static final int MAGIC = 0x4d504f50; // MPOP
+    // 2: string lengths are ints instead of shorts
+    static final int VERSION = 2;
+    static final int MAX_VEHICLES = 0xffff;
+
+    static final byte DICTIONARY = 1;
+    static final byte PERSON = 2;
+    static final byte END = 3;
+
+    static final byte LINKS = 0;
+    static final byte ACTIVITY_TYPES = 1;
+    static final byte MODES = 2;
+
+    static final byte ACTIVITY = 0;
+    static final byte LEG = 1;
+
+    static final byte NO_ROUTE = 0;
+    static final byte NETWORK_ROUTE = 1;
+    static final byte GENERIC_ROUTE = 2;
+
+    private final double fraction;
+    private final long seed;
+    private final Counter counter = new Counter("[" + getClass().getSimpleName() + "] dumped person # ");
+
+    private final List<Map<String, Integer>> dictionaries = List.of(new HashMap<>(), new HashMap<>(), new HashMap<>());
+    private final List<byte[]> newEntries = new ArrayList<>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 12);
+    private final DataOutputStream record = new DataOutputStream(buffer);
+
+    private Path file;
+    private DataOutputStream out;
+    private StageStats.Stage stage;
+    private long persons = 0;
+    private long sortMemoryBytes = 0;
+    private SortPopulation.Runs sortRuns;
+
+    public BinaryPopulationWriter() {
+        this(1.0);
+    }
+
+    /**
+     * @param fraction fraction of persons which should be written. Values larger than 1 write all persons.
+     */
+    public BinaryPopulationWriter(double fraction) {
+        this(fraction, PersonRandom.DEFAULT_SEED);
+    }
+
+    /**
+     * Samples the same persons as a {@link PopulationXmlWriter} with the same fraction and seed.
+     */
+    public BinaryPopulationWriter(double fraction, long seed) {
+        this.fraction = fraction;
+        this.seed = seed;
+    }
+
+    /**
+     * Writes the persons ordered by their first departure, like {@link SortPopulation}. Must be called before
+     * {@link #startStreaming(String)}.
+     *
+     * @param memoryBytes memory for buffered persons. Persons beyond it are spilled next to the file.
+     */
+    public BinaryPopulationWriter sortByFirstDeparture(long memoryBytes) {
+        this.sortMemoryBytes = memoryBytes;
+        return this;
+    }
+
+    public void startStreaming(String filename) {
+        file = Path.of(filename);
+        if (sortMemoryBytes > 0) {
+            sortRuns = new SortPopulation.Runs(file.toAbsolutePath().getParent(), sortMemoryBytes);
+        }
+        stage = StageStats.writer(filename);
+        out = new DataOutputStream(new BufferedOutputStream(PopulationXmlWriter.openOutputStream(filename), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void run(Person person) {
+        if (fraction < 1.0 && PopulationXmlWriter.draw(seed, person) >= fraction) return;
+
+        var start = System.nanoTime();
+        // kind and length of each record
+        var bytes = 5L;
+        try {
+            buffer.reset();
+            writePerson(person);
+
+            // dictionary entries must be known before the person which uses them
+            for (var entry : newEntries) {
+                out.writeByte(DICTIONARY);
+                out.writeInt(entry.length);
+                out.write(entry);
+                bytes += 5 + entry.length;
+            }
+            newEntries.clear();
+
+            if (sortRuns == null) {
+                out.writeByte(PERSON);
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+            } else {
+                sortRuns.add(SortPopulation.firstDeparture(person), buffer.toByteArray());
+            }
+            bytes += buffer.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        persons++;
+        counter.incCounter();
+        stage.record(1, System.nanoTime() - start);
+        stage.addBytes(bytes);
+    }
+
+    @Override
+    public synchronized void closeStreaming() {
+        try {
+            if (sortRuns != null) {
+                try (var runs = sortRuns) {
+                    runs.merge(payload -> {
+                        out.writeByte(PERSON);
+                        out.writeInt(payload.length);
+                        out.write(payload);
+                    });
+                }
+            }
+            out.writeByte(END);
+            out.writeInt(Long.BYTES);
+            out.writeLong(persons);
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        counter.printCounter();
+        try {
+            log.info(String.format("Wrote %d persons into %s: %.1fMB", persons, file, Files.size(file) / 1024. / 1024.));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writePerson(Person person) throws IOException {
+        writeString(person.getId().toString());
+
+        var vehicles = person.getAttributes().getAttribute("vehicles") == null ?
+                Map.<String, Id<Vehicle>>of() : VehicleUtils.getVehicleIds(person);
+        if (vehicles.size() > MAX_VEHICLES) {
+            throw new IllegalArgumentException("Person " + person.getId() + " has " + vehicles.size() + " vehicles, but at most " + MAX_VEHICLES + " can be written.");
+        }
+        record.writeShort(vehicles.size());
+        for (var entry : vehicles.entrySet()) {
+            record.writeInt(id(MODES, entry.getKey()));
+            writeString(entry.getValue().toString());
+        }
+
+        var elements = person.getSelectedPlan().getPlanElements();
+        record.writeInt(elements.size());
+        for (var element : elements) {
+            if (element instanceof Activity act) {
+                writeActivity(act);
+            } else if (element instanceof Leg leg) {
+                writeLeg(leg, person);
+            } else {
+                throw new IllegalArgumentException("Unknown plan element of person " + person.getId() + ": " + element);
+            }
+        }
+    }
+
+    private void writeActivity(Activity act) throws IOException {
+        record.writeByte(ACTIVITY);
+        record.writeInt(id(ACTIVITY_TYPES, act.getType()));
+        record.writeInt(act.getLinkId() == null ? -1 : id(LINKS, act.getLinkId().toString()));
+        record.writeDouble(act.getCoord() == null ? Double.NaN : act.getCoord().getX());
+        record.writeDouble(act.getCoord() == null ? Double.NaN : act.getCoord().getY());
+        writeTime(act.getStartTime());
+        writeTime(act.getEndTime());
+        writeTime(act.getMaximumDuration());
+    }
+
+    private void writeLeg(Leg leg, Person person) throws IOException {
+        record.writeByte(LEG);
+        record.writeInt(id(MODES, leg.getMode()));
+        record.writeInt(leg.getRoutingMode() == null ? -1 : id(MODES, leg.getRoutingMode()));
+        writeTime(leg.getDepartureTime());
+        writeTime(leg.getTravelTime());
+        writeRoute(leg.getRoute(), leg.getMode(), person);
+    }
+
+    private void writeRoute(Route route, String mode, Person person) throws IOException {
+        if (route == null) {
+            record.writeByte(NO_ROUTE);
+            return;
+        }
+
+        record.writeByte(route instanceof NetworkRoute ? NETWORK_ROUTE : GENERIC_ROUTE);
+        record.writeInt(id(LINKS, route.getStartLinkId().toString()));
+        record.writeInt(id(LINKS, route.getEndLinkId().toString()));
+        writeTime(route.getTravelTime());
+        record.writeDouble(route.getDistance());
+
+        if (route instanceof NetworkRoute networkRoute) {
+            // clones share the route of their original, but drive their own vehicle
+            var vehicleId = networkRoute.getVehicleId();
+            if (vehicleId != null && person instanceof ClonedPerson clone) {
+                vehicleId = clone.getRouteVehicleId(mode);
+            }
+            writeString(vehicleId == null ? "" : vehicleId.toString());
+            var linkIds = networkRoute.getLinkIds();
+            record.writeInt(linkIds.size());
+            for (var linkId : linkIds) {
+                record.writeInt(id(LINKS, linkId.toString()));
+            }
+        } else {
+            writeString(route.getRouteDescription() == null ? "" : route.getRouteDescription());
+        }
+    }
+
+    private void writeTime(OptionalTime time) throws IOException {
+        record.writeDouble(time.isDefined() ? time.seconds() : Double.NaN);
+    }
+
+    private void writeString(String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private int id(byte dictionary, String value) {
+        var entries = dictionaries.get(dictionary);
+        var id = entries.get(value);
+        if (id != null) return id;
+
+        var newId = entries.size();
+        entries.put(value, newId);
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        var entry = ByteBuffer.allocate(1 + Integer.BYTES + bytes.length)
+                .put(dictionary)
+                .putInt(newId)
+                .put(bytes);
+        newEntries.add(entry.array());
+        return newId;
+    }
+}
@@ -0,0 +1,105 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.utils.objectattributes.attributable.AttributesImpl;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight clone of a person. The clone has its own id and attributes, e.g. its vehicles, but shares the selected
+ * plan of the original instead of copying it. The plan must therefore be prepared, i.e. routed, before clones are
+ * created and must not be changed while the clones are in use.
+ * <p>
+ * Network routes of the shared plan reference the vehicle of the original, which was used for routing. Writers must
+ * use {@link #getRouteVehicleId(String)} instead, which {@link PopulationXmlEncoder} and {@link BinaryPopulationWriter}
+ * do.
+ */
+public class ClonedPerson implements Person {
+
+    private final Id<Person> id;
+    private final Person original;
+    private final Attributes attributes = new AttributesImpl();
+    private Map<String, Object> customAttributes;
+
+    public ClonedPerson(Id<Person> id, Person original) {
+        this.id = id;
+        this.original = original;
+    }
+
+    public Person getOriginal() {
+        return original;
+    }
+
+    /**
+     * Vehicle of this clone for the given mode, or null if the clone has no vehicle for it.
+     */
+    public Id<Vehicle> getVehicleId(String mode) {
+        if (attributes.getAttribute("vehicles") == null) return null;
+        return VehicleUtils.getVehicleIds(this).get(mode);
+    }
+
+    /**
+     * Vehicle which replaces the vehicle of a network route of the given mode. Fails if the clone has no vehicle for the
+     * mode, because the route would otherwise be written with the vehicle of the original.
+     */
+    public Id<Vehicle> getRouteVehicleId(String mode) {
+        var vehicleId = getVehicleId(mode);
+        if (vehicleId == null) {
+            throw new RuntimeException("Clone " + id + " has no vehicle for its " + mode + " route. Add one vehicle per network mode to each clone.");
+        }
+        return vehicleId;
+    }
+
+    @Override
+    public Id<Person> getId() {
+        return id;
+    }
+
+    @Override
+    public Attributes getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Plan getSelectedPlan() {
+        return original.getSelectedPlan();
+    }
+
+    @Override
+    public List<? extends Plan> getPlans() {
+        return List.of(original.getSelectedPlan());
+    }
+
+    @Override
+    public Map<String, Object> getCustomAttributes() {
+        if (customAttributes == null) customAttributes = new HashMap<>();
+        return customAttributes;
+    }
+
+    @Override
+    public boolean addPlan(Plan plan) {
+        throw new UnsupportedOperationException("Clones share the plan of their original. Plans can't be added.");
+    }
+
+    @Override
+    public boolean removePlan(Plan plan) {
+        throw new UnsupportedOperationException("Clones share the plan of their original. Plans can't be removed.");
+    }
+
+    @Override
+    public void setSelectedPlan(Plan plan) {
+        throw new UnsupportedOperationException("Clones share the plan of their original. Plans can't be selected.");
+    }
+
+    @Override
+    public Plan createCopyOfSelectedPlanAndMakeSelected() {
+        throw new UnsupportedOperationException("Clones share the plan of their original. Plans can't be copied.");
+    }
+}
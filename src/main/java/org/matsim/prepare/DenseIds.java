@@ -0,0 +1,134 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Dense integer ids 0..n-1 of nodes, links, persons and vehicles, which the Rust QSim can use as array indices. Each
+ * kind of id gets a mapping table, whose line i holds the original id of the dense id i.
+ * <p>
+ * The ids are assigned while the output is written, so that no file is read twice. Links are numbered once, in the
+ * order of the network, and {@link PopulationXmlEncoder} writes them dense right away. Persons and vehicles are numbered
+ * per population file in the order of the file, because every sample has its own persons. The encoder leaves their ids
+ * open, and {@link PopulationXmlWriter} fills them in while it copies the bytes.
+ */
+public class DenseIds {
+
+    private static final Logger log = LogManager.getLogger(DenseIds.class);
+
+    private final Vehicles vehicles;
+    // original ids in the order of their dense ids
+    private final List<Id<Link>> links = new ArrayList<>();
+    // dense id by index of the original id, or -1 for links without dense id
+    private final int[] linksByIndex;
+
+    /**
+     * @param kept     links which are still in the network when it is written, e.g. not merged into other links
+     * @param vehicles vehicle types of the persons' vehicles, see {@link VehiclesXmlWriter}
+     */
+    public DenseIds(Network network, Predicate<Id<Link>> kept, Vehicles vehicles) {
+        this.vehicles = vehicles;
+        var maxIndex = -1;
+        for (var link : network.getLinks().values()) {
+            if (!kept.test(link.getId())) continue;
+            links.add(link.getId());
+            maxIndex = Math.max(maxIndex, link.getId().index());
+        }
+        linksByIndex = new int[maxIndex + 1];
+        Arrays.fill(linksByIndex, -1);
+        for (var i = 0; i < links.size(); i++) {
+            linksByIndex[links.get(i).index()] = i;
+        }
+    }
+
+    String link(Id<Link> linkId) {
+        var index = linkId.index();
+        var dense = index < linksByIndex.length ? linksByIndex[index] : -1;
+        if (dense < 0) throw new RuntimeException("Link " + linkId + " is referenced, but is not part of the written network.");
+        return Integer.toString(dense);
+    }
+
+    Id<VehicleType> vehicleType(String mode, Id<Vehicle> vehicleId) {
+        return VehiclesXmlWriter.typeId(vehicles, mode, vehicleId);
+    }
+
+    Vehicles getVehicles() {
+        return vehicles;
+    }
+
+    /**
+     * Writes the network with dense node and link ids to name.compact.network.xml.gz, and the tables
+     * name.node-ids.txt.gz and name.link-ids.txt.gz. The network must hold exactly the kept links by now.
+     */
+    public void writeNetwork(Network network, Path outputDir, String name) {
+        if (network.getLinks().size() != links.size()) {
+            throw new IllegalStateException("The network has " + network.getLinks().size() + " links, but " + links.size() + " links have dense ids.");
+        }
+        var start = System.nanoTime();
+        var compact = NetworkUtils.createNetwork();
+        compact.setCapacityPeriod(network.getCapacityPeriod());
+        compact.setEffectiveLaneWidth(network.getEffectiveLaneWidth());
+        AttributesUtils.copyAttributesFromTo(network, compact);
+
+        var nodes = new HashMap<Id<Node>, Node>();
+        try (var table = openTable(outputDir.resolve(name + ".node-ids.txt.gz"))) {
+            for (var node : network.getNodes().values()) {
+                var copy = compact.getFactory().createNode(Id.createNodeId(Integer.toString(nodes.size())), node.getCoord());
+                AttributesUtils.copyAttributesFromTo(node, copy);
+                compact.addNode(copy);
+                nodes.put(node.getId(), copy);
+                table.write(node.getId().toString());
+                table.newLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try (var table = openTable(outputDir.resolve(name + ".link-ids.txt.gz"))) {
+            for (var i = 0; i < links.size(); i++) {
+                var link = network.getLinks().get(links.get(i));
+                if (link == null) throw new IllegalStateException("Link " + links.get(i) + " has a dense id, but is not part of the network.");
+                var copy = compact.getFactory().createLink(Id.createLinkId(Integer.toString(i)), nodes.get(link.getFromNode().getId()), nodes.get(link.getToNode().getId()));
+                copy.setLength(link.getLength());
+                copy.setFreespeed(link.getFreespeed());
+                copy.setCapacity(link.getCapacity());
+                copy.setNumberOfLanes(link.getNumberOfLanes());
+                copy.setAllowedModes(link.getAllowedModes());
+                AttributesUtils.copyAttributesFromTo(link, copy);
+                compact.addLink(copy);
+                table.write(link.getId().toString());
+                table.newLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        PrepareRustQSimScenario.writeNetwork(compact, outputDir.resolve(name + ".compact.network.xml.gz"));
+        log.info(String.format("Wrote %d nodes and %d links with dense ids in %.1fs", nodes.size(), links.size(), (System.nanoTime() - start) / 1e9));
+    }
+
+    static BufferedWriter openTable(Path file) {
+        return new BufferedWriter(new OutputStreamWriter(PopulationXmlWriter.openOutputStream(file.toString()), StandardCharsets.UTF_8), 1 << 16);
+    }
+}
@@ -0,0 +1,35 @@
+package org.matsim.prepare;
+
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+
+/**
+ * Writer which accepts persons that were already encoded by a {@link PopulationXmlEncoder}, such as
+ * {@link PopulationXmlWriter}. Callers which encode persons themselves, e.g. {@link UpscaleAlgorithm} or the workers of
+ * a {@link PopulationPipeline}, use the encoders of the writer and decide with {@link #sample(double)} which persons
+ * they pass to it.
+ */
+public interface EncodedPopulationWriter extends PersonAlgorithm {
+
+    /**
+     * Encoder for persons which are passed to {@link #write(PopulationXmlEncoder)}.
+     */
+    PopulationXmlEncoder newEncoder();
+
+    /**
+     * Dense ids of the encoders, or null for the original ids.
+     */
+    DenseIds getIds();
+
+    long getSeed();
+
+    /**
+     * Whether a person with the draw of {@link PopulationXmlWriter#draw(long, org.matsim.api.core.v01.population.Person)}
+     * for {@link #getSeed()} is written.
+     */
+    boolean sample(double draw);
+
+    /**
+     * Writes all persons of the encoder. Persons must have passed {@link #sample(double)} already.
+     */
+    void write(PopulationXmlEncoder encoded);
+}
@@ -0,0 +1,54 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.population.Person;
+
+import java.util.List;
+
+/**
+ * Writes persons into several {@link PopulationXmlWriter}s, e.g. one per sample size. Each person is encoded at most
+ * once into a reusable buffer, and the same bytes are passed to every writer which samples the person. This leaves
+ * only compression and I/O to the individual writers. Whether a person is sampled is decided with one draw for all
+ * writers, which is why they must share their seed. The bytes are only the same for all writers if they also share
+ * their {@link DenseIds}.
+ */
+public class FanOutPopulationWriter implements PopulationFileWriter {
+
+    private final List<PopulationXmlWriter> writers;
+    private final PopulationXmlEncoder encoder;
+
+    public FanOutPopulationWriter(List<PopulationXmlWriter> writers) {
+        if (writers.stream().mapToLong(PopulationXmlWriter::getSeed).distinct().count() > 1) {
+            throw new IllegalArgumentException("All writers must use the same seed.");
+        }
+        if (writers.stream().map(PopulationXmlWriter::getIds).distinct().count() > 1) {
+            throw new IllegalArgumentException("All writers must use the same dense ids.");
+        }
+        this.writers = writers;
+        this.encoder = writers.isEmpty() ? new PopulationXmlEncoder() : writers.get(0).newEncoder();
+    }
+
+    public List<PopulationXmlWriter> getWriters() {
+        return writers;
+    }
+
+    @Override
+    public synchronized void run(Person person) {
+        if (writers.isEmpty()) return;
+
+        encoder.reset();
+        var draw = PopulationXmlWriter.draw(writers.get(0).getSeed(), person);
+        for (var writer : writers) {
+            if (!writer.sample(draw)) continue;
+
+            if (encoder.isEmpty()) encoder.encode(person);
+            writer.write(encoder);
+        }
+    }
+
+    @Override
+    public void closeStreaming() {
+        for (var writer : writers) {
+            writer.closeStreaming();
+        }
+    }
+}
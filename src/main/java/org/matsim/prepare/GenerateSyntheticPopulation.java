@@ -0,0 +1,296 @@
+package org.matsim.prepare;
+
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.router.TripStructureUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates car plans on any network, so that scaling tests do not depend on large real world scenarios. Persons are
+ * created one at a time and passed to the writers right away, so memory does not depend on the number of persons.
+ * <p>
+ * Each person follows one of the weighted activity chains, e.g. h-w-s-h. Activities are placed on random car links or
+ * normally distributed around the center of the network. The first departure is normally distributed, later
+ * departures follow from typical durations of the activity types. All random numbers are derived from seed and person
+ * id by {@link PersonRandom}, so the same arguments always generate the same population.
+ * <p>
+ * Streamed persons have {@link TransientId}s, which are released once the persons are written. Persons which are
+ * added to a population get registered ids instead.
+ */
+public class GenerateSyntheticPopulation {
+
+    private static final Logger log = LogManager.getLogger(GenerateSyntheticPopulation.class);
+
+    static final String LINKS = "links";
+    static final String GAUSS = "gauss";
+
+    private static final long STREAM = 4;
+    private static final double DEFAULT_DURATION = 1.5 * 3600;
+    private static final Map<String, Double> DURATIONS = Map.of(
+            "w", 8. * 3600,
+            "e", 6. * 3600,
+            "s", 1. * 3600,
+            "l", 2. * 3600
+    );
+
+    public static class InputArgs {
+
+        // network to place the activities on. Without a network, a grid network is generated, see -g
+        @Parameter(names = "-n")
+        public Path network;
+
+        // nodes per side of the generated grid network
+        @Parameter(names = "-g")
+        public int gridSize = 100;
+
+        @Parameter(names = "-o", required = true)
+        public Path outputDirectory;
+
+        @Parameter(names = "-r")
+        public String runId = "synthetic";
+
+        @Parameter(names = "-s")
+        public int size = 1_000_000;
+
+        // weighted activity chains. Typical durations are known for w(ork), e(ducation), s(hopping) and l(eisure)
+        @Parameter(names = "-ac")
+        public List<String> activityChains = List.of("h-w-h:0.5", "h-w-s-h:0.2", "h-e-h:0.1", "h-l-h:0.1", "h-s-l-h:0.1");
+
+        // 'links' places activities on random car links, 'gauss' normally distributed around the center of the network
+        @Parameter(names = "-sd")
+        public String spatialDistribution = LINKS;
+
+        // standard deviation of 'gauss' relative to the extent of the network
+        @Parameter(names = "-sds")
+        public double spatialSigma = 0.25;
+
+        // mean and standard deviation of the first departure in hours
+        @Parameter(names = "-dm")
+        public double departureMean = 7.5;
+
+        @Parameter(names = "-dsd")
+        public double departureSd = 1.0;
+
+        // format of the population. 'xml' writes .plans.xml.gz, 'binary' writes .plans.bin, see BinaryPopulationWriter
+        @Parameter(names = "-pf")
+        public String populationFormat = PrepareRustQSimScenario.XML;
+
+        @Parameter(names = "-seed")
+        public long seed = PersonRandom.DEFAULT_SEED;
+    }
+
+    private final InputArgs args;
+    private final PopulationFactory factory = PopulationUtils.getFactory();
+    private final List<Link> links;
+    private final List<String[]> chains = new ArrayList<>();
+    private final double[] cumulativeWeights;
+    private final double minX, minY, maxX, maxY;
+
+    public GenerateSyntheticPopulation(Network network, InputArgs args) {
+        this.args = args;
+        if (!args.spatialDistribution.equals(LINKS) && !args.spatialDistribution.equals(GAUSS)) {
+            throw new IllegalArgumentException("Unknown spatial distribution: " + args.spatialDistribution + ". Use " + LINKS + " or " + GAUSS);
+        }
+
+        this.links = network.getLinks().values().stream()
+                .filter(link -> link.getAllowedModes().contains(TransportMode.car))
+                .map(link -> (Link) link)
+                .sorted((a, b) -> a.getId().compareTo(b.getId()))
+                .toList();
+        if (links.isEmpty()) throw new IllegalArgumentException("The network has no car links.");
+
+        var weights = new ArrayList<Double>();
+        for (var chain : args.activityChains) {
+            var parts = chain.split(":");
+            chains.add(parts[0].split("-"));
+            weights.add(parts.length > 1 ? Double.parseDouble(parts[1]) : 1.);
+        }
+        this.cumulativeWeights = new double[weights.size()];
+        var sum = weights.stream().mapToDouble(Double::doubleValue).sum();
+        var cumulative = 0.;
+        for (var i = 0; i < weights.size(); i++) {
+            cumulative += weights.get(i) / sum;
+            cumulativeWeights[i] = cumulative;
+        }
+
+        var nodes = network.getNodes().values();
+        this.minX = nodes.stream().mapToDouble(node -> node.getCoord().getX()).min().orElseThrow();
+        this.minY = nodes.stream().mapToDouble(node -> node.getCoord().getY()).min().orElseThrow();
+        this.maxX = nodes.stream().mapToDouble(node -> node.getCoord().getX()).max().orElseThrow();
+        this.maxY = nodes.stream().mapToDouble(node -> node.getCoord().getY()).max().orElseThrow();
+    }
+
+    public static void main(String[] args) {
+
+        var inputArgs = new InputArgs();
+        com.beust.jcommander.JCommander.newBuilder()
+                .addObject(inputArgs)
+                .build()
+                .parse(args);
+
+        try {
+            Files.createDirectories(inputArgs.outputDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Network network;
+        if (inputArgs.network == null) {
+            network = createGrid(inputArgs.gridSize, 500);
+            PrepareRustQSimScenario.writeNetwork(network, inputArgs.outputDirectory.resolve(inputArgs.runId + ".network.xml.gz"));
+        } else {
+            network = NetworkUtils.readNetwork(inputArgs.network.toString());
+        }
+
+        var writer = PrepareRustQSimScenario.startPopulationWriter(inputArgs.populationFormat, 1.0, inputArgs.outputDirectory, inputArgs.runId);
+        new GenerateSyntheticPopulation(network, inputArgs).generate(writer);
+        writer.closeStreaming();
+    }
+
+    /**
+     * Passes all persons to the algorithm, one at a time.
+     */
+    public void generate(PersonAlgorithm algorithm) {
+        generate(algorithm, false);
+    }
+
+    /**
+     * Adds all persons to the population, with registered ids.
+     */
+    public void generate(Population population) {
+        generate(population::addPerson, true);
+    }
+
+    private void generate(PersonAlgorithm algorithm, boolean registerIds) {
+        var start = System.currentTimeMillis();
+        for (var i = 0; i < args.size; i++) {
+            algorithm.run(createPerson(i, registerIds));
+        }
+        log.info("Generated {} persons in {}ms", args.size, System.currentTimeMillis() - start);
+    }
+
+    Person createPerson(int index, boolean registerId) {
+        var id = new TransientId<>(Person.class, args.runId, "_" + index);
+        var person = factory.createPerson(registerId ? Id.createPersonId(id.toString()) : id);
+        var draws = new Draws(person.getId());
+        var chain = chains.get(chooseChain(draws.next()));
+
+        var plan = factory.createPlan();
+        var home = randomCoord(draws);
+        var time = Math.max(0, (args.departureMean + args.departureSd * draws.nextGaussian()) * 3600);
+        for (var i = 0; i < chain.length; i++) {
+            var type = chain[i];
+            var coord = type.equals(chain[0]) ? home : randomCoord(draws);
+            var act = factory.createActivityFromCoord(type, coord);
+            if (i > 0) {
+                // travel time is not known before routing. Leave some time for it, so that activities do not overlap
+                time += 1800 + DURATIONS.getOrDefault(type, DEFAULT_DURATION) * (0.7 + 0.6 * draws.next());
+            }
+            if (i < chain.length - 1) {
+                act.setEndTime(time);
+            }
+            plan.addActivity(act);
+
+            if (i < chain.length - 1) {
+                var leg = factory.createLeg(TransportMode.car);
+                TripStructureUtils.setRoutingMode(leg, TransportMode.car);
+                plan.addLeg(leg);
+            }
+        }
+        person.addPlan(plan);
+        return person;
+    }
+
+    private int chooseChain(double draw) {
+        for (var i = 0; i < cumulativeWeights.length; i++) {
+            if (draw < cumulativeWeights[i]) return i;
+        }
+        return cumulativeWeights.length - 1;
+    }
+
+    private Coord randomCoord(Draws draws) {
+        if (args.spatialDistribution.equals(GAUSS)) {
+            var x = (minX + maxX) / 2 + args.spatialSigma * (maxX - minX) * draws.nextGaussian();
+            var y = (minY + maxY) / 2 + args.spatialSigma * (maxY - minY) * draws.nextGaussian();
+            return new Coord(x, y);
+        }
+
+        // a random point along a random link, moved a bit to the side
+        var link = links.get((int) (draws.next() * links.size()));
+        var from = link.getFromNode().getCoord();
+        var to = link.getToNode().getCoord();
+        var t = draws.next();
+        return new Coord(from.getX() + t * (to.getX() - from.getX()) + 50 * (draws.next() - 0.5),
+                from.getY() + t * (to.getY() - from.getY()) + 50 * (draws.next() - 0.5));
+    }
+
+    /**
+     * Square grid with two way car links between neighbouring nodes.
+     */
+    static Network createGrid(int size, double spacing) {
+        var network = NetworkUtils.createNetwork();
+        for (var x = 0; x < size; x++) {
+            for (var y = 0; y < size; y++) {
+                NetworkUtils.createAndAddNode(network, Id.createNodeId(x + "_" + y), new Coord(x * spacing, y * spacing));
+            }
+        }
+        for (var x = 0; x < size; x++) {
+            for (var y = 0; y < size; y++) {
+                if (x + 1 < size) addGridLinks(network, x + "_" + y, (x + 1) + "_" + y, spacing);
+                if (y + 1 < size) addGridLinks(network, x + "_" + y, x + "_" + (y + 1), spacing);
+            }
+        }
+        return network;
+    }
+
+    private static void addGridLinks(Network network, String a, String b, double length) {
+        var nodeA = network.getNodes().get(Id.createNodeId(a));
+        var nodeB = network.getNodes().get(Id.createNodeId(b));
+        var ab = NetworkUtils.createAndAddLink(network, Id.createLinkId(a + "-" + b), nodeA, nodeB, length, 13.89, 1800, 1);
+        var ba = NetworkUtils.createAndAddLink(network, Id.createLinkId(b + "-" + a), nodeB, nodeA, length, 13.89, 1800, 1);
+        ab.setAllowedModes(Set.of(TransportMode.car));
+        ba.setAllowedModes(Set.of(TransportMode.car));
+    }
+
+    /**
+     * Consecutive draws of one person.
+     */
+    private class Draws {
+
+        private final Id<Person> personId;
+        private long counter = 0;
+
+        Draws(Id<Person> personId) {
+            this.personId = personId;
+        }
+
+        double next() {
+            return PersonRandom.nextDouble(args.seed, STREAM, personId, counter++);
+        }
+
+        double nextGaussian() {
+            // Box-Muller. 1 - next() is in (0, 1], so the log is finite
+            return Math.sqrt(-2 * Math.log(1 - next())) * Math.cos(2 * Math.PI * next());
+        }
+    }
+}
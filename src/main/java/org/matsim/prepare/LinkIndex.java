@@ -0,0 +1,515 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.algorithms.PlanAlgorithm;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.facilities.ActivityFacilities;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Immutable grids over the car links and their nodes, which find the link for a coordinate. All data lives in primitive
+ * buffers, so that lookups from many threads need no locking, and the index can be memory mapped from a file instead of
+ * being built again.
+ * <p>
+ * {@link #getNearestRightEntryLink(Coord)} snaps like {@link NetworkUtils#getNearestRightEntryLink(Network, Coord)},
+ * which {@link org.matsim.core.population.algorithms.XY2Links} uses: it takes the node closest to the coordinate and
+ * picks the closest of its in- and out-links which has the coordinate on its right side. {@link #getNearestLink(Coord)}
+ * instead searches the link segments directly. It finds the closest link even if it does not touch the closest node,
+ * so it snaps some activities to other links than XY2Links and is only used when asked for.
+ * <p>
+ * Nodes and links are inserted into every cell their bounding box overlaps, and a query searches rings of cells around
+ * the cell of the coordinate until nothing closer is possible.
+ */
+public class LinkIndex {
+
+    private static final Logger log = LogManager.getLogger(LinkIndex.class);
+    private static final int MAGIC = 0x4c4e4b32; // LNK2
+    // squared distances closer than this are treated as equal
+    private static final double TOLERANCE = 1e-6;
+
+    private final Network network;
+    private final List<Id<Link>> linkIds;
+    private final Grid grid;
+    // from and to coordinates of each link
+    private final DoubleBuffer coords;
+    private final IntBuffer cellOffsets;
+    private final IntBuffer cellLinks;
+    // coordinates of each node and its in- and out-links, in compressed rows
+    private final DoubleBuffer nodeCoords;
+    private final IntBuffer nodeLinkOffsets;
+    private final IntBuffer nodeLinks;
+    private final IntBuffer nodeCellOffsets;
+    private final IntBuffer cellNodes;
+
+    private LinkIndex(Network network, List<Id<Link>> linkIds, Grid grid, DoubleBuffer coords, IntBuffer cellOffsets, IntBuffer cellLinks,
+                      DoubleBuffer nodeCoords, IntBuffer nodeLinkOffsets, IntBuffer nodeLinks, IntBuffer nodeCellOffsets, IntBuffer cellNodes) {
+        this.network = network;
+        this.linkIds = linkIds;
+        this.grid = grid;
+        this.coords = coords;
+        this.cellOffsets = cellOffsets;
+        this.cellLinks = cellLinks;
+        this.nodeCoords = nodeCoords;
+        this.nodeLinkOffsets = nodeLinkOffsets;
+        this.nodeLinks = nodeLinks;
+        this.nodeCellOffsets = nodeCellOffsets;
+        this.cellNodes = cellNodes;
+    }
+
+    /**
+     * Memory maps the index file if it was created for the same car links. Otherwise, e.g. if the file is truncated, the
+     * index is built and written to the file for the next run. Without a file, the index is only built.
+     */
+    public static LinkIndex create(Network network, Path file) {
+        if (file == null) return create(network);
+
+        var links = TravelTimeSnapshot.carLinks(network);
+        var hash = hashGeometry(links);
+        if (Files.exists(file)) {
+            var index = load(file, hash, network, links);
+            if (index != null) return index;
+        }
+        var index = create(network);
+        index.write(file, hash);
+        return index;
+    }
+
+    public static LinkIndex create(Network network) {
+        var start = System.nanoTime();
+        var links = TravelTimeSnapshot.carLinks(network);
+        var n = links.size();
+
+        var coords = new double[4 * n];
+        var minX = Double.POSITIVE_INFINITY;
+        var minY = Double.POSITIVE_INFINITY;
+        var maxX = Double.NEGATIVE_INFINITY;
+        var maxY = Double.NEGATIVE_INFINITY;
+        for (var i = 0; i < n; i++) {
+            var from = links.get(i).getFromNode().getCoord();
+            var to = links.get(i).getToNode().getCoord();
+            coords[4 * i] = from.getX();
+            coords[4 * i + 1] = from.getY();
+            coords[4 * i + 2] = to.getX();
+            coords[4 * i + 3] = to.getY();
+            minX = Math.min(minX, Math.min(from.getX(), to.getX()));
+            minY = Math.min(minY, Math.min(from.getY(), to.getY()));
+            maxX = Math.max(maxX, Math.max(from.getX(), to.getX()));
+            maxY = Math.max(maxY, Math.max(from.getY(), to.getY()));
+        }
+        if (n == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+
+        // about one cell per link
+        var area = Math.max(maxX - minX, 1) * Math.max(maxY - minY, 1);
+        var cellSize = Math.max(Math.sqrt(area / Math.max(n, 1)), 1);
+        var grid = new Grid(minX, minY, cellSize, (int) ((maxX - minX) / cellSize) + 1, (int) ((maxY - minY) / cellSize) + 1);
+        var cellLinks = grid.fill(n, (link, consumer) -> grid.forEachCell(coords[4 * link], coords[4 * link + 1], coords[4 * link + 2], coords[4 * link + 3], consumer));
+
+        // nodes of the car links in the order of their ids, each with its in- and out-links in the order of the links
+        var nodes = links.stream()
+                .flatMap(link -> Stream.of(link.getFromNode(), link.getToNode()))
+                .distinct()
+                .sorted(Comparator.comparing(node -> node.getId().toString()))
+                .toList();
+        var nodeIndex = new HashMap<Id<Node>, Integer>();
+        var nodeCoords = new double[2 * nodes.size()];
+        for (var i = 0; i < nodes.size(); i++) {
+            nodeIndex.put(nodes.get(i).getId(), i);
+            nodeCoords[2 * i] = nodes.get(i).getCoord().getX();
+            nodeCoords[2 * i + 1] = nodes.get(i).getCoord().getY();
+        }
+        var nodeLinkOffsets = new int[nodes.size() + 1];
+        for (var link : links) {
+            nodeLinkOffsets[nodeIndex.get(link.getFromNode().getId()) + 1]++;
+            if (link.getToNode() != link.getFromNode()) nodeLinkOffsets[nodeIndex.get(link.getToNode().getId()) + 1]++;
+        }
+        for (var i = 0; i < nodes.size(); i++) {
+            nodeLinkOffsets[i + 1] += nodeLinkOffsets[i];
+        }
+        var fill = nodeLinkOffsets.clone();
+        var nodeLinks = new int[nodeLinkOffsets[nodes.size()]];
+        for (var i = 0; i < n; i++) {
+            var from = nodeIndex.get(links.get(i).getFromNode().getId());
+            var to = nodeIndex.get(links.get(i).getToNode().getId());
+            nodeLinks[fill[from]++] = i;
+            if (to.intValue() != from.intValue()) nodeLinks[fill[to]++] = i;
+        }
+        var cellNodes = grid.fill(nodes.size(), (node, consumer) -> grid.forEachCell(nodeCoords[2 * node], nodeCoords[2 * node + 1], nodeCoords[2 * node], nodeCoords[2 * node + 1], consumer));
+
+        var linkIds = links.stream().map(Link::getId).toList();
+        log.info(String.format("Built link index with %d links and %d nodes in %d x %d cells of %.0fm in %.1fs",
+                n, nodes.size(), grid.columns(), grid.rows(), cellSize, (System.nanoTime() - start) / 1e9));
+        return new LinkIndex(network, linkIds, grid, DoubleBuffer.wrap(coords), IntBuffer.wrap(cellLinks[0]), IntBuffer.wrap(cellLinks[1]),
+                DoubleBuffer.wrap(nodeCoords), IntBuffer.wrap(nodeLinkOffsets), IntBuffer.wrap(nodeLinks), IntBuffer.wrap(cellNodes[0]), IntBuffer.wrap(cellNodes[1]));
+    }
+
+    /**
+     * Same link as {@link NetworkUtils#getNearestRightEntryLink(Network, Coord)} on the car network: the closest in- or
+     * out-link of the closest node which has the coordinate on its right side, or the closest of them if none has.
+     * Unlike the quad tree of the network, ties between nodes at the same distance go to the node with the smaller id.
+     *
+     * @return the right entry link of the closest node, or null if the network has no car links
+     */
+    public Id<Link> getNearestRightEntryLink(Coord coord) {
+        var node = grid.nearest(coord.getX(), coord.getY(), nodeCellOffsets, cellNodes, this::squaredNodeDistance);
+        if (node < 0) return null;
+
+        // the orientation is checked against the vector from the coordinate to the node, as MATSim does
+        var nodeX = nodeCoords.get(2 * node);
+        var nodeY = nodeCoords.get(2 * node + 1);
+        var coordX = nodeX - coord.getX();
+        var coordY = nodeY - coord.getY();
+        var right = -1;
+        var rightDistance = Double.MAX_VALUE;
+        var overall = -1;
+        var overallDistance = Double.MAX_VALUE;
+        for (var i = nodeLinkOffsets.get(node); i < nodeLinkOffsets.get(node + 1); i++) {
+            var link = nodeLinks.get(i);
+            var from = new Coord(coords.get(4 * link), coords.get(4 * link + 1));
+            var to = new Coord(coords.get(4 * link + 2), coords.get(4 * link + 3));
+            var distance = CoordUtils.distancePointLinesegment(from, to, coord);
+            if (distance <= rightDistance) {
+                var crossProductZ = coordX * (to.getY() - from.getY()) - coordY * (to.getX() - from.getX());
+                if (crossProductZ < 0 && (distance < rightDistance || link < right)) {
+                    right = link;
+                    rightDistance = distance;
+                }
+            }
+            if (distance < overallDistance || (distance == overallDistance && link < overall)) {
+                overall = link;
+                overallDistance = distance;
+            }
+        }
+        return linkIds.get(right >= 0 ? right : overall);
+    }
+
+    /**
+     * Closest link segment. Of two links with the same distance, e.g. both directions of a road, the one with the
+     * coordinate on its right side wins.
+     *
+     * @return the closest car link, or null if the network has no car links
+     */
+    public Id<Link> getNearestLink(Coord coord) {
+        var x = coord.getX();
+        var y = coord.getY();
+        // both directions of a road have the same distance, up to rounding
+        var best = grid.nearest(x, y, cellOffsets, cellLinks, new ElementDistance() {
+            private boolean bestOnRight;
+
+            @Override
+            public double squaredDistance(int link, double x, double y) {
+                return LinkIndex.this.squaredDistance(link, x, y);
+            }
+
+            @Override
+            public boolean isBetter(int link, double distance, int best, double bestDistance) {
+                var onRight = isOnRight(link, x, y);
+                if (distance < bestDistance - TOLERANCE || (onRight && !bestOnRight) || (onRight == bestOnRight && link < best)) {
+                    bestOnRight = onRight;
+                    return true;
+                }
+                return false;
+            }
+        });
+        return best < 0 ? null : linkIds.get(best);
+    }
+
+    /**
+     * Sets the link of each activity to the link of its facility, or to the right entry link of the car node closest to
+     * the coordinate of the facility or activity. Like {@link org.matsim.core.population.algorithms.XY2Links}, but may be
+     * used from several threads. Facility links which were removed from the network since, e.g. by a
+     * {@link NetworkReduction}, are replaced by the link closest to the facility.
+     */
+    public PlanAlgorithm xy2Links(ActivityFacilities facilities) {
+        return xy2Links(facilities, false);
+    }
+
+    /**
+     * @param nearestSegment snap to the closest link segment with {@link #getNearestLink(Coord)} instead of the right
+     *                       entry link of the closest node.
+     */
+    public PlanAlgorithm xy2Links(ActivityFacilities facilities, boolean nearestSegment) {
+        return plan -> {
+            for (var element : plan.getPlanElements()) {
+                if (!(element instanceof Activity act)) continue;
+
+                var coord = act.getCoord();
+                var facility = act.getFacilityId() == null || facilities == null ? null : facilities.getFacilities().get(act.getFacilityId());
+                if (facility != null) {
+                    if (facility.getLinkId() != null && network.getLinks().containsKey(facility.getLinkId())) {
+                        act.setLinkId(facility.getLinkId());
+                        continue;
+                    }
+                    if (facility.getCoord() != null) coord = facility.getCoord();
+                }
+                if (coord != null) {
+                    act.setLinkId(nearestSegment ? getNearestLink(coord) : getNearestRightEntryLink(coord));
+                } else if (act.getLinkId() != null && !network.getLinks().containsKey(act.getLinkId())) {
+                    throw new IllegalStateException("Activity " + act.getType() + " is on link " + act.getLinkId() + ", which is not in the network, and has no coordinate to find another link.");
+                }
+            }
+        };
+    }
+
+    private double squaredDistance(int link, double x, double y) {
+        var fromX = coords.get(4 * link);
+        var fromY = coords.get(4 * link + 1);
+        var dx = coords.get(4 * link + 2) - fromX;
+        var dy = coords.get(4 * link + 3) - fromY;
+        var lengthSquared = dx * dx + dy * dy;
+        var t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - fromX) * dx + (y - fromY) * dy) / lengthSquared));
+        var px = fromX + t * dx - x;
+        var py = fromY + t * dy - y;
+        return px * px + py * py;
+    }
+
+    private double squaredNodeDistance(int node, double x, double y) {
+        var dx = nodeCoords.get(2 * node) - x;
+        var dy = nodeCoords.get(2 * node + 1) - y;
+        return dx * dx + dy * dy;
+    }
+
+    private boolean isOnRight(int link, double x, double y) {
+        var fromX = coords.get(4 * link);
+        var fromY = coords.get(4 * link + 1);
+        var dx = coords.get(4 * link + 2) - fromX;
+        var dy = coords.get(4 * link + 3) - fromY;
+        return dx * (y - fromY) - dy * (x - fromX) < 0;
+    }
+
+    private void write(Path file, long hash) {
+        var start = System.nanoTime();
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(hash);
+            out.writeInt(linkIds.size());
+            out.writeDouble(grid.minX());
+            out.writeDouble(grid.minY());
+            out.writeDouble(grid.cellSize());
+            out.writeInt(grid.columns());
+            out.writeInt(grid.rows());
+            out.writeInt(cellLinks.limit());
+            out.writeInt(nodeCoords.limit() / 2);
+            out.writeInt(nodeLinks.limit());
+            out.writeInt(cellNodes.limit());
+            for (var buffer : List.of(coords, nodeCoords)) {
+                for (var i = 0; i < buffer.limit(); i++) {
+                    out.writeDouble(buffer.get(i));
+                }
+            }
+            for (var buffer : List.of(cellOffsets, cellLinks, nodeLinkOffsets, nodeLinks, nodeCellOffsets, cellNodes)) {
+                for (var i = 0; i < buffer.limit(); i++) {
+                    out.writeInt(buffer.get(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info(String.format("Wrote link index to %s in %.1fs", file, (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * The link ids are not stored, because the hash guarantees that the file was created from the same car links in
+     * the same order.
+     *
+     * @return null if the file was created for other car links, or if its size does not match its header
+     */
+    private static LinkIndex load(Path file, long expectedHash, Network network, List<Link> links) {
+        var start = System.nanoTime();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < Integer.BYTES || buffer.getInt() != MAGIC) {
+                log.warn("{} is not a link index of this version. It will be replaced.", file);
+                return null;
+            }
+            if (buffer.getLong() != expectedHash || buffer.getInt() != links.size()) {
+                log.warn("Link index {} was created for a different network. It will be replaced.", file);
+                return null;
+            }
+
+            var grid = new Grid(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getInt(), buffer.getInt());
+            var numberOfCellLinks = buffer.getInt();
+            var numberOfNodes = buffer.getInt();
+            var numberOfNodeLinks = buffer.getInt();
+            var numberOfCellNodes = buffer.getInt();
+            var numberOfCells = (long) grid.columns() * grid.rows();
+
+            var coords = slice(buffer, 4L * links.size() * Double.BYTES).asDoubleBuffer();
+            var nodeCoords = slice(buffer, 2L * numberOfNodes * Double.BYTES).asDoubleBuffer();
+            var cellOffsets = slice(buffer, (numberOfCells + 1) * Integer.BYTES).asIntBuffer();
+            var cellLinks = slice(buffer, (long) numberOfCellLinks * Integer.BYTES).asIntBuffer();
+            var nodeLinkOffsets = slice(buffer, (numberOfNodes + 1L) * Integer.BYTES).asIntBuffer();
+            var nodeLinks = slice(buffer, (long) numberOfNodeLinks * Integer.BYTES).asIntBuffer();
+            var nodeCellOffsets = slice(buffer, (numberOfCells + 1) * Integer.BYTES).asIntBuffer();
+            var cellNodes = slice(buffer, (long) numberOfCellNodes * Integer.BYTES).asIntBuffer();
+            if (buffer.hasRemaining()) {
+                log.warn("Link index {} has {} unexpected trailing bytes. It will be replaced.", file, buffer.remaining());
+                return null;
+            }
+
+            var linkIds = links.stream().map(Link::getId).toList();
+            log.info(String.format("Mapped link index with %d links from %s in %.1fs", links.size(), file, (System.nanoTime() - start) / 1e9));
+            return new LinkIndex(network, linkIds, grid, coords, cellOffsets, cellLinks, nodeCoords, nodeLinkOffsets, nodeLinks, nodeCellOffsets, cellNodes);
+        } catch (BufferUnderflowException e) {
+            log.warn("Link index {} is truncated. It will be replaced.", file);
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long length) {
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+        var slice = buffer.slice(buffer.position(), (int) length);
+        buffer.position(buffer.position() + (int) length);
+        return slice;
+    }
+
+    /**
+     * Hash over ids, nodes and coordinates of the car links, which is all the index depends on.
+     */
+    static long hashGeometry(List<Link> links) {
+        var digest = TravelTimeSnapshot.sha256();
+        var buffer = ByteBuffer.allocate(4 * Double.BYTES);
+        for (var link : links) {
+            digest.update(link.getId().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(link.getFromNode().getId().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(link.getToNode().getId().toString().getBytes(StandardCharsets.UTF_8));
+            buffer.clear();
+            buffer.putDouble(link.getFromNode().getCoord().getX());
+            buffer.putDouble(link.getFromNode().getCoord().getY());
+            buffer.putDouble(link.getToNode().getCoord().getX());
+            buffer.putDouble(link.getToNode().getCoord().getY());
+            digest.update(buffer.array());
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Distance of a link or node to a coordinate, and whether it beats the best element so far, which is -1 at first.
+     */
+    private interface ElementDistance {
+
+        double squaredDistance(int element, double x, double y);
+
+        default boolean isBetter(int element, double distance, int best, double bestDistance) {
+            return distance < bestDistance || (distance == bestDistance && element < best);
+        }
+    }
+
+    /**
+     * Regular cells over the bounding box of the network. The elements of each cell are stored in compressed rows: an
+     * offset per cell into one array of element indices.
+     */
+    private record Grid(double minX, double minY, double cellSize, int columns, int rows) {
+
+        private interface CellVisitor {
+            void forEachCell(int element, IntConsumer consumer);
+        }
+
+        /**
+         * @return cell offsets and elements of the cells
+         */
+        int[][] fill(int numberOfElements, CellVisitor cells) {
+            // first count the elements per cell, then fill them in
+            var offsets = new int[columns * rows + 1];
+            for (var i = 0; i < numberOfElements; i++) {
+                cells.forEachCell(i, cell -> offsets[cell + 1]++);
+            }
+            for (var c = 0; c < columns * rows; c++) {
+                offsets[c + 1] += offsets[c];
+            }
+            var fill = offsets.clone();
+            var elements = new int[offsets[columns * rows]];
+            for (var i = 0; i < numberOfElements; i++) {
+                var element = i;
+                cells.forEachCell(i, cell -> elements[fill[cell]++] = element);
+            }
+            return new int[][]{offsets, elements};
+        }
+
+        /**
+         * Passes all cells which overlap the bounding box to the consumer.
+         */
+        void forEachCell(double x0, double y0, double x1, double y1, IntConsumer consumer) {
+            var c0 = cell(Math.min(x0, x1), minX, columns);
+            var c1 = cell(Math.max(x0, x1), minX, columns);
+            var r0 = cell(Math.min(y0, y1), minY, rows);
+            var r1 = cell(Math.max(y0, y1), minY, rows);
+            for (var r = r0; r <= r1; r++) {
+                for (var c = c0; c <= c1; c++) {
+                    consumer.accept(r * columns + c);
+                }
+            }
+        }
+
+        /**
+         * @return the closest element, or -1 if there are none
+         */
+        int nearest(double x, double y, IntBuffer offsets, IntBuffer elements, ElementDistance distances) {
+            var column = cell(x, minX, columns);
+            var row = cell(y, minY, rows);
+
+            var best = -1;
+            var bestDistance = Double.POSITIVE_INFINITY;
+            var maxRing = Math.max(columns, rows);
+            for (var ring = 0; ring <= maxRing; ring++) {
+                for (var r = row - ring; r <= row + ring; r++) {
+                    if (r < 0 || r >= rows) continue;
+                    var step = r == row - ring || r == row + ring ? 1 : Math.max(1, 2 * ring);
+                    for (var c = column - ring; c <= column + ring; c += step) {
+                        if (c < 0 || c >= columns) continue;
+
+                        var cell = r * columns + c;
+                        for (var i = offsets.get(cell); i < offsets.get(cell + 1); i++) {
+                            var element = elements.get(i);
+                            var distance = distances.squaredDistance(element, x, y);
+                            if (distance > bestDistance + TOLERANCE) continue;
+                            if (distances.isBetter(element, distance, best, bestDistance)) {
+                                best = element;
+                                bestDistance = distance;
+                            }
+                        }
+                    }
+                }
+
+                // every cell of the next ring is at least this far away
+                var nextRing = ring * cellSize;
+                if (best >= 0 && nextRing * nextRing > bestDistance) break;
+            }
+            return best;
+        }
+
+        private int cell(double value, double min, int cells) {
+            return Math.max(0, Math.min(cells - 1, (int) ((value - min) / cellSize)));
+        }
+    }
+}
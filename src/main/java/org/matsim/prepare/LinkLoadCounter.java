@@ -0,0 +1,59 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.routes.NetworkRoute;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many vehicles of the routed plans enter each link of a network. Persons may be passed from several threads
+ * at the same time. Links of routes which are not part of the network are ignored.
+ */
+public class LinkLoadCounter implements PersonAlgorithm {
+
+    private final Map<Id<Link>, Integer> index = new HashMap<>();
+    private final AtomicLongArray loads;
+
+    public LinkLoadCounter(Network network) {
+        for (var linkId : network.getLinks().keySet()) {
+            index.put(linkId, index.size());
+        }
+        loads = new AtomicLongArray(index.size());
+    }
+
+    @Override
+    public void run(Person person) {
+        for (var element : person.getSelectedPlan().getPlanElements()) {
+            if (element instanceof Leg leg && leg.getRoute() instanceof NetworkRoute route) {
+                // a vehicle departs on the start link and arrives on the end link, which both count as load
+                increment(route.getStartLinkId());
+                for (var linkId : route.getLinkIds()) {
+                    increment(linkId);
+                }
+                if (!route.getEndLinkId().equals(route.getStartLinkId())) {
+                    increment(route.getEndLinkId());
+                }
+            }
+        }
+    }
+
+    private void increment(Id<Link> linkId) {
+        var i = index.get(linkId);
+        if (i != null) loads.incrementAndGet(i);
+    }
+
+    /**
+     * @return number of vehicles which entered the link, 0 for links which were not part of the network
+     */
+    public long getLoad(Id<Link> linkId) {
+        var i = index.get(linkId);
+        return i == null ? 0 : loads.get(i);
+    }
+}
@@ -0,0 +1,347 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Splits a network into partitions of similar load for the distributed simulation. Links belong to the partition of
+ * their to-node. A node weighs its in-links plus the vehicles entering them, so that partitions are balanced by the
+ * work of the simulation instead of the number of links. Links between partitions are cut, which costs one message
+ * per vehicle crossing them.
+ * <p>
+ * The network is split by recursive coordinate bisection at the weighted median, which gives balanced and compact
+ * partitions. Afterwards, nodes on the border move to the neighbouring partition if this lowers the weight of the cut
+ * links without exceeding the allowed imbalance.
+ */
+public class NetworkPartitioning {
+
+    private static final Logger log = LogManager.getLogger(NetworkPartitioning.class);
+
+    public static final String PARTITION_ATTRIBUTE = "partition";
+    private static final int MAX_REFINEMENT_PASSES = 20;
+
+    private final Network network;
+    private final ToLongFunction<Id<Link>> loads;
+    private final int numberOfPartitions;
+    private final List<Node> nodes;
+    private final Map<Id<Node>, Integer> index = new HashMap<>();
+    private final long[] weights;
+    private final int[] partitions;
+
+    private NetworkPartitioning(Network network, ToLongFunction<Id<Link>> loads, int numberOfPartitions) {
+        this.network = network;
+        this.loads = loads;
+        this.numberOfPartitions = numberOfPartitions;
+        this.nodes = List.copyOf(network.getNodes().values());
+        for (var node : nodes) {
+            index.put(node.getId(), index.size());
+        }
+        this.weights = new long[nodes.size()];
+        for (var i = 0; i < nodes.size(); i++) {
+            weights[i] = 1;
+            for (var link : nodes.get(i).getInLinks().values()) {
+                weights[i] += linkWeight(link);
+            }
+        }
+        this.partitions = new int[nodes.size()];
+    }
+
+    /**
+     * @param loads        number of vehicles entering a link, e.g. from a {@link LinkLoadCounter}
+     * @param maxImbalance allowed excess of the heaviest partition over the average weight, e.g. 0.03
+     */
+    public static NetworkPartitioning create(Network network, ToLongFunction<Id<Link>> loads, int numberOfPartitions, double maxImbalance) {
+        if (numberOfPartitions < 1 || numberOfPartitions > network.getNodes().size()) {
+            throw new IllegalArgumentException("Can't split a network with " + network.getNodes().size() + " nodes into " + numberOfPartitions + " partitions");
+        }
+
+        var start = System.nanoTime();
+        var partitioning = new NetworkPartitioning(network, loads, numberOfPartitions);
+        partitioning.bisect(IntStream.range(0, partitioning.nodes.size()).toArray(), 0, numberOfPartitions);
+        var initialCut = partitioning.cutWeight();
+        var moves = partitioning.refine(maxImbalance);
+        log.info(String.format("Split network into %d partitions in %.1fs. Refinement moved %d nodes and lowered the cut weight from %d to %d",
+                numberOfPartitions, (System.nanoTime() - start) / 1e9, moves, initialCut, partitioning.cutWeight()));
+        return partitioning;
+    }
+
+    public int getPartition(Id<Node> nodeId) {
+        return partitions[index.get(nodeId)];
+    }
+
+    public int getNumberOfPartitions() {
+        return numberOfPartitions;
+    }
+
+    /**
+     * @return heaviest partition divided by the average partition weight. 1.0 is a perfect balance.
+     */
+    public double getImbalance() {
+        var partitionWeights = partitionWeights();
+        var max = Arrays.stream(partitionWeights).max().orElse(0);
+        var avg = Arrays.stream(partitionWeights).average().orElse(0);
+        return avg == 0 ? 1.0 : max / avg;
+    }
+
+    /**
+     * @return number of links whose from- and to-node are in different partitions
+     */
+    public long getCutLinks() {
+        return network.getLinks().values().stream().filter(this::isCut).count();
+    }
+
+    /**
+     * @return number of vehicles crossing from one partition into another
+     */
+    public long getCutLoad() {
+        return network.getLinks().values().stream()
+                .filter(this::isCut)
+                .mapToLong(link -> loads.applyAsLong(link.getId()))
+                .sum();
+    }
+
+    /**
+     * Writes the partition of each node as runId.partitions.csv, a network shard per partition as
+     * runId.network.rank-i.xml.gz and statistics per partition as runId.partition-stats.csv. Nodes of the network and
+     * of the shards carry their partition as attribute.
+     */
+    public void write(Path outputDir, String runId) {
+        for (var i = 0; i < nodes.size(); i++) {
+            nodes.get(i).getAttributes().putAttribute(PARTITION_ATTRIBUTE, partitions[i]);
+        }
+
+        try (var writer = Files.newBufferedWriter(outputDir.resolve(runId + ".partitions.csv"))) {
+            writer.write("node;partition\n");
+            for (var i = 0; i < nodes.size(); i++) {
+                writer.write(nodes.get(i).getId() + ";" + partitions[i] + "\n");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (var rank = 0; rank < numberOfPartitions; rank++) {
+            PrepareRustQSimScenario.writeNetwork(createShard(rank), outputDir.resolve(runId + ".network.rank-" + rank + ".xml.gz"));
+        }
+
+        writeStats(outputDir.resolve(runId + ".partition-stats.csv"));
+    }
+
+    /**
+     * Creates a network with the nodes and links of one partition. Links which come from another partition are
+     * included together with their from-node, which keeps the partition attribute of its owner.
+     */
+    Network createShard(int rank) {
+        var shard = NetworkUtils.createNetwork();
+        shard.setCapacityPeriod(network.getCapacityPeriod());
+        shard.setEffectiveLaneWidth(network.getEffectiveLaneWidth());
+
+        for (var i = 0; i < nodes.size(); i++) {
+            if (partitions[i] == rank) addNode(shard, nodes.get(i));
+        }
+        for (var link : network.getLinks().values()) {
+            if (partitions[index.get(link.getToNode().getId())] != rank) continue;
+
+            var from = shard.getNodes().get(link.getFromNode().getId());
+            if (from == null) from = addNode(shard, link.getFromNode());
+            var to = shard.getNodes().get(link.getToNode().getId());
+            var copy = shard.getFactory().createLink(link.getId(), from, to);
+            copy.setLength(link.getLength());
+            copy.setFreespeed(link.getFreespeed());
+            copy.setCapacity(link.getCapacity());
+            copy.setNumberOfLanes(link.getNumberOfLanes());
+            copy.setAllowedModes(link.getAllowedModes());
+            AttributesUtils.copyAttributesFromTo(link, copy);
+            shard.addLink(copy);
+        }
+        return shard;
+    }
+
+    private Node addNode(Network shard, Node node) {
+        var copy = shard.getFactory().createNode(node.getId(), node.getCoord());
+        AttributesUtils.copyAttributesFromTo(node, copy);
+        copy.getAttributes().putAttribute(PARTITION_ATTRIBUTE, getPartition(node.getId()));
+        shard.addNode(copy);
+        return copy;
+    }
+
+    private void writeStats(Path file) {
+        var partitionNodes = new long[numberOfPartitions];
+        var partitionLinks = new long[numberOfPartitions];
+        var partitionLoads = new long[numberOfPartitions];
+        var cutLinks = new long[numberOfPartitions];
+        var cutLoads = new long[numberOfPartitions];
+        for (var partition : partitions) {
+            partitionNodes[partition]++;
+        }
+        for (var link : network.getLinks().values()) {
+            var partition = getPartition(link.getToNode().getId());
+            var load = loads.applyAsLong(link.getId());
+            partitionLinks[partition]++;
+            partitionLoads[partition] += load;
+            if (isCut(link)) {
+                cutLinks[partition]++;
+                cutLoads[partition] += load;
+            }
+        }
+
+        var partitionWeights = partitionWeights();
+        try (var writer = Files.newBufferedWriter(file)) {
+            writer.write("partition;nodes;links;weight;load;cut_links;cut_load\n");
+            for (var i = 0; i < numberOfPartitions; i++) {
+                writer.write(i + ";" + partitionNodes[i] + ";" + partitionLinks[i] + ";" + partitionWeights[i] + ";"
+                        + partitionLoads[i] + ";" + cutLinks[i] + ";" + cutLoads[i] + "\n");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var totalLoad = Arrays.stream(partitionLoads).sum();
+        var cutLoad = Arrays.stream(cutLoads).sum();
+        log.info(String.format("Partitions: %d, imbalance: %.3f, cut links: %d of %d, cut load: %d of %d (%.1f%%)",
+                numberOfPartitions, getImbalance(), Arrays.stream(cutLinks).sum(), network.getLinks().size(),
+                cutLoad, totalLoad, totalLoad == 0 ? 0 : 100. * cutLoad / totalLoad));
+    }
+
+    private void bisect(int[] subset, int firstPartition, int numberOfParts) {
+        if (numberOfParts == 1) {
+            for (var node : subset) {
+                partitions[node] = firstPartition;
+            }
+            return;
+        }
+
+        var leftParts = numberOfParts / 2;
+        var total = Arrays.stream(subset).mapToLong(node -> weights[node]).sum();
+        var target = (double) total * leftParts / numberOfParts;
+
+        // split along the longer side of the bounding box
+        var minX = Double.POSITIVE_INFINITY;
+        var maxX = Double.NEGATIVE_INFINITY;
+        var minY = Double.POSITIVE_INFINITY;
+        var maxY = Double.NEGATIVE_INFINITY;
+        for (var node : subset) {
+            var coord = nodes.get(node).getCoord();
+            minX = Math.min(minX, coord.getX());
+            maxX = Math.max(maxX, coord.getX());
+            minY = Math.min(minY, coord.getY());
+            maxY = Math.max(maxY, coord.getY());
+        }
+        Comparator<Integer> byCoord = maxX - minX >= maxY - minY ?
+                Comparator.comparingDouble(node -> nodes.get(node).getCoord().getX()) :
+                Comparator.comparingDouble(node -> nodes.get(node).getCoord().getY());
+        var sorted = Arrays.stream(subset).boxed().sorted(byCoord).mapToInt(Integer::intValue).toArray();
+
+        // every part needs at least one node
+        var split = 0;
+        var sum = 0L;
+        while (split < sorted.length - (numberOfParts - leftParts) && (split < leftParts || sum + weights[sorted[split]] / 2. <= target)) {
+            sum += weights[sorted[split]];
+            split++;
+        }
+        bisect(Arrays.copyOfRange(sorted, 0, split), firstPartition, leftParts);
+        bisect(Arrays.copyOfRange(sorted, split, sorted.length), firstPartition + leftParts, numberOfParts - leftParts);
+    }
+
+    /**
+     * Greedily moves nodes into the neighbouring partition they are connected to most strongly, as long as this lowers
+     * the weight of the cut and keeps the target partition below the allowed weight.
+     *
+     * @return number of moved nodes
+     */
+    private long refine(double maxImbalance) {
+        var partitionWeights = partitionWeights();
+        var partitionSizes = new long[numberOfPartitions];
+        for (var partition : partitions) {
+            partitionSizes[partition]++;
+        }
+        var maxWeight = Arrays.stream(partitionWeights).sum() / numberOfPartitions * (1 + maxImbalance);
+
+        var moves = 0L;
+        var connections = new long[numberOfPartitions];
+        var touched = new ArrayList<Integer>();
+        for (var pass = 0; pass < MAX_REFINEMENT_PASSES; pass++) {
+            var movesInPass = 0L;
+            for (var node = 0; node < nodes.size(); node++) {
+                var own = partitions[node];
+                touched.clear();
+                for (var link : adjacentLinks(nodes.get(node))) {
+                    var other = link.getFromNode() == nodes.get(node) ? link.getToNode() : link.getFromNode();
+                    var partition = getPartition(other.getId());
+                    if (connections[partition] == 0) touched.add(partition);
+                    connections[partition] += linkWeight(link);
+                }
+
+                var best = own;
+                for (var partition : touched) {
+                    if (partition != own && connections[partition] > connections[best]
+                            && partitionWeights[partition] + weights[node] <= maxWeight) {
+                        best = partition;
+                    }
+                }
+                if (best != own && connections[best] > connections[own] && partitionSizes[own] > 1) {
+                    partitions[node] = best;
+                    partitionWeights[own] -= weights[node];
+                    partitionWeights[best] += weights[node];
+                    partitionSizes[own]--;
+                    partitionSizes[best]++;
+                    movesInPass++;
+                }
+                for (var partition : touched) {
+                    connections[partition] = 0;
+                }
+            }
+            moves += movesInPass;
+            if (movesInPass == 0) break;
+        }
+        return moves;
+    }
+
+    private List<Link> adjacentLinks(Node node) {
+        var links = new ArrayList<Link>(node.getInLinks().size() + node.getOutLinks().size());
+        links.addAll(node.getInLinks().values());
+        links.addAll(node.getOutLinks().values());
+        return links;
+    }
+
+    private boolean isCut(Link link) {
+        return getPartition(link.getFromNode().getId()) != getPartition(link.getToNode().getId());
+    }
+
+    private long linkWeight(Link link) {
+        return 1 + loads.applyAsLong(link.getId());
+    }
+
+    private long cutWeight() {
+        return network.getLinks().values().stream()
+                .filter(this::isCut)
+                .mapToLong(this::linkWeight)
+                .sum();
+    }
+
+    private double[] partitionWeights() {
+        var partitionWeights = new double[numberOfPartitions];
+        for (var i = 0; i < nodes.size(); i++) {
+            partitionWeights[partitions[i]] += weights[i];
+        }
+        return partitionWeights;
+    }
+}
@@ -0,0 +1,390 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.population.algorithms.PlanAlgorithm;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.utils.objectattributes.attributable.AttributesUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Makes a network smaller before it is passed to the simulation. Modes and links outside the largest strongly
+ * connected component of a mode are removed in place. This must happen before routing, so that no route uses a removed
+ * link.
+ * <p>
+ * Chains of links through nodes without junctions are merged into one link, which carries the id of the first link of
+ * the chain. Only links which are equal in all properties and attributes except their length are merged, so that the
+ * merged link does not lose what sets its links apart. The network keeps its links until {@link #applyContraction()}, so that routing and travel times still use
+ * the original links. Routed plans are rewritten to the merged links by {@link #run(Plan)}. The old links of each
+ * merged and removed link are written by {@link #writeMapping(Path)}.
+ */
+public class NetworkReduction implements PlanAlgorithm {
+
+    private static final Logger log = LogManager.getLogger(NetworkReduction.class);
+
+    private final Network network;
+    private final List<Id<Link>> removed = new ArrayList<>();
+    private final Map<Id<Link>, Id<Link>> merged = new HashMap<>();
+    private final List<List<Link>> chains = new ArrayList<>();
+
+    public NetworkReduction(Network network) {
+        this.network = network;
+    }
+
+    /**
+     * Removes the modes from all links. Links without any mode left are removed, as well as nodes without links.
+     */
+    public NetworkReduction removeModes(Set<String> modes) {
+        var start = System.nanoTime();
+        var linksBefore = network.getLinks().size();
+
+        var links = new ArrayList<Id<Link>>();
+        for (var link : network.getLinks().values()) {
+            if (link.getAllowedModes().stream().noneMatch(modes::contains)) continue;
+
+            var remaining = new HashSet<>(link.getAllowedModes());
+            remaining.removeAll(modes);
+            if (remaining.isEmpty()) {
+                links.add(link.getId());
+            } else {
+                link.setAllowedModes(remaining);
+            }
+        }
+        removeLinks(links);
+
+        log.info(String.format("Removed modes %s in %.1fs. Links: %d -> %d",
+                modes, (System.nanoTime() - start) / 1e9, linksBefore, network.getLinks().size()));
+        return this;
+    }
+
+    /**
+     * Removes the mode from all links outside the largest strongly connected component of the mode, so that every
+     * link of the mode can be reached from every other one. Links without any mode left are removed.
+     */
+    public NetworkReduction keepLargestComponent(String mode) {
+        var start = System.nanoTime();
+        var linksBefore = network.getLinks().size();
+
+        // the component is computed on arrays, because the network may have millions of links
+        var nodes = List.copyOf(network.getNodes().values());
+        var index = new HashMap<Id<Node>, Integer>();
+        for (var node : nodes) {
+            index.put(node.getId(), index.size());
+        }
+        var offsets = new int[nodes.size() + 1];
+        for (var i = 0; i < nodes.size(); i++) {
+            var outLinks = nodes.get(i).getOutLinks().values().stream().filter(link -> link.getAllowedModes().contains(mode)).count();
+            offsets[i + 1] = offsets[i] + (int) outLinks;
+        }
+        var targets = new int[offsets[nodes.size()]];
+        for (var i = 0; i < nodes.size(); i++) {
+            var j = offsets[i];
+            for (var link : nodes.get(i).getOutLinks().values()) {
+                if (link.getAllowedModes().contains(mode)) targets[j++] = index.get(link.getToNode().getId());
+            }
+        }
+        var components = stronglyConnectedComponents(offsets, targets);
+
+        var sizes = new int[nodes.size()];
+        for (var component : components) {
+            sizes[component]++;
+        }
+        var largest = 0;
+        for (var i = 1; i < sizes.length; i++) {
+            if (sizes[i] > sizes[largest]) largest = i;
+        }
+
+        var links = new ArrayList<Id<Link>>();
+        var withoutMode = 0;
+        for (var link : network.getLinks().values()) {
+            if (!link.getAllowedModes().contains(mode)) continue;
+            if (components[index.get(link.getFromNode().getId())] == largest && components[index.get(link.getToNode().getId())] == largest) continue;
+
+            if (link.getAllowedModes().size() == 1) {
+                links.add(link.getId());
+            } else {
+                var remaining = new HashSet<>(link.getAllowedModes());
+                remaining.remove(mode);
+                link.setAllowedModes(remaining);
+                withoutMode++;
+            }
+        }
+        removeLinks(links);
+
+        log.info(String.format("Kept the largest %s component with %d nodes in %.1fs. Links: %d -> %d, links which lost %s: %d",
+                mode, sizes[largest], (System.nanoTime() - start) / 1e9, linksBefore, network.getLinks().size(), mode, withoutMode));
+        return this;
+    }
+
+    /**
+     * Finds chains of links through nodes without junctions, whose links have the same modes, speed, capacity, lanes
+     * and attributes. The network is not changed until {@link #applyContraction()}.
+     */
+    public NetworkReduction findChains() {
+        var start = System.nanoTime();
+        var maxLength = network.getLinks().size();
+
+        for (var link : network.getLinks().values()) {
+            if (isPassThrough(link.getFromNode())) continue;
+
+            var chain = new ArrayList<Link>();
+            chain.add(link);
+            var current = link;
+            while (isPassThrough(current.getToNode()) && chain.size() < maxLength) {
+                current = next(current);
+                chain.add(current);
+            }
+
+            // merging a loop would create a link from a node to itself
+            if (chain.size() < 2 || current.getToNode() == link.getFromNode()) continue;
+
+            chains.add(chain);
+            for (var i = 1; i < chain.size(); i++) {
+                merged.put(chain.get(i).getId(), link.getId());
+            }
+        }
+
+        log.info(String.format("Found %d chains of %d links in %.1fs", chains.size(), merged.size() + chains.size(), (System.nanoTime() - start) / 1e9));
+        return this;
+    }
+
+    /**
+     * Whether the link is still part of the network after {@link #applyContraction()}. Links of chains are only kept
+     * as the first link of their chain, which becomes the merged link.
+     */
+    public boolean keepsLink(Id<Link> linkId) {
+        return !merged.containsKey(linkId);
+    }
+
+    /**
+     * Replaces each chain by one link. Plans must be rewritten by {@link #run(Plan)} before.
+     */
+    public void applyContraction() {
+        var linksBefore = network.getLinks().size();
+        var nodesBefore = network.getNodes().size();
+
+        var interiorNodes = new HashSet<Id<Node>>();
+        for (var chain : chains) {
+            for (var i = 0; i < chain.size() - 1; i++) {
+                interiorNodes.add(chain.get(i).getToNode().getId());
+            }
+            for (var link : chain) {
+                network.removeLink(link.getId());
+            }
+        }
+        for (var node : interiorNodes) {
+            network.removeNode(node);
+        }
+
+        for (var chain : chains) {
+            var first = chain.get(0);
+            var last = chain.get(chain.size() - 1);
+            var link = network.getFactory().createLink(first.getId(), first.getFromNode(), last.getToNode());
+            link.setLength(chain.stream().mapToDouble(Link::getLength).sum());
+            link.setFreespeed(first.getFreespeed());
+            link.setCapacity(first.getCapacity());
+            link.setNumberOfLanes(first.getNumberOfLanes());
+            link.setAllowedModes(first.getAllowedModes());
+            AttributesUtils.copyAttributesFromTo(first, link);
+            network.addLink(link);
+        }
+        chains.clear();
+
+        log.info("Merged chains. Links: {} -> {}, nodes: {} -> {}", linksBefore, network.getLinks().size(), nodesBefore, network.getNodes().size());
+    }
+
+    /**
+     * Replaces links of activities and routes, which are part of a chain, by the merged link. Rewriting a plan twice
+     * gives the same plan.
+     */
+    @Override
+    public void run(Plan plan) {
+        if (merged.isEmpty()) return;
+
+        for (var element : plan.getPlanElements()) {
+            if (element instanceof Activity act) {
+                if (act.getLinkId() != null) act.setLinkId(map(act.getLinkId()));
+            } else if (element instanceof Leg leg && leg.getRoute() != null) {
+                var route = leg.getRoute();
+                var startLinkId = map(route.getStartLinkId());
+                var endLinkId = map(route.getEndLinkId());
+
+                if (route instanceof NetworkRoute networkRoute) {
+                    // routes may share the links with cached routes, so the route is copied
+                    var linkIds = new ArrayList<Id<Link>>(networkRoute.getLinkIds().size());
+                    var previous = startLinkId;
+                    for (var linkId : networkRoute.getLinkIds()) {
+                        var mapped = map(linkId);
+                        if (!mapped.equals(previous)) linkIds.add(mapped);
+                        previous = mapped;
+                    }
+                    if (!linkIds.isEmpty() && linkIds.get(linkIds.size() - 1).equals(endLinkId)) {
+                        linkIds.remove(linkIds.size() - 1);
+                    }
+                    if (linkIds.size() == networkRoute.getLinkIds().size() && startLinkId.equals(route.getStartLinkId()) && endLinkId.equals(route.getEndLinkId())) continue;
+
+                    var copy = networkRoute.clone();
+                    copy.setLinkIds(startLinkId, linkIds, endLinkId);
+                    leg.setRoute(copy);
+                } else if (!Objects.equals(startLinkId, route.getStartLinkId()) || !Objects.equals(endLinkId, route.getEndLinkId())) {
+                    var copy = route.clone();
+                    copy.setStartLinkId(startLinkId);
+                    copy.setEndLinkId(endLinkId);
+                    leg.setRoute(copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes old link id and new link id of every merged link, and the old link id with an empty new id of every
+     * removed link.
+     */
+    public void writeMapping(Path file) {
+        try (var writer = Files.newBufferedWriter(file)) {
+            writer.write("link;reduced_link\n");
+            for (var entry : merged.entrySet()) {
+                writer.write(entry.getKey() + ";" + entry.getValue() + "\n");
+            }
+            for (var linkId : removed) {
+                writer.write(linkId + ";\n");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Id<Link> map(Id<Link> linkId) {
+        return linkId == null ? null : merged.getOrDefault(linkId, linkId);
+    }
+
+    private void removeLinks(List<Id<Link>> links) {
+        for (var linkId : links) {
+            network.removeLink(linkId);
+        }
+        removed.addAll(links);
+
+        var emptyNodes = network.getNodes().values().stream()
+                .filter(node -> node.getInLinks().isEmpty() && node.getOutLinks().isEmpty())
+                .map(Node::getId)
+                .toList();
+        for (var node : emptyNodes) {
+            network.removeNode(node);
+        }
+    }
+
+    /**
+     * A node without junction has one link in and one out, or two links in and two out, which connect the same two
+     * neighbours in both directions. The links in the direction of travel must have the same properties and attributes.
+     */
+    private boolean isPassThrough(Node node) {
+        var in = node.getInLinks().values();
+        var out = node.getOutLinks().values();
+        if (in.size() != out.size() || in.isEmpty() || in.size() > 2) return false;
+
+        for (var inLink : in) {
+            var outLinks = out.stream().filter(outLink -> outLink.getToNode() != inLink.getFromNode()).toList();
+            if (outLinks.size() != 1 || !hasSameProperties(inLink, outLinks.get(0))) return false;
+        }
+        // two links in, which must come from different neighbours
+        return in.size() == 1 || in.stream().map(Link::getFromNode).distinct().count() == 2;
+    }
+
+    private static Link next(Link link) {
+        return link.getToNode().getOutLinks().values().stream()
+                .filter(outLink -> outLink.getToNode() != link.getFromNode())
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static boolean hasSameProperties(Link a, Link b) {
+        return a.getFreespeed() == b.getFreespeed()
+                && a.getCapacity() == b.getCapacity()
+                && a.getNumberOfLanes() == b.getNumberOfLanes()
+                && a.getAllowedModes().equals(b.getAllowedModes())
+                && a.getAttributes().getAsMap().equals(b.getAttributes().getAsMap());
+    }
+
+    /**
+     * Iterative version of Tarjan's algorithm on a graph in compressed sparse row format.
+     *
+     * @return component of each node
+     */
+    static int[] stronglyConnectedComponents(int[] offsets, int[] targets) {
+        var n = offsets.length - 1;
+        var order = new int[n];
+        var lowLink = new int[n];
+        var components = new int[n];
+        Arrays.fill(order, -1);
+        var onStack = new boolean[n];
+        var stack = new int[n];
+        var stackSize = 0;
+        var callStack = new int[n];
+        var nextEdge = new int[n];
+        var counter = 0;
+        var numberOfComponents = 0;
+
+        for (var root = 0; root < n; root++) {
+            if (order[root] >= 0) continue;
+
+            var depth = 0;
+            callStack[depth] = root;
+            order[root] = lowLink[root] = counter++;
+            nextEdge[root] = offsets[root];
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                var node = callStack[depth];
+                if (nextEdge[node] < offsets[node + 1]) {
+                    var target = targets[nextEdge[node]++];
+                    if (order[target] < 0) {
+                        order[target] = lowLink[target] = counter++;
+                        nextEdge[target] = offsets[target];
+                        stack[stackSize++] = target;
+                        onStack[target] = true;
+                        callStack[++depth] = target;
+                    } else if (onStack[target]) {
+                        lowLink[node] = Math.min(lowLink[node], order[target]);
+                    }
+                    continue;
+                }
+
+                if (lowLink[node] == order[node]) {
+                    int member;
+                    do {
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        components[member] = numberOfComponents;
+                    } while (member != node);
+                    numberOfComponents++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    var parent = callStack[depth];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+            }
+        }
+        return components;
+    }
+}
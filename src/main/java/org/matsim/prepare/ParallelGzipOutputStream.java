@@ -0,0 +1,242 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream which compresses independent blocks on a thread pool. Each block becomes a gzip member in the
+ * BGZF layout used by bgzip/htslib, i.e. the header carries the compressed size of the member in a 'BC' extra field,
+ * and the file ends with an empty member. Concatenated members are valid gzip, so any gzip reader can open the file.
+ * <p>
+ * Block boundaries only depend on the number of bytes written, not on calls to {@link #flush()}, so the output is the
+ * same for the same input and block size.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final Logger log = LogManager.getLogger(ParallelGzipOutputStream.class);
+
+    /**
+     * Largest uncompressed block which is guaranteed to fit into a BGZF member of 64KB, even if it does not compress.
+     */
+    public static final int MAX_BLOCK_SIZE = 0xff00;
+    private static final int MAX_MEMBER_SIZE = 0x10000;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+    private static final byte[] EOF_MEMBER = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    // shared by all streams, so that twelve writers do not start twelve pools
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                var thread = new Thread(runnable, "gzip-compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ThreadLocal<Compressor> compressors = ThreadLocal.withInitial(Compressor::new);
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int level;
+    private final int maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors();
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    private final long startTime = System.nanoTime();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, MAX_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int blockSize, int level) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be in [1, " + MAX_BLOCK_SIZE + "] but was: " + blockSize);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) submitBlock();
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            var n = Math.min(length, blockSize - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength == blockSize) submitBlock();
+        }
+    }
+
+    /**
+     * Writes all compressed blocks which are finished. The current block is not cut short, as this would make the
+     * output depend on when flush is called.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            writeMember(pending.poll());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        // the file is closed even if a block fails, and blocks which are not written any more are not compressed either
+        try {
+            if (blockLength > 0) submitBlock();
+            while (!pending.isEmpty()) {
+                writeMember(pending.poll());
+            }
+            out.write(EOF_MEMBER);
+            bytesOut += EOF_MEMBER.length;
+        } finally {
+            for (var future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+
+        var wallSeconds = (System.nanoTime() - startTime) / 1e9;
+        var cpuSeconds = compressionNanos.get() / 1e9;
+        var mb = bytesIn / 1024. / 1024.;
+        log.info(String.format("Compressed %.1fMB to %.1fMB (%.1f%%). %.1fMB/s over %.1fs wall time, %.1fMB/s per thread",
+                mb, bytesOut / 1024. / 1024., 100. * bytesOut / Math.max(1, bytesIn), mb / Math.max(wallSeconds, 1e-9), wallSeconds,
+                mb / Math.max(cpuSeconds, 1e-9)));
+    }
+
+    private void submitBlock() throws IOException {
+        var data = block;
+        var length = blockLength;
+        bytesIn += length;
+        pending.add(executor.submit(() -> {
+            var start = System.nanoTime();
+            var member = compressors.get().compress(data, length, level);
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            return member;
+        }));
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        // don't run away from the compressor threads
+        while (pending.size() > maxPendingBlocks) {
+            writeMember(pending.poll());
+        }
+    }
+
+    private void writeMember(Future<byte[]> future) throws IOException {
+        try {
+            var member = future.get();
+            out.write(member);
+            bytesOut += member.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    private static class Compressor {
+
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[MAX_MEMBER_SIZE];
+        private Deflater deflater;
+        private int level = Integer.MIN_VALUE;
+
+        byte[] compress(byte[] data, int length, int level) {
+            var size = deflate(data, length, level);
+            // if the data does not compress it might not fit into a member. Stored blocks always fit.
+            if (size < 0) size = deflate(data, length, Deflater.NO_COMPRESSION);
+
+            crc.reset();
+            crc.update(data, 0, length);
+            var memberSize = HEADER_SIZE + size + FOOTER_SIZE;
+
+            var member = new byte[memberSize];
+            System.arraycopy(buffer, 0, member, HEADER_SIZE, size);
+            writeHeader(member, memberSize);
+            writeInt(member, HEADER_SIZE + size, (int) crc.getValue());
+            writeInt(member, HEADER_SIZE + size + 4, length);
+            return member;
+        }
+
+        /**
+         * @return number of compressed bytes in the buffer, or -1 if they don't fit into one member.
+         */
+        private int deflate(byte[] data, int length, int level) {
+            if (deflater == null || this.level != level) {
+                if (deflater != null) deflater.end();
+                deflater = new Deflater(level, true);
+                this.level = level;
+            }
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            var maxSize = MAX_MEMBER_SIZE - HEADER_SIZE - FOOTER_SIZE;
+            var size = 0;
+            while (!deflater.finished()) {
+                if (size == maxSize) return -1;
+                size += deflater.deflate(buffer, size, maxSize - size);
+            }
+            return size;
+        }
+
+        private static void writeHeader(byte[] member, int memberSize) {
+            member[0] = 0x1f;
+            member[1] = (byte) 0x8b;
+            member[2] = 8; // deflate
+            member[3] = 4; // FEXTRA
+            // bytes 4-7: mtime = 0, 8: extra flags = 0
+            member[9] = (byte) 0xff; // unknown OS
+            member[10] = 6; // XLEN
+            member[11] = 0;
+            member[12] = 'B';
+            member[13] = 'C';
+            member[14] = 2; // SLEN
+            member[15] = 0;
+            member[16] = (byte) (memberSize - 1);
+            member[17] = (byte) ((memberSize - 1) >> 8);
+        }
+
+        private static void writeInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+            bytes[offset + 2] = (byte) (value >> 16);
+            bytes[offset + 3] = (byte) (value >> 24);
+        }
+    }
+}
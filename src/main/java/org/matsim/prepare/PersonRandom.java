@@ -0,0 +1,61 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+/**
+ * Counter based random numbers for decisions about a single person. Each number is a hash of seed, stream, person id
+ * and a counter, so it does not depend on how many numbers were drawn before or on which thread. Upscaling therefore
+ * produces the same clones and samples, no matter in which order or on how many threads the persons are processed.
+ * <p>
+ * Decisions of different kinds use different streams, so that e.g. the number of clones of a person is independent of
+ * whether the person is sampled into a file.
+ */
+public final class PersonRandom {
+
+    public static final long DEFAULT_SEED = 42;
+
+    // number of clones of a person, see SimpleUpscaleAlgorithm
+    public static final long CLONES = 1;
+    // whether a person is written into a sample, see PopulationXmlWriter
+    public static final long SAMPLE = 2;
+    // offsets of the activity coordinates of a clone, see UpscalePopulation
+    public static final long JITTER = 3;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private PersonRandom() {
+    }
+
+    /**
+     * @return a uniformly distributed number in [0, 1)
+     */
+    public static double nextDouble(long seed, long stream, Id<Person> personId, long counter) {
+        return (nextLong(seed, stream, personId, counter) >>> 11) * 0x1.0p-53;
+    }
+
+    public static long nextLong(long seed, long stream, Id<Person> personId, long counter) {
+        var key = mix64(seed + GOLDEN_GAMMA * stream);
+        key = mix64(key ^ hash(personId.toString()));
+        return mix64(key + GOLDEN_GAMMA * (counter + 1));
+    }
+
+    /**
+     * 64 bit FNV-1a over the chars of the id. String.hashCode has only 32 bits, which collide too often for hundreds of
+     * millions of clones.
+     */
+    static long hash(String value) {
+        var hash = 0xcbf29ce484222325L;
+        for (var i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // finalizer of SplittableRandom
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,284 @@
+package org.matsim.prepare;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Filters a plans file on its way into the population reader. Each person element is collected as raw bytes and its
+ * selected plan is checked before any parsing: persons with a rejected leg mode or routing mode are dropped entirely,
+ * all other persons are passed on with their selected plan only. This way, the reader builds neither the persons which
+ * are dropped later anyway nor their unselected plans.
+ * <p>
+ * As MATSim does, the selected plan is the last plan with selected="yes", or the first plan if none is selected.
+ * Anything which is not understood, e.g. a person without end tag, is passed on unchanged, so that the reader reports
+ * it.
+ */
+public class PlansPreFilter extends InputStream {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final byte[] PERSON_START = bytes("<person");
+    private static final byte[] PERSON_END = bytes("</person>");
+    private static final byte[] PLAN_START = bytes("<plan");
+    private static final byte[] PLAN_END = bytes("</plan>");
+    private static final byte[] LEG_START = bytes("<leg");
+    private static final byte[] SELECTED = bytes("selected");
+    private static final byte[] MODE = bytes("mode");
+    private static final byte[] ROUTING_MODE = bytes("name=\"routingMode\"");
+
+    private final InputStream in;
+    private final Predicate<String> rejectedMode;
+
+    // input which is not passed on yet. A person is only filtered once it is complete
+    private byte[] input = new byte[CHUNK_SIZE];
+    private int inputStart, inputEnd;
+    private boolean eof;
+
+    // filtered bytes, which the reader has not taken yet
+    private byte[] output = new byte[CHUNK_SIZE];
+    private int outputStart, outputEnd;
+
+    private int[] planStarts = new int[8];
+    private int[] planEnds = new int[8];
+
+    public PlansPreFilter(InputStream in, Predicate<String> rejectedMode) {
+        this.in = in;
+        this.rejectedMode = rejectedMode;
+    }
+
+    /**
+     * Drops the persons which {@link UpscaleAlgorithm#isPtPerson(org.matsim.api.core.v01.population.Person)} would
+     * drop, and unselected plans, which {@link UpscaleAlgorithm#removeExceptSelectedPlan} would remove.
+     */
+    public static PlansPreFilter dropPtPersons(InputStream in) {
+        return new PlansPreFilter(in, UpscaleAlgorithm::isPtMode);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outputStart == outputEnd && !fill()) return -1;
+        return output[outputStart++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (outputStart == outputEnd && !fill()) return -1;
+        var n = Math.min(length, outputEnd - outputStart);
+        System.arraycopy(output, outputStart, bytes, offset, n);
+        outputStart += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return false once everything is passed on.
+     */
+    private boolean fill() throws IOException {
+        outputStart = 0;
+        outputEnd = 0;
+        while (outputEnd == 0) {
+            var personStart = indexOfTag(inputStart, inputEnd, PERSON_START);
+            if (personStart < 0) {
+                // keep a tail which could be the beginning of the next person
+                var end = eof ? inputEnd : Math.max(inputStart, inputEnd - PERSON_START.length);
+                append(inputStart, end);
+                inputStart = end;
+            } else {
+                append(inputStart, personStart);
+                inputStart = personStart;
+                var personEnd = elementEnd(personStart, inputEnd, PERSON_END);
+                if (personEnd >= 0) {
+                    inputStart = personEnd;
+                    filterPerson(personStart, personEnd);
+                    continue;
+                }
+                if (eof) {
+                    append(inputStart, inputEnd);
+                    inputStart = inputEnd;
+                }
+            }
+
+            if (outputEnd == 0) {
+                if (eof) return false;
+                readInput();
+            }
+        }
+        return true;
+    }
+
+    private void readInput() throws IOException {
+        if (inputStart > 0) {
+            System.arraycopy(input, inputStart, input, 0, inputEnd - inputStart);
+            inputEnd -= inputStart;
+            inputStart = 0;
+        }
+        if (inputEnd == input.length) {
+            // a person larger than the buffer
+            input = Arrays.copyOf(input, input.length * 2);
+        }
+        var n = in.read(input, inputEnd, input.length - inputEnd);
+        if (n < 0) {
+            eof = true;
+        } else {
+            inputEnd += n;
+        }
+    }
+
+    private void filterPerson(int start, int end) {
+        var plans = 0;
+        var selected = -1;
+        var i = start;
+        int planStart;
+        while ((planStart = indexOfTag(i, end, PLAN_START)) >= 0) {
+            var planEnd = elementEnd(planStart, end, PLAN_END);
+            if (planEnd < 0) {
+                append(start, end);
+                return;
+            }
+
+            if (plans == planStarts.length) {
+                planStarts = Arrays.copyOf(planStarts, plans * 2);
+                planEnds = Arrays.copyOf(planEnds, plans * 2);
+            }
+            planStarts[plans] = planStart;
+            planEnds[plans] = planEnd;
+            if ("yes".equals(attributeValue(planStart, indexOf(planStart, planEnd, (byte) '>'), SELECTED))) selected = plans;
+            plans++;
+            i = planEnd;
+        }
+        if (plans == 0) {
+            append(start, end);
+            return;
+        }
+        if (selected < 0) selected = 0;
+
+        if (rejects(planStarts[selected], planEnds[selected])) {
+            StageStats.get(StageStats.READ).increment();
+            StageStats.get(StageStats.PT_DROPPED).increment();
+            return;
+        }
+
+        // everything but the unselected plans, which keeps the attributes of the person
+        var from = start;
+        for (var p = 0; p < plans; p++) {
+            if (p == selected) continue;
+            append(from, planStarts[p]);
+            from = planEnds[p];
+        }
+        append(from, end);
+        StageStats.get(StageStats.SKIPPED_PLANS).add(plans - 1);
+    }
+
+    private boolean rejects(int planStart, int planEnd) {
+        var i = planStart;
+        int legStart;
+        while ((legStart = indexOfTag(i, planEnd, LEG_START)) >= 0) {
+            var tagEnd = indexOf(legStart, planEnd, (byte) '>');
+            if (tagEnd < 0) break;
+            var mode = attributeValue(legStart, tagEnd, MODE);
+            if (mode != null && rejectedMode.test(mode)) return true;
+            i = tagEnd;
+        }
+
+        // routing modes are attributes of the legs: <attribute name="routingMode" ...>pt</attribute>
+        i = planStart;
+        int attribute;
+        while ((attribute = indexOf(i, planEnd, ROUTING_MODE)) >= 0) {
+            var valueStart = indexOf(attribute, planEnd, (byte) '>') + 1;
+            var valueEnd = valueStart == 0 ? -1 : indexOf(valueStart, planEnd, (byte) '<');
+            if (valueEnd < 0) break;
+            if (rejectedMode.test(string(valueStart, valueEnd).trim())) return true;
+            i = valueEnd;
+        }
+        return false;
+    }
+
+    /**
+     * @return offset behind the element which starts at start, i.e. behind its end tag or its self-closing start tag,
+     * or -1 if the element does not end before end.
+     */
+    private int elementEnd(int start, int end, byte[] endTag) {
+        var tagEnd = indexOf(start, end, (byte) '>');
+        if (tagEnd < 0) return -1;
+        if (input[tagEnd - 1] == '/') return tagEnd + 1;
+        var endTagStart = indexOf(tagEnd, end, endTag);
+        return endTagStart < 0 ? -1 : endTagStart + endTag.length;
+    }
+
+    /**
+     * @return value of the attribute in the tag between start and end, or null if the tag does not have it.
+     */
+    private String attributeValue(int start, int end, byte[] name) {
+        for (var i = indexOf(start, end, name); i >= 0; i = indexOf(i + name.length, end, name)) {
+            if (!isWhitespace(input[i - 1])) continue;
+            var j = i + name.length;
+            while (j < end && isWhitespace(input[j])) j++;
+            if (j >= end || input[j] != '=') continue;
+            j++;
+            while (j < end && isWhitespace(input[j])) j++;
+            if (j >= end || (input[j] != '"' && input[j] != '\'')) return null;
+            var valueEnd = indexOf(j + 1, end, input[j]);
+            return valueEnd < 0 ? null : string(j + 1, valueEnd);
+        }
+        return null;
+    }
+
+    private void append(int start, int end) {
+        var length = end - start;
+        if (length <= 0) return;
+        if (outputEnd + length > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputEnd + length));
+        }
+        System.arraycopy(input, start, output, outputEnd, length);
+        outputEnd += length;
+    }
+
+    private String string(int start, int end) {
+        return new String(input, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Finds a start tag, i.e. the pattern followed by whitespace, '>' or '/', which tells &lt;plan from &lt;planX.
+     */
+    private int indexOfTag(int from, int to, byte[] tag) {
+        for (var i = indexOf(from, to, tag); i >= 0; i = indexOf(i + 1, to, tag)) {
+            var next = i + tag.length;
+            if (next >= to) return -1;
+            if (isWhitespace(input[next]) || input[next] == '>' || input[next] == '/') return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(int from, int to, byte b) {
+        for (var i = from; i < to; i++) {
+            if (input[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(int from, int to, byte[] pattern) {
+        outer:
+        for (var i = from; i <= to - pattern.length; i++) {
+            for (var j = 0; j < pattern.length; j++) {
+                if (input[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
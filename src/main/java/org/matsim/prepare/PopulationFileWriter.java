@@ -0,0 +1,14 @@
+package org.matsim.prepare;
+
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+
+/**
+ * Writer which streams persons into a file, such as {@link PopulationXmlWriter} or {@link BinaryPopulationWriter}.
+ */
+public interface PopulationFileWriter extends PersonAlgorithm {
+
+    /**
+     * Finishes the file. Persons passed after this call are lost.
+     */
+    void closeStreaming();
+}
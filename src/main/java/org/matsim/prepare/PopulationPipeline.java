@@ -0,0 +1,447 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.io.StreamingPopulationReader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs a chain of {@link PersonAlgorithm}s on a pool of worker threads instead of the thread of the
+ * {@link StreamingPopulationReader}. The reader thread only parses and puts persons into a bounded queue. Everything
+ * the chain emits for a person is collected and handed to the writers on a single thread in input order, so that the
+ * output is the same as when running the chain sequentially. Persons for an {@link EncodedPopulationWriter} are
+ * encoded on the workers with the encoders of the writer, so that the writer thread only copies bytes. All persons
+ * between parsing and writing, and everything the chain emits for them, count against a memory budget, which blocks
+ * the reader once the writer falls behind.
+ */
+public class PopulationPipeline implements PersonAlgorithm, AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(PopulationPipeline.class);
+
+    // rough estimate of the heap a plan element occupies, including routes and attributes
+    private static final int BYTES_PER_PLAN_ELEMENT = 512;
+    private static final Task END = new Task(-1, null, 0);
+
+    private final List<? extends PersonAlgorithm> writers;
+    private final BlockingQueue<Task> queue;
+    private final Semaphore budget;
+    private final int budgetKb;
+    private final List<Thread> workers = new ArrayList<>();
+    private final Thread writerThread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition resultAvailable = lock.newCondition();
+    private final Condition resultWritten = lock.newCondition();
+    private final Map<Long, Result> results = new HashMap<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private int runningWorkers;
+    private long nextSequence = 0;
+    // sequence of the result the writer waits for
+    private long nextToWrite = 0;
+
+    public PopulationPipeline(int threads, int memoryBudgetMb, Function<PersonAlgorithm, PersonAlgorithm> chain, PersonAlgorithm writer) {
+        this(threads, memoryBudgetMb, sinks -> chain.apply(sinks.get(0)), List.of(writer));
+    }
+
+    /**
+     * @param threads        number of worker threads running the algorithm chain
+     * @param memoryBudgetMb upper bound for the estimated heap of persons between parsing and writing
+     * @param chain          creates one algorithm chain per worker. The argument holds one end of the chain per writer,
+     *                       which collects the output of the worker for that writer.
+     * @param writers        receive the output of all workers in input order. Are only called from one thread.
+     *                       {@link EncodedPopulationWriter}s receive blocks which the workers encoded.
+     */
+    public PopulationPipeline(int threads, int memoryBudgetMb, Function<List<PersonAlgorithm>, PersonAlgorithm> chain, List<? extends PersonAlgorithm> writers) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Pipeline needs at least one worker thread, but got: " + threads);
+        }
+        this.writers = writers;
+        this.budgetKb = Math.max(1, memoryBudgetMb) * 1024;
+        this.budget = new Semaphore(budgetKb);
+        this.queue = new ArrayBlockingQueue<>(threads * 64);
+        this.runningWorkers = threads;
+
+        for (var i = 0; i < threads; i++) {
+            workers.add(new Thread(() -> work(chain), "pipeline-worker-" + i));
+        }
+        writerThread = new Thread(this::write, "pipeline-writer");
+        workers.forEach(Thread::start);
+        writerThread.start();
+    }
+
+    /**
+     * Reads the plans file and runs the chain on each person. With threads < 1 the chain runs on the reader thread,
+     * otherwise persons are passed through a {@link PopulationPipeline}.
+     *
+     * @param dropPtPersons skip pt persons and unselected plans while parsing, see {@link PlansPreFilter}
+     */
+    public static void readFile(Scenario scenario, String plansFile, boolean dropPtPersons, int threads, int memoryBudgetMb, Function<PersonAlgorithm, PersonAlgorithm> chain, PersonAlgorithm writer) {
+        readFile(scenario, plansFile, dropPtPersons, threads, memoryBudgetMb, sinks -> chain.apply(sinks.get(0)), List.of(writer));
+    }
+
+    /**
+     * Same as above, but for chains which pass persons to several writers.
+     */
+    public static void readFile(Scenario scenario, String plansFile, boolean dropPtPersons, int threads, int memoryBudgetMb, Function<List<PersonAlgorithm>, PersonAlgorithm> chain, List<? extends PersonAlgorithm> writers) {
+        var reader = new StreamingPopulationReader(scenario);
+        if (threads < 1) {
+            reader.addAlgorithm(chain.apply(List.copyOf(writers)));
+            parse(reader, plansFile, dropPtPersons);
+            return;
+        }
+
+        log.info("Processing persons with {} worker threads and a memory budget of {}MB", threads, memoryBudgetMb);
+        try (var pipeline = new PopulationPipeline(threads, memoryBudgetMb, chain, writers)) {
+            reader.addAlgorithm(pipeline);
+            parse(reader, plansFile, dropPtPersons);
+        }
+    }
+
+    /**
+     * Reads plain and gzipped plans files through {@link StageStats#trackInput(Path)}, which gives the progress log an
+     * ETA, and optionally through {@link PlansPreFilter#dropPtPersons}. Other files and URLs are read by the reader
+     * itself, which leaves dropping pt persons to the algorithms.
+     */
+    static void parse(StreamingPopulationReader reader, String plansFile, boolean dropPtPersons) {
+        var file = Path.of(plansFile);
+        if (!Files.isRegularFile(file) || !(plansFile.endsWith(".xml") || plansFile.endsWith(".xml.gz"))) {
+            reader.readFile(plansFile);
+            return;
+        }
+        try (var in = StageStats.trackInput(file)) {
+            InputStream data = plansFile.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : new BufferedInputStream(in, 1 << 16);
+            reader.parse(dropPtPersons ? PlansPreFilter.dropPtPersons(data) : data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void run(Person person) {
+        var weight = toKb(bytesOf(person));
+        var task = new Task(nextSequence++, person, weight);
+        try {
+            while (!budget.tryAcquire(weight, 1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+            put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits until all persons passed to {@link #run(Person)} are written.
+     */
+    @Override
+    public void close() {
+        try {
+            for (var ignored : workers) {
+                put(END);
+            }
+            for (var worker : workers) {
+                worker.join();
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        checkFailure();
+        log.info("Pipeline finished after {} persons", nextSequence);
+    }
+
+    private void put(Task task) throws InterruptedException {
+        while (!queue.offer(task, 1, TimeUnit.SECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void work(Function<List<PersonAlgorithm>, PersonAlgorithm> chainFactory) {
+        var collectors = writers.stream()
+                .map(writer -> writer instanceof EncodedPopulationWriter encoded ? new EncodedCollector(encoded) : new PersonCollector(writer))
+                .toList();
+        var chain = chainFactory.apply(List.<PersonAlgorithm>copyOf(collectors));
+        try {
+            while (failure.get() == null) {
+                var task = queue.poll(1, TimeUnit.SECONDS);
+                if (task == null) continue;
+                if (task == END) break;
+
+                chain.run(task.person());
+                var outputs = collectors.stream()
+                        .map(Collector::drain)
+                        .toList();
+                var charged = charge(task.sequence(), toKb(outputs.stream().mapToLong(Output::bytes).sum()));
+                complete(new Result(task.sequence(), outputs, task.weight() + charged));
+            }
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            lock.lock();
+            try {
+                runningWorkers--;
+                resultAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquires the budget for the output of a person before it is queued, which the writer releases after writing it.
+     * Workers wait while the budget is used up, except for the output the writer waits for. It takes what is left of
+     * the budget, because otherwise workers could hold all of it with later outputs.
+     *
+     * @return the acquired budget in kb
+     */
+    private int charge(long sequence, int kb) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!budget.tryAcquire(kb)) {
+                checkFailure();
+                if (sequence == nextToWrite) return budget.drainPermits();
+                resultWritten.await();
+            }
+            return kb;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Result result) {
+        lock.lock();
+        try {
+            results.put(result.sequence(), result);
+            resultAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Result result;
+                lock.lock();
+                try {
+                    while ((result = results.remove(nextToWrite)) == null) {
+                        if (runningWorkers == 0 || failure.get() != null) return;
+                        resultAvailable.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for (var output : result.outputs()) {
+                    output.write();
+                }
+                budget.release(result.weight());
+                lock.lock();
+                try {
+                    nextToWrite++;
+                    resultWritten.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        failure.compareAndSet(null, e);
+        lock.lock();
+        try {
+            resultAvailable.signalAll();
+            resultWritten.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        var e = failure.get();
+        if (e != null) {
+            throw new RuntimeException("Population pipeline failed.", e);
+        }
+    }
+
+    private static long bytesOf(Person person) {
+        // clones share the plan of their original
+        if (person instanceof ClonedPerson) return BYTES_PER_PLAN_ELEMENT;
+
+        var elements = person.getPlans().stream()
+                .mapToInt(plan -> plan.getPlanElements().size())
+                .sum();
+        return (1L + elements) * BYTES_PER_PLAN_ELEMENT;
+    }
+
+    private int toKb(long bytes) {
+        // a single person larger than the budget must still be able to pass
+        return (int) Math.min((bytes + 1023) / 1024, budgetKb);
+    }
+
+    private record Task(long sequence, Person person, int weight) {
+    }
+
+    private record Result(long sequence, List<Output> outputs, int weight) {
+    }
+
+    /**
+     * What the chain of a worker emitted for one person and one writer.
+     */
+    private interface Output {
+
+        /**
+         * Passes the output to the writer. Only called from the writer thread.
+         */
+        void write();
+
+        /**
+         * Estimated heap of the output.
+         */
+        long bytes();
+    }
+
+    private record PersonOutput(PersonAlgorithm writer, List<Person> persons) implements Output {
+
+        @Override
+        public void write() {
+            persons.forEach(writer::run);
+        }
+
+        @Override
+        public long bytes() {
+            return persons.stream().mapToLong(PopulationPipeline::bytesOf).sum();
+        }
+    }
+
+    private record EncodedOutput(EncodedPopulationWriter writer, PopulationXmlEncoder block) implements Output {
+
+        @Override
+        public void write() {
+            if (block != null) writer.write(block);
+        }
+
+        @Override
+        public long bytes() {
+            return block == null ? 0 : block.bytes().length;
+        }
+    }
+
+    /**
+     * End of a worker's chain. Algorithms like {@link UpscaleAlgorithm} emit persons from several threads, hence the
+     * synchronization.
+     */
+    private interface Collector extends PersonAlgorithm {
+
+        /**
+         * Returns everything collected since the last call.
+         */
+        Output drain();
+    }
+
+    private static class PersonCollector implements Collector {
+
+        private final PersonAlgorithm writer;
+        private final List<Person> persons = new ArrayList<>();
+
+        PersonCollector(PersonAlgorithm writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void run(Person person) {
+            persons.add(person);
+        }
+
+        @Override
+        public synchronized Output drain() {
+            var result = List.copyOf(persons);
+            persons.clear();
+            return new PersonOutput(writer, result);
+        }
+    }
+
+    /**
+     * Encodes persons with the encoders of the writer and collects persons which were encoded further up the chain,
+     * e.g. by {@link UpscaleAlgorithm}. The output of one person is a single block.
+     */
+    private static class EncodedCollector implements Collector, EncodedPopulationWriter {
+
+        private final EncodedPopulationWriter writer;
+        private PopulationXmlEncoder block;
+
+        EncodedCollector(EncodedPopulationWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void run(Person person) {
+            if (!sample(PopulationXmlWriter.draw(getSeed(), person))) return;
+            block().encode(person);
+        }
+
+        @Override
+        public synchronized void write(PopulationXmlEncoder encoded) {
+            block().append(encoded);
+        }
+
+        private PopulationXmlEncoder block() {
+            if (block == null) block = writer.newEncoder();
+            return block;
+        }
+
+        @Override
+        public synchronized Output drain() {
+            var result = block;
+            block = null;
+            return new EncodedOutput(writer, result);
+        }
+
+        @Override
+        public PopulationXmlEncoder newEncoder() {
+            return writer.newEncoder();
+        }
+
+        @Override
+        public DenseIds getIds() {
+            return writer.getIds();
+        }
+
+        @Override
+        public long getSeed() {
+            return writer.getSeed();
+        }
+
+        @Override
+        public boolean sample(double draw) {
+            return writer.sample(draw);
+        }
+    }
+}
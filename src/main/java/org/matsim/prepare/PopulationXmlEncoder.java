@@ -0,0 +1,532 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.misc.OptionalTime;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.utils.objectattributes.attributable.Attributes;
+import org.matsim.utils.objectattributes.attributable.AttributesImpl;
+import org.matsim.utils.objectattributes.attributable.AttributesXmlWriterDelegate;
+import org.matsim.vehicles.PersonVehicles;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes persons into the population_v6 format, as written by {@link org.matsim.core.population.io.StreamingPopulationWriter},
+ * but into a reusable byte buffer instead of a file. This way persons can be encoded on the thread which creates them
+ * and the writers only have to copy bytes.
+ * <p>
+ * With {@link DenseIds}, links are written with their dense ids. Person and vehicle ids are numbered by each writer on
+ * its own, so they are left open. The encoder records where they go and which ids they replace, see {@link #patches()}.
+ */
+public class PopulationXmlEncoder {
+
+    static final String HEADER = """
+            <?xml version="1.0" encoding="utf-8"?>
+            <!DOCTYPE population SYSTEM "http://www.matsim.org/files/dtd/population_v6.dtd">
+
+            <population>
+
+            <!-- ====================================================================== -->
+
+            """;
+    static final String FOOTER = "</population>\n";
+    static final String SEPARATOR = "\n<!-- ====================================================================== -->\n\n";
+    // patch value of the person id. Other values are indices into the vehicles of the person
+    static final int PERSON = -1;
+
+    private final Buffer buffer = new Buffer();
+    private final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+    private final AttributesXmlWriterDelegate attributesWriter = new AttributesXmlWriterDelegate();
+    private int persons = 0;
+    // start, first patch and first departure of each person, see #record(int)
+    private int[] personStarts = new int[0];
+    private int[] personPatches = new int[0];
+    private double[] departures = new double[0];
+
+    // null writes the original ids
+    private final DenseIds ids;
+    private int[] patchOffsets = new int[0];
+    private int[] patchValues = new int[0];
+    private int patches = 0;
+    private final List<EncodedIds> encodedIds = new ArrayList<>();
+
+    // set while a clone is written. Its vehicles replace the vehicles of the network routes in the shared plan.
+    private ClonedPerson clone;
+    // set while a person is written with dense ids
+    private EncodedIds current;
+
+    /**
+     * Original ids of a person and of the vehicles it uses, in the order of the patch values.
+     */
+    record EncodedIds(String person, List<String> vehicles, List<Id<VehicleType>> vehicleTypes) {
+    }
+
+    public PopulationXmlEncoder() {
+        this(null);
+    }
+
+    public PopulationXmlEncoder(DenseIds ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Appends the person to the buffer
+     */
+    public void encode(Person person) {
+        try {
+            var start = size();
+            var firstPatch = patches;
+            writePerson(person);
+            out.flush();
+            addPerson(start, firstPatch, SortPopulation.firstDeparture(person));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends all persons encoded by the other encoder
+     */
+    public void append(PopulationXmlEncoder other) {
+        var start = size();
+        var firstPatch = patches;
+        for (var i = 0; i < other.persons; i++) {
+            addPerson(start + other.personStarts[i], firstPatch + other.personPatches[i], other.departures[i]);
+        }
+        for (var i = 0; i < other.patches; i++) {
+            addPatch(start + other.patchOffsets[i], other.patchValues[i]);
+        }
+        encodedIds.addAll(other.encodedIds);
+        buffer.write(other.bytes(), 0, other.size());
+    }
+
+    /**
+     * First departure of the person, see {@link SortPopulation}.
+     */
+    double departure(int person) {
+        return departures[person];
+    }
+
+    /**
+     * Copies the person with its open ids into a record, which {@link #appendRecord(byte[])} appends to an encoder
+     * again. Sorting writers hold persons as such records.
+     */
+    byte[] record(int person) {
+        var start = personStarts[person];
+        var end = person + 1 < persons ? personStarts[person + 1] : size();
+        var firstPatch = personPatches[person];
+        var endPatch = person + 1 < persons ? personPatches[person + 1] : patches;
+
+        var record = new ByteArrayOutputStream(end - start + 64);
+        try (var data = new DataOutputStream(record)) {
+            data.writeDouble(departures[person]);
+            data.writeInt(endPatch - firstPatch);
+            for (var i = firstPatch; i < endPatch; i++) {
+                data.writeInt(patchOffsets[i] - start);
+                data.writeInt(patchValues[i]);
+            }
+            if (ids != null) {
+                var personIds = encodedIds.get(person);
+                writeString(data, personIds.person());
+                data.writeInt(personIds.vehicles().size());
+                for (var i = 0; i < personIds.vehicles().size(); i++) {
+                    writeString(data, personIds.vehicles().get(i));
+                    writeString(data, personIds.vehicleTypes().get(i).toString());
+                }
+            }
+            data.write(buffer.bytes(), start, end - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Appends a person which was copied by {@link #record(int)} of an encoder with the same dense ids.
+     */
+    void appendRecord(byte[] record) {
+        var in = ByteBuffer.wrap(record);
+        var start = size();
+        addPerson(start, patches, in.getDouble());
+        var recordPatches = in.getInt();
+        for (var i = 0; i < recordPatches; i++) {
+            var offset = in.getInt();
+            addPatch(start + offset, in.getInt());
+        }
+        if (ids != null) {
+            var person = readString(in);
+            var vehicles = in.getInt();
+            var personIds = new EncodedIds(person, new ArrayList<>(vehicles), new ArrayList<>(vehicles));
+            for (var i = 0; i < vehicles; i++) {
+                personIds.vehicles().add(readString(in));
+                personIds.vehicleTypes().add(Id.create(readString(in), VehicleType.class));
+            }
+            encodedIds.add(personIds);
+        }
+        buffer.write(record, in.position(), in.remaining());
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        var length = in.getInt();
+        var value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Backing array of the buffer. Only the first {@link #size()} bytes are valid.
+     */
+    public byte[] bytes() {
+        return buffer.bytes();
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    /**
+     * Number of persons encoded since the last reset
+     */
+    public int persons() {
+        return persons;
+    }
+
+    public boolean isEmpty() {
+        return persons == 0;
+    }
+
+    /**
+     * Clears the buffer but keeps the allocated memory.
+     */
+    public void reset() {
+        buffer.reset();
+        persons = 0;
+        patches = 0;
+        encodedIds.clear();
+    }
+
+    /**
+     * Number of open ids, which writers insert at {@link #patchOffset(int)} in the order of the offsets. Always 0
+     * without {@link DenseIds}.
+     */
+    int patches() {
+        return patches;
+    }
+
+    int patchOffset(int patch) {
+        return patchOffsets[patch];
+    }
+
+    /**
+     * {@link #PERSON} for the id of the next person of {@link #encodedIds(int)}, otherwise the index of a vehicle of
+     * the current person.
+     */
+    int patchValue(int patch) {
+        return patchValues[patch];
+    }
+
+    EncodedIds encodedIds(int person) {
+        return encodedIds.get(person);
+    }
+
+    private void writePerson(Person person) throws IOException {
+        out.write("\t<person id=\"");
+        if (ids == null) {
+            out.write(XmlText.escape(person.getId().toString()));
+            out.write("\">\n");
+            attributesWriter.writeAttributes("\t\t", out, person.getAttributes());
+        } else {
+            patch(PERSON);
+            out.write("\">\n");
+            writeDenseAttributes(person);
+        }
+
+        if (person instanceof ClonedPerson clonedPerson) {
+            clone = clonedPerson;
+            try {
+                writePlan(clonedPerson.getSelectedPlan(), true);
+            } finally {
+                clone = null;
+            }
+        } else {
+            for (var plan : person.getPlans()) {
+                writePlan(plan, plan == person.getSelectedPlan());
+            }
+        }
+
+        out.write("\t</person>\n");
+        out.write(SEPARATOR);
+        current = null;
+    }
+
+    /**
+     * Writes the attributes of the person, but the ids of its vehicles as patches. The vehicles attribute is written
+     * like MATSim writes {@link PersonVehicles}, in the attributes block of the other attributes.
+     */
+    private void writeDenseAttributes(Person person) throws IOException {
+        Map<String, Id<Vehicle>> vehicles = person.getAttributes().getAttribute("vehicles") == null ? Map.of() : VehicleUtils.getVehicleIds(person);
+        current = new EncodedIds(person.getId().toString(), new ArrayList<>(vehicles.size()), new ArrayList<>(vehicles.size()));
+        encodedIds.add(current);
+        for (var entry : vehicles.entrySet()) {
+            current.vehicles().add(entry.getValue().toString());
+            current.vehicleTypes().add(ids.vehicleType(entry.getKey(), entry.getValue()));
+        }
+        if (vehicles.isEmpty()) {
+            attributesWriter.writeAttributes("\t\t", out, person.getAttributes());
+            return;
+        }
+
+        var others = new AttributesImpl();
+        for (var entry : person.getAttributes().getAsMap().entrySet()) {
+            if (!entry.getKey().equals("vehicles")) others.putAttribute(entry.getKey(), entry.getValue());
+        }
+        if (others.isEmpty()) {
+            out.write("\t\t<attributes>\n");
+            writeVehiclesAttribute(vehicles);
+            out.write("\t\t</attributes>\n");
+            return;
+        }
+
+        var text = new StringWriter();
+        try (var writer = new BufferedWriter(text)) {
+            attributesWriter.writeAttributes("\t\t", writer, others);
+        }
+        var attributes = text.toString();
+        var end = attributes.lastIndexOf('\n', attributes.lastIndexOf("</attributes>")) + 1;
+        out.write(attributes, 0, end);
+        writeVehiclesAttribute(vehicles);
+        out.write(attributes, end, attributes.length() - end);
+    }
+
+    private void writeVehiclesAttribute(Map<String, Id<Vehicle>> vehicles) throws IOException {
+        out.write("\t\t\t<attribute name=\"vehicles\" class=\"");
+        out.write(PersonVehicles.class.getName());
+        out.write("\">{");
+        var i = 0;
+        for (var mode : vehicles.keySet()) {
+            if (i > 0) out.write(',');
+            out.write('"');
+            out.write(XmlText.escape(mode));
+            out.write("\":\"");
+            patch(i++);
+            out.write('"');
+        }
+        out.write("}</attribute>\n");
+    }
+
+    private void writePlan(Plan plan, boolean selected) throws IOException {
+        out.write("\t\t<plan");
+        if (plan.getScore() != null) {
+            writeAttribute("score", plan.getScore().toString());
+        }
+        writeAttribute("selected", selected ? "yes" : "no");
+        if (plan.getType() != null) {
+            writeAttribute("type", plan.getType());
+        }
+        out.write(">\n");
+        attributesWriter.writeAttributes("\t\t\t\t", out, plan.getAttributes());
+
+        for (var element : plan.getPlanElements()) {
+            if (element instanceof Activity act) {
+                writeActivity(act);
+            } else if (element instanceof Leg leg) {
+                writeLeg(leg);
+            }
+        }
+        out.write("\t\t</plan>\n\n");
+    }
+
+    private void writeActivity(Activity act) throws IOException {
+        out.write("\t\t\t<activity");
+        writeAttribute("type", act.getType());
+        if (act.getLinkId() != null) {
+            writeAttribute("link", linkId(act.getLinkId()));
+        }
+        if (act.getFacilityId() != null) {
+            writeAttribute("facility", act.getFacilityId().toString());
+        }
+        if (act.getCoord() != null) {
+            writeAttribute("x", Double.toString(act.getCoord().getX()));
+            writeAttribute("y", Double.toString(act.getCoord().getY()));
+            if (act.getCoord().hasZ()) {
+                writeAttribute("z", Double.toString(act.getCoord().getZ()));
+            }
+        }
+        writeTime("start_time", act.getStartTime());
+        writeTime("max_dur", act.getMaximumDuration());
+        writeTime("end_time", act.getEndTime());
+        out.write(" >\n");
+        attributesWriter.writeAttributes("\t\t\t\t", out, act.getAttributes());
+        out.write("\t\t\t</activity>\n");
+    }
+
+    private void writeLeg(Leg leg) throws IOException {
+        out.write("\t\t\t<leg");
+        writeAttribute("mode", leg.getMode());
+        writeTime("dep_time", leg.getDepartureTime());
+        writeTime("trav_time", leg.getTravelTime());
+        out.write(">\n");
+
+        // the routing mode is a field of the leg, but it is written as attribute
+        Attributes attributes = leg.getAttributes();
+        if (leg.getRoutingMode() != null) {
+            attributes = new AttributesImpl();
+            for (var entry : leg.getAttributes().getAsMap().entrySet()) {
+                attributes.putAttribute(entry.getKey(), entry.getValue());
+            }
+            attributes.putAttribute("routingMode", leg.getRoutingMode());
+        }
+        attributesWriter.writeAttributes("\t\t\t\t", out, attributes);
+
+        if (leg.getRoute() != null) {
+            writeRoute(leg.getRoute(), leg.getMode());
+        }
+        out.write("\t\t\t</leg>\n");
+    }
+
+    private void writeRoute(Route route, String mode) throws IOException {
+        out.write("\t\t\t\t<route");
+        writeAttribute("type", route.getRouteType());
+        writeAttribute("start_link", linkId(route.getStartLinkId()));
+        writeAttribute("end_link", linkId(route.getEndLinkId()));
+        writeTime("trav_time", route.getTravelTime());
+        writeAttribute("distance", Double.toString(route.getDistance()));
+        if (route instanceof NetworkRoute networkRoute && networkRoute.getVehicleId() != null) {
+            var vehicleId = clone == null ? networkRoute.getVehicleId() : clone.getRouteVehicleId(mode);
+            if (ids == null) {
+                writeAttribute("vehicleRefId", vehicleId.toString());
+            } else {
+                out.write(" vehicleRefId=\"");
+                patch(vehicleIndex(vehicleId, mode));
+                out.write('"');
+            }
+        }
+        out.write(">");
+        if (ids != null && route instanceof NetworkRoute networkRoute) {
+            writeDenseLinks(networkRoute);
+        } else {
+            var description = route.getRouteDescription();
+            if (description != null) {
+                out.write(XmlText.escape(description));
+            }
+        }
+        out.write("</route>\n");
+    }
+
+    /**
+     * Writes the route description of the network route with dense link ids. Like MATSim, the end link is left out of
+     * routes which start and end on the same link without passing other links.
+     */
+    private void writeDenseLinks(NetworkRoute route) throws IOException {
+        out.write(ids.link(route.getStartLinkId()));
+        for (var linkId : route.getLinkIds()) {
+            out.write(' ');
+            out.write(ids.link(linkId));
+        }
+        if (!route.getEndLinkId().equals(route.getStartLinkId()) || !route.getLinkIds().isEmpty()) {
+            out.write(' ');
+            out.write(ids.link(route.getEndLinkId()));
+        }
+    }
+
+    private String linkId(Id<Link> linkId) {
+        return ids == null ? linkId.toString() : ids.link(linkId);
+    }
+
+    /**
+     * Index of the vehicle among the vehicles of the current person. Route vehicles which are not among the vehicles of
+     * the person are added, so that they are still numbered and written.
+     */
+    private int vehicleIndex(Id<Vehicle> vehicleId, String mode) {
+        var index = current.vehicles().indexOf(vehicleId.toString());
+        if (index >= 0) return index;
+        current.vehicles().add(vehicleId.toString());
+        current.vehicleTypes().add(ids.vehicleType(mode, vehicleId));
+        return current.vehicles().size() - 1;
+    }
+
+    /**
+     * Leaves an id open at the current end of the buffer.
+     */
+    private void patch(int value) throws IOException {
+        out.flush();
+        addPatch(buffer.size(), value);
+    }
+
+    private void addPerson(int start, int firstPatch, double departure) {
+        if (persons == personStarts.length) {
+            var capacity = Math.max(16, 2 * persons);
+            personStarts = Arrays.copyOf(personStarts, capacity);
+            personPatches = Arrays.copyOf(personPatches, capacity);
+            departures = Arrays.copyOf(departures, capacity);
+        }
+        personStarts[persons] = start;
+        personPatches[persons] = firstPatch;
+        departures[persons] = departure;
+        persons++;
+    }
+
+    private void addPatch(int offset, int value) {
+        if (patches == patchOffsets.length) {
+            var capacity = Math.max(16, 2 * patches);
+            patchOffsets = Arrays.copyOf(patchOffsets, capacity);
+            patchValues = Arrays.copyOf(patchValues, capacity);
+        }
+        patchOffsets[patches] = offset;
+        patchValues[patches] = value;
+        patches++;
+    }
+
+    private void writeTime(String name, OptionalTime time) throws IOException {
+        if (time.isDefined()) {
+            writeAttribute(name, Time.writeTime(time.seconds()));
+        }
+    }
+
+    private void writeAttribute(String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        out.write(XmlText.escape(value));
+        out.write('"');
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(1 << 16);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
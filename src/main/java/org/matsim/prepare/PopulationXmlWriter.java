@@ -0,0 +1,270 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.misc.Counter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Drop in replacement for {@link org.matsim.core.population.io.StreamingPopulationWriter}, which additionally accepts
+ * blocks of persons which were already encoded by a {@link PopulationXmlEncoder}. Writing such a block only holds the
+ * lock of the writer for copying the bytes.
+ * <p>
+ * With {@link DenseIds}, persons and vehicles get dense ids in the order in which they are written. The writer then
+ * also writes the tables of the original person and vehicle ids, and the vehicles of the written persons, e.g.
+ * run-10pct.person-ids.txt.gz, run-10pct.vehicle-ids.txt.gz and run-10pct.vehicles.xml.gz next to
+ * run-10pct.plans.xml.gz.
+ * <p>
+ * With {@link #sortByFirstDeparture(long)}, persons are held in the runs of a {@link SortPopulation} and written when
+ * the writer is closed, so that the file is compressed only once. Dense ids are then assigned in the sorted order.
+ */
+public class PopulationXmlWriter implements PopulationFileWriter, EncodedPopulationWriter {
+
+    private static final Logger log = LogManager.getLogger(PopulationXmlWriter.class);
+
+    private final double fraction;
+    private final long seed;
+    private final DenseIds ids;
+    private final PopulationXmlEncoder encoder;
+    private final Counter counter = new Counter("[" + getClass().getSimpleName() + "] dumped person # ");
+    private OutputStream out;
+    private StageStats.Stage stage;
+    private BufferedWriter personTable;
+    private BufferedWriter vehicleTable;
+    private VehiclesXmlWriter vehiclesWriter;
+    private int writtenPersons = 0;
+    private int writtenVehicles = 0;
+    private long sortMemoryBytes = 0;
+    private SortPopulation.Runs sortRuns;
+
+    public PopulationXmlWriter() {
+        this(1.0);
+    }
+
+    /**
+     * @param fraction fraction of persons which should be written. Values larger than 1 write all persons.
+     */
+    public PopulationXmlWriter(double fraction) {
+        this(fraction, PersonRandom.DEFAULT_SEED);
+    }
+
+    public PopulationXmlWriter(double fraction, long seed) {
+        this(fraction, seed, null);
+    }
+
+    /**
+     * @param ids dense ids of links, and the vehicle types of the persons' vehicles. Null writes the original ids.
+     */
+    public PopulationXmlWriter(double fraction, long seed, DenseIds ids) {
+        this.fraction = fraction;
+        this.seed = seed;
+        this.ids = ids;
+        this.encoder = newEncoder();
+    }
+
+    @Override
+    public PopulationXmlEncoder newEncoder() {
+        return new PopulationXmlEncoder(ids);
+    }
+
+    @Override
+    public DenseIds getIds() {
+        return ids;
+    }
+
+    /**
+     * Writes the persons ordered by their first departure, like {@link SortPopulation}. Must be called before
+     * {@link #startStreaming(String)}.
+     *
+     * @param memoryBytes memory for buffered persons. Persons beyond it are spilled next to the file.
+     */
+    public PopulationXmlWriter sortByFirstDeparture(long memoryBytes) {
+        this.sortMemoryBytes = memoryBytes;
+        return this;
+    }
+
+    public void startStreaming(String filename) {
+        out = new BufferedOutputStream(openOutputStream(filename), 1 << 16);
+        stage = StageStats.writer(filename);
+        write(PopulationXmlEncoder.HEADER);
+        if (sortMemoryBytes > 0) {
+            sortRuns = new SortPopulation.Runs(Path.of(filename).toAbsolutePath().getParent(), sortMemoryBytes);
+        }
+        if (ids != null) {
+            var base = baseName(filename);
+            personTable = DenseIds.openTable(Path.of(base + ".person-ids.txt.gz"));
+            vehicleTable = DenseIds.openTable(Path.of(base + ".vehicle-ids.txt.gz"));
+            vehiclesWriter = new VehiclesXmlWriter(ids.getVehicles());
+            vehiclesWriter.startStreaming(base + ".vehicles.xml.gz");
+        }
+    }
+
+    private static String baseName(String filename) {
+        for (var suffix : List.of(".plans.xml.gz", ".plans.xml", ".xml.gz", ".xml")) {
+            if (filename.endsWith(suffix)) return filename.substring(0, filename.length() - suffix.length());
+        }
+        return filename;
+    }
+
+    /**
+     * Compresses .gz files with a {@link ParallelGzipOutputStream}. Other files are opened by {@link IOUtils}.
+     */
+    static OutputStream openOutputStream(String filename) {
+        if (!filename.endsWith(".gz")) {
+            return IOUtils.getOutputStream(IOUtils.getFileUrl(filename), false);
+        }
+        try {
+            return new ParallelGzipOutputStream(Files.newOutputStream(Path.of(filename)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decides whether the person is written. The decision only depends on seed, fraction and person id, so callers
+     * which encode persons themselves may call this from any thread and in any order.
+     */
+    public boolean sample(Person person) {
+        return fraction >= 1.0 || draw(seed, person) < fraction;
+    }
+
+    /**
+     * Same as {@link #sample(Person)} for a draw which was already made with the seed of this writer.
+     */
+    @Override
+    public boolean sample(double draw) {
+        return fraction >= 1.0 || draw < fraction;
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Writers of all sample sizes compare the same draw against their fraction. A person in a smaller sample is
+     * therefore also in every larger sample with the same seed, and callers with several writers draw only once.
+     */
+    static double draw(long seed, Person person) {
+        return PersonRandom.nextDouble(seed, PersonRandom.SAMPLE, person.getId(), 0);
+    }
+
+    @Override
+    public synchronized void run(Person person) {
+        if (!sample(person)) return;
+
+        encoder.reset();
+        encoder.encode(person);
+        write(encoder);
+    }
+
+    @Override
+    public synchronized void write(PopulationXmlEncoder encoded) {
+        var start = System.nanoTime();
+        try {
+            if (sortRuns == null) {
+                writeEncoded(encoded);
+            } else {
+                for (var i = 0; i < encoded.persons(); i++) {
+                    sortRuns.add(encoded.departure(i), encoded.record(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        stage.record(encoded.persons(), System.nanoTime() - start);
+        stage.addBytes(encoded.size());
+        for (var i = 0; i < encoded.persons(); i++) {
+            counter.incCounter();
+        }
+    }
+
+    private void writeEncoded(PopulationXmlEncoder encoded) throws IOException {
+        if (ids == null) {
+            out.write(encoded.bytes(), 0, encoded.size());
+        } else {
+            writeDense(encoded);
+        }
+    }
+
+    /**
+     * Copies the bytes and inserts the next dense ids where the encoder left them open. The ids of each person are
+     * added to the tables and its vehicles to the vehicles file, when its id is inserted.
+     */
+    private void writeDense(PopulationXmlEncoder encoded) throws IOException {
+        var bytes = encoded.bytes();
+        var copied = 0;
+        var person = 0;
+        var firstVehicle = 0;
+        for (var i = 0; i < encoded.patches(); i++) {
+            var offset = encoded.patchOffset(i);
+            out.write(bytes, copied, offset - copied);
+            copied = offset;
+
+            var value = encoded.patchValue(i);
+            if (value == PopulationXmlEncoder.PERSON) {
+                var encodedIds = encoded.encodedIds(person++);
+                personTable.write(encodedIds.person());
+                personTable.newLine();
+                firstVehicle = writtenVehicles;
+                for (var v = 0; v < encodedIds.vehicles().size(); v++) {
+                    vehicleTable.write(encodedIds.vehicles().get(v));
+                    vehicleTable.newLine();
+                    vehiclesWriter.writeVehicle(Integer.toString(writtenVehicles++), encodedIds.vehicleTypes().get(v));
+                }
+                value = writtenPersons++;
+            } else {
+                value += firstVehicle;
+            }
+            out.write(Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(bytes, copied, encoded.size() - copied);
+    }
+
+    @Override
+    public synchronized void closeStreaming() {
+        if (sortRuns != null) {
+            try (var runs = sortRuns) {
+                var persons = runs.merge(record -> {
+                    encoder.reset();
+                    encoder.appendRecord(record);
+                    writeEncoded(encoder);
+                });
+                log.info("Wrote {} persons sorted by first departure from {} spilled runs", persons, runs.spilled());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        write(PopulationXmlEncoder.FOOTER);
+        try {
+            out.close();
+            if (ids != null) {
+                personTable.close();
+                vehicleTable.close();
+                vehiclesWriter.closeStreaming();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        counter.printCounter();
+    }
+
+    private void write(String text) {
+        try {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
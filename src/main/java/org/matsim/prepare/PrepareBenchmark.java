@@ -0,0 +1,358 @@
+package org.matsim.prepare;
+
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs {@link PrepareRustScalingExperiment} and {@link PrepareRustQSimScenario} in process on populations of different
+ * sizes, which are generated on the network of the equil scenario, and records the throughput of each run. Everything needed is
+ * taken from the config and written into the output directory, so the benchmark runs offline.
+ * <p>
+ * The results are written to benchmark.csv. If a baseline is given, the run fails if the persons/s of any stage drop
+ * by more than the threshold below the baseline. A missing baseline is created from the results.
+ */
+public class PrepareBenchmark {
+
+    private static final Logger log = LogManager.getLogger(PrepareBenchmark.class);
+
+    static final String SCALING_EXPERIMENT = "scaling-experiment";
+    static final String QSIM_SCENARIO = "qsim-scenario";
+    private static final String HEADER = "stage;persons;wall_s;persons_per_s;clones_per_s;peak_rss_mb;gc_ms;output_bytes";
+
+    public static class InputArgs {
+
+        @Parameter(names = "-c")
+        public Path config = Path.of("scenarios/equil/config.xml");
+
+        @Parameter(names = "-o", required = true)
+        public Path outputDirectory;
+
+        // sizes of the generated populations. Each size runs every stage once
+        @Parameter(names = "-n")
+        public List<Integer> populationSizes = List.of(10_000);
+
+        @Parameter(names = "-f")
+        public double factor = 10.;
+
+        // number of worker threads of the population pipeline, passed to both tools
+        @Parameter(names = "-p")
+        public int pipelineThreads = 0;
+
+        // runs of each stage on the smallest population before measuring, so that the measured runs are not cold
+        @Parameter(names = "-w")
+        public int warmups = 1;
+
+        // results of an earlier run. Is written from this run if it does not exist
+        @Parameter(names = "-b")
+        public Path baseline;
+
+        // allowed drop of persons/s below the baseline in percent
+        @Parameter(names = "-t")
+        public double threshold = 10.;
+    }
+
+    record StageResult(String stage, int persons, double wallSeconds, long clones, long peakRssMb, long gcMillis, long outputBytes) {
+
+        double personsPerSecond() {
+            return persons / wallSeconds;
+        }
+
+        double clonesPerSecond() {
+            return clones / wallSeconds;
+        }
+
+        String key() {
+            return stage + "-" + persons;
+        }
+
+        String toCsv() {
+            return String.format(Locale.US, "%s;%d;%.3f;%.1f;%.1f;%d;%d;%d", stage, persons, wallSeconds, personsPerSecond(),
+                    clonesPerSecond(), peakRssMb, gcMillis, outputBytes);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        var inputArgs = new InputArgs();
+        com.beust.jcommander.JCommander.newBuilder()
+                .addObject(inputArgs)
+                .build()
+                .parse(args);
+
+        var results = run(inputArgs);
+        write(results, inputArgs.outputDirectory.resolve("benchmark.csv"));
+
+        if (inputArgs.baseline == null) return;
+        if (!Files.exists(inputArgs.baseline)) {
+            log.info("Baseline {} does not exist. It is created from this run.", inputArgs.baseline);
+            write(results, inputArgs.baseline);
+            return;
+        }
+        var regressions = findRegressions(results, readBaseline(inputArgs.baseline), inputArgs.threshold);
+        if (!regressions.isEmpty()) {
+            throw new RuntimeException("Throughput dropped more than " + inputArgs.threshold + "% below the baseline " + inputArgs.baseline + ":\n" + String.join("\n", regressions));
+        }
+    }
+
+    static List<StageResult> run(InputArgs inputArgs) {
+        var inputDir = inputArgs.outputDirectory.resolve("input");
+        createDirectories(inputDir);
+        var events = writeEmptyEvents(inputDir);
+        var smallest = inputArgs.populationSizes.stream().mapToInt(Integer::intValue).min().orElseThrow();
+
+        for (var i = 0; i < inputArgs.warmups; i++) {
+            var config = prepareConfig(inputArgs.config, smallest, inputDir);
+            runStages(inputArgs, config, events, smallest, inputArgs.outputDirectory.resolve("warmup"));
+        }
+
+        var results = new ArrayList<StageResult>();
+        for (var size : inputArgs.populationSizes) {
+            var config = prepareConfig(inputArgs.config, size, inputDir);
+            results.addAll(runStages(inputArgs, config, events, size, inputArgs.outputDirectory.resolve("n" + size)));
+        }
+
+        log.info(HEADER);
+        results.forEach(result -> log.info(result.toCsv()));
+        return results;
+    }
+
+    private static List<StageResult> runStages(InputArgs inputArgs, Path config, Path events, int size, Path outputDir) {
+        // the scaling experiment treats the population as a sample, which it scales up to the factor and to 100%
+        var sampleSize = 1 / inputArgs.factor;
+        var scaling = runStage(SCALING_EXPERIMENT, size, outputDir.resolve(SCALING_EXPERIMENT), dir -> PrepareRustScalingExperiment.main(new String[]{
+                "-c", config.toString(),
+                "-o", dir.toString(),
+                "-sss", Double.toString(sampleSize),
+                "-tss", sampleSize + ",1.0",
+                "-p", Integer.toString(inputArgs.pipelineThreads)
+        }));
+        var qsim = runStage(QSIM_SCENARIO, size, outputDir.resolve(QSIM_SCENARIO), dir -> PrepareRustQSimScenario.main(new String[]{
+                "-c", config.toString(),
+                "-e", events.toString(),
+                "-o", dir.toString(),
+                "-f", Double.toString(inputArgs.factor),
+                "-ss", "1.0,0.1",
+                "-p", Integer.toString(inputArgs.pipelineThreads)
+        }));
+        return List.of(scaling, qsim);
+    }
+
+    private static StageResult runStage(String stage, int persons, Path outputDir, Consumer<Path> tool) {
+        createDirectories(outputDir);
+        System.gc();
+        resetPeakRss();
+        var gcBefore = gcMillis();
+        var start = System.nanoTime();
+
+        tool.accept(outputDir);
+
+        var wallSeconds = (System.nanoTime() - start) / 1e9;
+        var gc = gcMillis() - gcBefore;
+        var largestPopulation = largestPopulation(outputDir);
+        var clones = largestPopulation == null ? 0 : countPersons(largestPopulation) - persons;
+        return new StageResult(stage, persons, wallSeconds, clones, peakRssMb(), gc, directorySize(outputDir));
+    }
+
+    /**
+     * Writes a copy of the config which reads a population of the given size and a vehicles file with the vehicle types
+     * the tools need. All paths are absolute, as the tools resolve the plans file against the working directory.
+     */
+    static Path prepareConfig(Path configFile, int size, Path inputDir) {
+        var config = ConfigUtils.loadConfig(configFile.toString());
+        var network = configFile.toAbsolutePath().getParent().resolve(config.network().getInputFile());
+
+        var plans = inputDir.resolve("plans-" + size + ".xml.gz").toAbsolutePath();
+        if (!Files.exists(plans)) {
+            writePopulation(NetworkUtils.readNetwork(network.toString()), size, plans);
+        }
+
+        var vehicles = VehicleUtils.createVehiclesContainer();
+        Stream.concat(config.qsim().getMainModes().stream(), config.routing().getNetworkModes().stream())
+                .distinct()
+                .forEach(mode -> vehicles.addVehicleType(VehicleUtils.createVehicleType(Id.create(mode, VehicleType.class))));
+        var vehiclesFile = inputDir.resolve("vehicle-types.xml").toAbsolutePath();
+        new MatsimVehicleWriter(vehicles).writeFile(vehiclesFile.toString());
+
+        config.network().setInputFile(network.toString());
+        config.plans().setInputFile(plans.toString());
+        config.vehicles().setVehiclesFile(vehiclesFile.toString());
+        var result = inputDir.resolve("config-" + size + ".xml").toAbsolutePath();
+        ConfigUtils.writeConfig(config, result.toString());
+        return result;
+    }
+
+    /**
+     * Generates car plans on the network with {@link GenerateSyntheticPopulation}.
+     */
+    private static void writePopulation(Network network, int size, Path file) {
+        var args = new GenerateSyntheticPopulation.InputArgs();
+        args.size = size;
+        var writer = new PopulationXmlWriter();
+        writer.startStreaming(file.toString());
+        new GenerateSyntheticPopulation(network, args).generate(writer);
+        writer.closeStreaming();
+    }
+
+    private static Path writeEmptyEvents(Path inputDir) {
+        var events = inputDir.resolve("events.xml").toAbsolutePath();
+        try {
+            Files.writeString(events, "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n</events>\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return events;
+    }
+
+    static List<String> findRegressions(List<StageResult> results, Map<String, Double> baseline, double threshold) {
+        var regressions = new ArrayList<String>();
+        for (var result : results) {
+            var expected = baseline.get(result.key());
+            if (expected == null) {
+                log.warn("Baseline has no result for {}", result.key());
+                continue;
+            }
+            var min = expected * (1 - threshold / 100);
+            if (result.personsPerSecond() < min) {
+                regressions.add(String.format(Locale.US, "%s: %.1f persons/s, baseline %.1f persons/s", result.key(), result.personsPerSecond(), expected));
+            }
+        }
+        return regressions;
+    }
+
+    static void write(List<StageResult> results, Path file) {
+        var lines = new ArrayList<String>();
+        lines.add(HEADER);
+        results.forEach(result -> lines.add(result.toCsv()));
+        try {
+            Files.write(file, lines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return persons/s of each stage and population size
+     */
+    static Map<String, Double> readBaseline(Path file) {
+        var baseline = new HashMap<String, Double>();
+        try {
+            var lines = Files.readAllLines(file);
+            for (var line : lines.subList(1, lines.size())) {
+                var values = line.split(";");
+                baseline.put(values[0] + "-" + values[1], Double.parseDouble(values[3]));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baseline;
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(bean -> Math.max(0, bean.getCollectionTime()))
+                .sum();
+    }
+
+    /**
+     * Resets the peak resident set size, so that it only covers the next stage. Only works on Linux. Otherwise, the
+     * peak covers the whole process.
+     */
+    private static void resetPeakRss() {
+        try {
+            Files.writeString(Path.of("/proc/self/clear_refs"), "5");
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Could not reset the peak RSS", e);
+        }
+    }
+
+    /**
+     * @return peak resident set size from /proc, or -1 where it is not available.
+     */
+    private static long peakRssMb() {
+        var status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) return -1;
+        try {
+            for (var line : Files.readAllLines(status)) {
+                if (line.startsWith("VmHWM:")) {
+                    var kb = Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                    return kb / 1024;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return -1;
+    }
+
+    private static Path largestPopulation(Path dir) {
+        try (var files = Files.walk(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".plans.xml.gz"))
+                    .max((a, b) -> Long.compare(size(a), size(b)))
+                    .orElse(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long countPersons(Path plans) {
+        var persons = 0L;
+        try (var reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(plans), 1 << 16), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().startsWith("<person ")) persons++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return persons;
+    }
+
+    private static long directorySize(Path dir) {
+        try (var files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(PrepareBenchmark::size).sum();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void createDirectories(Path dir) {
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -2,22 +2,30 @@ package org.matsim.prepare;
 
 
 import com.beust.jcommander.Parameter;
-import org.matsim.api.core.v01.Identifiable;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
 import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.population.io.StreamingPopulationReader;
-import org.matsim.core.population.io.StreamingPopulationWriter;
 import org.matsim.core.scenario.ScenarioUtils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public class PrepareRustQSimScenario {
 
+    static final String XML = "xml";
+    static final String BINARY = "binary";
+
     public static class InputArgs {
 
         @Parameter(names = "-c", required = true)
@@ -26,6 +34,28 @@ public class PrepareRustQSimScenario {
         @Parameter(names = "-e", required = true)
         public Path events;
 
+        // travel time snapshot. Is loaded instead of the events if it matches network and events, otherwise it is written
+        @Parameter(names = "-tts")
+        public Path travelTimeSnapshot;
+
+        // threads which parse only the events needed for travel times. 0 reads all events with the MATSim reader
+        @Parameter(names = "-et")
+        public int eventsThreads = 0;
+
+        // spatial index of the car links. Is memory mapped if it matches the network, otherwise it is written
+        @Parameter(names = "-li")
+        public Path linkIndex;
+
+        // snap activities to the closest link segment. By default, they are snapped like XY2Links does, to the closest
+        // link touching the closest node which has the activity on its right side
+        @Parameter(names = "-sns")
+        public boolean snapToNearestSegment = false;
+
+        // number of routed trips which are cached by OD link pair, mode and time bin. 0 routes every trip. The cache
+        // requires routing randomness to be set to 0 in the config
+        @Parameter(names = "-rc")
+        public int routeCacheSize = 0;
+
         @Parameter(names = "-o", required = true)
         public Path outputDirectory;
 
@@ -34,20 +64,114 @@ public class PrepareRustQSimScenario {
 
         @Parameter(names = "-ss")
         public List<Double> sampleSizes = List.of(1.0, 0.9, 0.8, 0.7, 0.6, 0.5, 0.4, 0.3, 0.2, 0.1, 0.01, 0.001);
+
+        // format of the populations. 'xml' writes .plans.xml.gz, 'binary' writes .plans.bin, see BinaryPopulationWriter
+        @Parameter(names = "-pf")
+        public String populationFormat = XML;
+
+        // number of worker threads. 0 runs all algorithms on the reader thread
+        @Parameter(names = "-p")
+        public int pipelineThreads = 0;
+
+        // memory budget in MB for persons between reader and writer when running with worker threads
+        @Parameter(names = "-pm")
+        public int pipelineMemoryMb = 1024;
+
+        // number of partitions for the distributed simulation, weighted by the load of the routed plans. 0 writes no partitions
+        @Parameter(names = "-np")
+        public int partitions = 0;
+
+        // allowed excess of the heaviest partition over the average partition weight
+        @Parameter(names = "-pim")
+        public double partitionImbalance = 0.03;
+
+        // modes which are removed from the network. Links without any mode left are removed
+        @Parameter(names = "-rm")
+        public List<String> removeModes = List.of(TransportMode.pt);
+
+        // keep only the largest strongly connected component of the car network
+        @Parameter(names = "-lcc")
+        public boolean largestCarComponent = false;
+
+        // merge chains of links through nodes without junctions. Routes are rewritten to the merged links
+        @Parameter(names = "-cc")
+        public boolean contractChains = false;
+
+        // seconds between two progress logs of the stages. 0 disables the progress log
+        @Parameter(names = "-pl")
+        public int progressLogSeconds = 60;
+
+        // skip pt persons and unselected plans while parsing the plans file. 'false' builds every person, as before
+        @Parameter(names = "-ppf", arity = 1)
+        public boolean preFilter = true;
+
+        // write populations and vehicles with dense integer ids and mapping tables instead of the original ids, and the
+        // network additionally with dense ids, see DenseIds. Only for the xml format
+        @Parameter(names = "-ci")
+        public boolean compactIds = false;
+
+        // write the persons of each population sorted by the end time of their first activity, see SortPopulation
+        @Parameter(names = "-sfd")
+        public boolean sortByFirstDeparture = false;
+
+        // memory budget of the sort in MB, shared by all populations. Larger populations are sorted in runs on disk
+        @Parameter(names = "-sm")
+        public int sortMemoryMb = 1024;
     }
 
-    private static Collection<StreamingPopulationWriter> createUpscaleWriters(Collection<Double> samplesSizes, Path outputDir, String runId) {
+    /**
+     * @param sortMemoryBytes memory of the sort, which is split between the writers by their sample size. 0 writes the
+     *                        persons in the order in which they are passed.
+     */
+    private static List<PopulationFileWriter> createUpscaleWriters(Collection<Double> samplesSizes, String format, Path outputDir, String runId, DenseIds ids, long sortMemoryBytes) {
+        var totalSize = samplesSizes.stream().mapToDouble(size -> Math.min(size, 1.0)).sum();
+        // the upscale algorithm encodes each person once for all xml writers, also on the workers of a pipeline
         return samplesSizes.stream()
-                .map(size -> {
-                    var sizeName = Math.round(size * 100);
-                    var outPath = outputDir.resolve(runId + "-" + sizeName + "pct.plans.xml.gz");
-                    var writer = new StreamingPopulationWriter(size);
-                    writer.startStreaming(outPath.toString());
-                    return writer;
-                })
+                .map(size -> startPopulationWriter(format, size, outputDir, populationName(runId, size, ids), ids,
+                        sortMemoryBytes == 0 ? 0 : Math.max(1, (long) (sortMemoryBytes * Math.min(size, 1.0) / totalSize))))
                 .toList();
     }
 
+    private static String sampleName(String runId, double sampleSize) {
+        return runId + "-" + Math.round(sampleSize * 100) + "pct";
+    }
+
+    private static String populationName(String runId, double sampleSize, DenseIds ids) {
+        return sampleName(runId, sampleSize) + (ids == null ? "" : ".compact");
+    }
+
+    /**
+     * Starts a writer for the given format, which writes a fraction of the persons into the output directory. The file
+     * is called name + .plans.xml.gz or name + .plans.bin.
+     */
+    static PopulationFileWriter startPopulationWriter(String format, double fraction, Path outputDir, String name) {
+        return startPopulationWriter(format, fraction, outputDir, name, null, 0);
+    }
+
+    /**
+     * Same as {@link #startPopulationWriter(String, double, Path, String)}, but xml writers write the given dense ids,
+     * and writers with sort memory write the persons sorted by first departure.
+     */
+    static PopulationFileWriter startPopulationWriter(String format, double fraction, Path outputDir, String name, DenseIds ids, long sortMemoryBytes) {
+        var file = populationFile(format, outputDir, name).toString();
+        if (format.equals(XML)) {
+            var writer = new PopulationXmlWriter(fraction, PersonRandom.DEFAULT_SEED, ids).sortByFirstDeparture(sortMemoryBytes);
+            writer.startStreaming(file);
+            return writer;
+        }
+        var writer = new BinaryPopulationWriter(fraction).sortByFirstDeparture(sortMemoryBytes);
+        writer.startStreaming(file);
+        return writer;
+    }
+
+    static Path populationFile(String format, Path outputDir, String name) {
+        return switch (format) {
+            case XML -> outputDir.resolve(name + ".plans.xml.gz");
+            case BINARY -> outputDir.resolve(name + ".plans.bin");
+            default -> throw new IllegalArgumentException("Unknown population format: " + format + ". Use " + XML + " or " + BINARY);
+        };
+    }
+
     public static void main(String[] args) {
 
         var inputArgs = new InputArgs();
@@ -57,44 +181,97 @@ public class PrepareRustQSimScenario {
                 .build()
                 .parse(args);
 
-        var config = ConfigUtils.loadConfig(inputArgs.config.toString());
-        var plansFile = config.plans().getInputFile();
-        config.plans().setInputFile(null);
-        config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
-        config.travelTimeCalculator().setMaxTime(144000); // 40 hours
-        var scenario = ScenarioUtils.loadScenario(config);
+        if (inputArgs.compactIds && !inputArgs.populationFormat.equals(XML)) {
+            throw new IllegalArgumentException("Ids can only be compacted in the " + XML + " format.");
+        }
+        StageStats.registerEvents();
+        try (var stats = StageStats.start().startProgressLog(inputArgs.progressLogSeconds)) {
+            var config = ConfigUtils.loadConfig(inputArgs.config.toString());
+            var plansFile = config.plans().getInputFile();
+            config.plans().setInputFile(null);
+            config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+            config.travelTimeCalculator().setMaxTime(144000); // 40 hours
+            var scenario = ScenarioUtils.loadScenario(config);
 
-        var writers = createUpscaleWriters(inputArgs.sampleSizes, inputArgs.outputDirectory, config.controller().getRunId());
-        var reader = new StreamingPopulationReader(scenario);
-        reader.addAlgorithm(UpscaleAlgorithm.create(inputArgs.factor, inputArgs.events.toString(), scenario, writers));
-        reader.readFile(plansFile);
+            // links are removed before routing, so that no route uses them. Chains are merged after routing, because the
+            // travel times are collected on the original links.
+            var reduction = new NetworkReduction(scenario.getNetwork()).removeModes(Set.copyOf(inputArgs.removeModes));
+            if (inputArgs.largestCarComponent) reduction.keepLargestComponent(TransportMode.car);
+            if (inputArgs.contractChains) reduction.findChains();
+            // links are numbered as they are written, i.e. without the links which are merged into others
+            var denseIds = inputArgs.compactIds ? new DenseIds(scenario.getNetwork(), reduction::keepsLink, scenario.getVehicles()) : null;
 
-        for (var writer : writers) {
-            writer.closeStreaming();
-        }
+            var sortMemoryBytes = inputArgs.sortByFirstDeparture ? inputArgs.sortMemoryMb * 1024L * 1024L : 0;
+            var writers = createUpscaleWriters(inputArgs.sampleSizes, inputArgs.populationFormat, inputArgs.outputDirectory, config.controller().getRunId(), denseIds, sortMemoryBytes);
+            // vehicles and load counter see every routed person, before the writers sample them
+            var sinks = new ArrayList<PersonAlgorithm>(writers);
+            // with dense ids, every population writer writes the vehicles of its persons itself
+            var vehiclesWriter = new VehiclesXmlWriter(scenario.getVehicles());
+            if (denseIds == null) {
+                vehiclesWriter.startStreaming(inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".vehicles.xml.gz").toString());
+                sinks.add(vehiclesWriter);
+            }
+            var linkLoads = new LinkLoadCounter(scenario.getNetwork());
+            if (inputArgs.partitions > 0) sinks.add(linkLoads);
+            var upscaleAlgorithm = UpscaleAlgorithm.create(inputArgs.factor, inputArgs.events.toString(), inputArgs.travelTimeSnapshot, inputArgs.eventsThreads, inputArgs.routeCacheSize, inputArgs.linkIndex, inputArgs.snapToNearestSegment, scenario, sinks)
+                    .withRouteRewriter(reduction);
+            if (inputArgs.pipelineThreads > 0) {
+                PopulationPipeline.readFile(scenario, plansFile, inputArgs.preFilter, inputArgs.pipelineThreads, inputArgs.pipelineMemoryMb,
+                        upscaleAlgorithm::withPersonAlgorithms,
+                        sinks);
+            } else {
+                var reader = new StreamingPopulationReader(scenario);
+                reader.addAlgorithm(upscaleAlgorithm);
+                PopulationPipeline.parse(reader, plansFile, inputArgs.preFilter);
+            }
+            upscaleAlgorithm.flush();
+            writers.forEach(PopulationFileWriter::closeStreaming);
+            if (denseIds == null) vehiclesWriter.closeStreaming();
+
+            if (inputArgs.contractChains) reduction.applyContraction();
+            reduction.writeMapping(inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".link-mapping.csv"));
+            if (inputArgs.partitions > 0) {
+                NetworkPartitioning.create(scenario.getNetwork(), linkLoads::getLoad, inputArgs.partitions, inputArgs.partitionImbalance)
+                        .write(inputArgs.outputDirectory, config.controller().getRunId());
+            }
+            var netOutPath = inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".network.xml.gz");
+            writeNetwork(scenario.getNetwork(), netOutPath);
+            if (denseIds != null) denseIds.writeNetwork(scenario.getNetwork(), inputArgs.outputDirectory, config.controller().getRunId());
 
-        removeLinks(scenario, TransportMode.pt);
-        var netOutPath = inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".network.xml.gz");
-        NetworkUtils.writeNetwork(scenario.getNetwork(), netOutPath.toString());
+            stats.writeSummary(inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".stage-stats.csv"));
+        }
     }
 
-    public static void removeLinks(Scenario scenario, String mode) {
-        // filter pt from network and make networks smaller for testing
-        var net = scenario.getNetwork();
-        var ptLinks = net.getLinks().values().parallelStream()
-                .filter(link -> link.getAllowedModes().contains(mode))
-                .map(Identifiable::getId)
-                .toList();
-        for (var link : ptLinks) {
-            net.removeLink(link);
+    /**
+     * Writes the network like {@link NetworkUtils#writeNetwork(Network, String)}, but compresses .gz files with a
+     * {@link ParallelGzipOutputStream}. The network writer only writes to files, so the uncompressed network goes
+     * through a temporary file.
+     */
+    public static void writeNetwork(Network network, Path file) {
+        if (!file.toString().endsWith(".gz")) {
+            NetworkUtils.writeNetwork(network, file.toString());
+            return;
         }
 
-        var emtpyNodes = net.getNodes().values().parallelStream()
-                .filter(node -> node.getInLinks().isEmpty() && node.getOutLinks().isEmpty())
-                .map(Identifiable::getId)
-                .toList();
-        for (var node : emtpyNodes) {
-            net.removeNode(node);
+        try {
+            var tmpFile = Files.createTempFile(file.toAbsolutePath().getParent(), "network", ".xml");
+            try {
+                NetworkUtils.writeNetwork(network, tmpFile.toString());
+                try (var out = PopulationXmlWriter.openOutputStream(file.toString())) {
+                    Files.copy(tmpFile, out);
+                }
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
+
+    /**
+     * Removes the mode from all links, and links and nodes which are left without modes.
+     */
+    public static void removeLinks(Scenario scenario, String mode) {
+        new NetworkReduction(scenario.getNetwork()).removeModes(Set.of(mode));
+    }
 }
@@ -1,19 +1,25 @@
 package org.matsim.prepare;
 
 import com.beust.jcommander.Parameter;
+import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
-import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.population.io.StreamingPopulationReader;
-import org.matsim.core.population.io.StreamingPopulationWriter;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.core.scenario.ScenarioUtils;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
 
 public class PrepareRustScalingExperiment {
 
+    static final String NO_PT = "no-pt";
+    static final String WITH_PT = "with-pt";
+
     public static class InputArgs {
 
         @Parameter(names = "-c", required = true)
@@ -25,11 +31,36 @@ public class PrepareRustScalingExperiment {
         @Parameter(names = "-sss", required = true)
         public double sourceSampleSize;
 
+        // one or more target sample sizes, e.g. -tss 0.001,0.01,0.1. The source population is read once for all of them.
         @Parameter(names = "-tss", required = true)
-        public double targetSampleSize;
+        public List<Double> targetSampleSizes;
 
         @Parameter(names = "-wn")
         public boolean writeNetwork = false;
+
+        // network variants written with -wn. 'no-pt' removes pt links, 'with-pt' keeps the full network
+        @Parameter(names = "-nv")
+        public List<String> networkVariants = List.of(NO_PT);
+
+        // format of the populations. 'xml' writes .plans.xml.gz, 'binary' writes .plans.bin, see BinaryPopulationWriter
+        @Parameter(names = "-pf")
+        public String populationFormat = PrepareRustQSimScenario.XML;
+
+        // number of worker threads. 0 runs all algorithms on the reader thread
+        @Parameter(names = "-p")
+        public int pipelineThreads = 0;
+
+        // memory budget in MB for persons between reader and writer when running with worker threads
+        @Parameter(names = "-pm")
+        public int pipelineMemoryMb = 1024;
+
+        // seconds between two progress logs of the stages. 0 disables the progress log
+        @Parameter(names = "-pl")
+        public int progressLogSeconds = 60;
+
+        // skip pt persons and unselected plans while parsing the plans file. 'false' builds every person, as before
+        @Parameter(names = "-ppf", arity = 1)
+        public boolean preFilter = true;
     }
 
     public static void main(String[] args) {
@@ -40,37 +71,68 @@ public class PrepareRustScalingExperiment {
                 .build()
                 .parse(args);
 
-        var config = ConfigUtils.loadConfig(inputArgs.config.toString());
-        var plansFile = Paths.get(config.getContext().toString()).getParent().resolve(config.plans().getInputFile());
-        config.plans().setInputFile(null);
-        config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
-        config.travelTimeCalculator().setMaxTime(144000); // 40 hours
-        var scenario = ScenarioUtils.loadScenario(config);
-
-        var factor = inputArgs.targetSampleSize / inputArgs.sourceSampleSize;
-        var sizeName = String.format("%.1f", inputArgs.targetSampleSize * 100);
-        var outPath = inputArgs.outputDirectory.resolve(config.controller().getRunId() + "-" + sizeName + "pct.plans.xml.gz");
-        var writer = new StreamingPopulationWriter(factor);
-        writer.startStreaming(outPath.toString());
-        var reader = new StreamingPopulationReader(scenario);
-
-        if (factor > 1.0) {
-            var upscaleAlgorithm = SimpleUpscaleAlgorithm.create(
-                    inputArgs.targetSampleSize / inputArgs.sourceSampleSize, scenario, writer
-            );
-            var filter = new PtFilter(upscaleAlgorithm, scenario);
-            reader.addAlgorithm(filter);
-        } else {
-            reader.addAlgorithm(new PtFilter(writer, scenario));
+        StageStats.registerEvents();
+        try (var stats = StageStats.start().startProgressLog(inputArgs.progressLogSeconds)) {
+            var config = ConfigUtils.loadConfig(inputArgs.config.toString());
+            var plansFile = Paths.get(config.getContext().toString()).getParent().resolve(config.plans().getInputFile());
+            config.plans().setInputFile(null);
+            config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+            config.travelTimeCalculator().setMaxTime(144000); // 40 hours
+            var scenario = ScenarioUtils.loadScenario(config);
+
+            var factors = inputArgs.targetSampleSizes.stream()
+                    .map(targetSampleSize -> targetSampleSize / inputArgs.sourceSampleSize)
+                    .toList();
+            var writers = inputArgs.targetSampleSizes.stream()
+                    .map(targetSampleSize -> {
+                        var sizeName = String.format("%.1f", targetSampleSize * 100);
+                        return PrepareRustQSimScenario.startPopulationWriter(inputArgs.populationFormat, targetSampleSize / inputArgs.sourceSampleSize,
+                                inputArgs.outputDirectory, config.controller().getRunId() + "-" + sizeName + "pct");
+                    })
+                    .toList();
+
+            // pt persons are filtered once, then every target clones or samples the remaining persons on its own
+            Function<List<PersonAlgorithm>, PersonAlgorithm> chain = sinks -> {
+                var targets = new ArrayList<PersonAlgorithm>();
+                for (var i = 0; i < sinks.size(); i++) {
+                    var factor = factors.get(i);
+                    targets.add(factor > 1.0 ? SimpleUpscaleAlgorithm.create(factor, scenario, sinks.get(i)) : sinks.get(i));
+                }
+                return new PtFilter(person -> targets.forEach(target -> target.run(person)), scenario);
+            };
+
+            PopulationPipeline.readFile(scenario, plansFile.toString(), inputArgs.preFilter, inputArgs.pipelineThreads, inputArgs.pipelineMemoryMb, chain, writers);
+            writers.forEach(PopulationFileWriter::closeStreaming);
+
+            if (inputArgs.writeNetwork) {
+                writeNetworks(scenario, inputArgs.networkVariants, inputArgs.outputDirectory);
+            }
+
+            stats.writeSummary(inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".stage-stats.csv"));
         }
+    }
 
-        reader.readFile(plansFile.toString());
-        writer.closeStreaming();
+    /**
+     * Writes each network variant once. All target populations share these files.
+     */
+    static void writeNetworks(Scenario scenario, Collection<String> variants, Path outputDirectory) {
+        for (var variant : variants) {
+            if (!variant.equals(NO_PT) && !variant.equals(WITH_PT)) {
+                throw new IllegalArgumentException("Unknown network variant: " + variant + ". Use " + NO_PT + " or " + WITH_PT);
+            }
+        }
 
-        if (inputArgs.writeNetwork) {
+        var runId = scenario.getConfig().controller().getRunId();
+
+        // the full network must be written before pt links are removed
+        if (variants.contains(WITH_PT)) {
+            var netOutPath = outputDirectory.resolve(runId + "-" + WITH_PT + ".network.xml.gz");
+            PrepareRustQSimScenario.writeNetwork(scenario.getNetwork(), netOutPath);
+        }
+        if (variants.contains(NO_PT)) {
             PrepareRustQSimScenario.removeLinks(scenario, TransportMode.pt);
-            var netOutPath = inputArgs.outputDirectory.resolve(config.controller().getRunId() + ".network.xml.gz");
-            NetworkUtils.writeNetwork(scenario.getNetwork(), netOutPath.toString());
+            var netOutPath = outputDirectory.resolve(runId + ".network.xml.gz");
+            PrepareRustQSimScenario.writeNetwork(scenario.getNetwork(), netOutPath);
         }
     }
 }
@@ -17,7 +17,11 @@ public class PtFilter implements PersonAlgorithm {
 
     @Override
     public void run(Person person) {
-        if (UpscaleAlgorithm.isPtPerson(person)) return; // exclude all pt persons.
+        StageStats.get(StageStats.READ).increment();
+        if (UpscaleAlgorithm.isPtPerson(person)) {
+            StageStats.get(StageStats.PT_DROPPED).increment();
+            return; // exclude all pt persons.
+        }
 
         UpscaleAlgorithm.removeExceptSelectedPlan(person);
         UpscaleAlgorithm.setActCoordsFromFacilities(person, scenario);
@@ -0,0 +1,180 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.RoutingConfigGroup;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.RoutingRequest;
+import org.matsim.core.router.TripRouter;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the results of the routing modules of a {@link TripRouter}. Routes are keyed by from link, to link, mode and
+ * departure time bin. Clones have the same trips as their original, and many persons share the same OD pairs, so most
+ * least cost path searches only have to be done once.
+ * <p>
+ * A cached trip is copied for every request. Departure times are shifted to the requested departure time and network
+ * routes get the vehicle of the requesting person. Thus, results are the same as from the routing module, as long as the
+ * route does not change within a time bin and routing is not randomized. With access/egress routing, the coordinates of from and to facility are part
+ * of the key as well. The least recently used routes are evicted once the cache is full.
+ */
+public class RouteCache {
+
+    private static final Logger log = LogManager.getLogger(RouteCache.class);
+
+    private final int binSize;
+    private final boolean keyByCoord;
+    private final Map<Key, CachedTrip> trips;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RouteCache(int maxSize, int binSize, boolean keyByCoord) {
+        this.binSize = binSize;
+        this.keyByCoord = keyByCoord;
+        this.trips = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedTrip> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache for the routers of the config. Routing randomness gives each person its own routes, which a cache
+     * would hand to other persons. The randomness must therefore be turned off, i.e. set to 0, to use the cache.
+     */
+    public static RouteCache create(int maxSize, Config config) {
+        if (config.routing().getRoutingRandomness() > 0) {
+            throw new IllegalArgumentException("The route cache gives persons routes which were computed for other persons, but routing randomness is "
+                    + config.routing().getRoutingRandomness() + ". Set it to 0 to use the cache, or disable the cache.");
+        }
+        var keyByCoord = !config.routing().getAccessEgressType().equals(RoutingConfigGroup.AccessEgressType.none);
+        return new RouteCache(maxSize, config.travelTimeCalculator().getTraveltimeBinSize(), keyByCoord);
+    }
+
+    /**
+     * Creates a trip router which routes all modes of the given router through this cache.
+     */
+    public TripRouter createTripRouter(TripRouter tripRouter, Config config) {
+        var builder = new TripRouter.Builder(config);
+        for (var mode : tripRouter.getRegisteredModes()) {
+            builder.setRoutingModule(mode, new CachedRoutingModule(mode, tripRouter.getRoutingModule(mode)));
+        }
+        return builder.build();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void logStats() {
+        var hitCount = getHits();
+        var requests = hitCount + getMisses();
+        int size;
+        synchronized (trips) {
+            size = trips.size();
+        }
+        log.info(String.format("Route cache: %d requests, %d hits (%.1f%%), %d misses, %d cached trips",
+                requests, hitCount, 100. * hitCount / Math.max(1, requests), getMisses(), size));
+    }
+
+    private Key createKey(String mode, RoutingRequest request) {
+        var from = request.getFromFacility();
+        var to = request.getToFacility();
+        var bin = (int) (request.getDepartureTime() / binSize);
+        return keyByCoord ?
+                new Key(from.getLinkId(), to.getLinkId(), mode, bin, from.getCoord(), to.getCoord()) :
+                new Key(from.getLinkId(), to.getLinkId(), mode, bin, null, null);
+    }
+
+    private record Key(Id<Link> from, Id<Link> to, String mode, int bin, Coord fromCoord, Coord toCoord) {
+    }
+
+    private record CachedTrip(List<PlanElement> elements, double departureTime) {
+    }
+
+    private class CachedRoutingModule implements RoutingModule {
+
+        private final String mode;
+        private final RoutingModule delegate;
+
+        CachedRoutingModule(String mode, RoutingModule delegate) {
+            this.mode = mode;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<? extends PlanElement> calcRoute(RoutingRequest request) {
+            // requests without links can't be keyed
+            if (request.getFromFacility().getLinkId() == null || request.getToFacility().getLinkId() == null) {
+                return delegate.calcRoute(request);
+            }
+
+            var key = createKey(mode, request);
+            CachedTrip cached;
+            synchronized (trips) {
+                cached = trips.get(key);
+            }
+            if (cached != null) {
+                hits.increment();
+                if (cached.elements() == null) return null;
+                return copy(cached.elements(), request.getDepartureTime() - cached.departureTime(), request.getPerson());
+            }
+
+            misses.increment();
+            var result = delegate.calcRoute(request);
+            // the result is inserted into the plan of the person, so the cache keeps its own copy
+            var elements = result == null ? null : copy(result, 0, null);
+            synchronized (trips) {
+                trips.put(key, new CachedTrip(elements, request.getDepartureTime()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param person if not null, network routes get the vehicle of this person.
+     */
+    private static List<PlanElement> copy(List<? extends PlanElement> elements, double timeShift, Person person) {
+        var copy = new ArrayList<PlanElement>(elements.size());
+        for (var element : elements) {
+            if (element instanceof Leg leg) {
+                var legCopy = PopulationUtils.createLeg(leg);
+                leg.getDepartureTime().ifDefined(time -> legCopy.setDepartureTime(time + timeShift));
+                if (person != null && legCopy.getRoute() instanceof NetworkRoute route && route.getVehicleId() != null) {
+                    route.setVehicleId(VehicleUtils.getVehicleId(person, leg.getMode()));
+                }
+                copy.add(legCopy);
+            } else if (element instanceof Activity activity) {
+                var activityCopy = PopulationUtils.createActivity(activity);
+                activity.getStartTime().ifDefined(time -> activityCopy.setStartTime(time + timeShift));
+                activity.getEndTime().ifDefined(time -> activityCopy.setEndTime(time + timeShift));
+                copy.add(activityCopy);
+            } else {
+                throw new IllegalStateException("Unexpected plan element in routed trip: " + element);
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,94 @@
+package org.matsim.prepare;
+
+import com.google.inject.Injector;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.Config;
+import org.matsim.core.router.PlanRouter;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.utils.timing.TimeInterpretation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * One {@link PlanRouter} per thread. The routing modules of MATSim keep the state of the current least cost path search
+ * in the router instance, so a router must not be used by several threads at once.
+ * <p>
+ * All routers are created from the same injector. They share network, travel times and the routing graph, which are
+ * read only once the events are read, while each thread gets its own search state.
+ */
+public class RouterPool {
+
+    private static final Logger log = LogManager.getLogger(RouterPool.class);
+
+    private final Supplier<PlanRouter> factory;
+    private final ThreadLocal<PlanRouter> routers = ThreadLocal.withInitial(this::createRouter);
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder plans = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final long startTime = System.nanoTime();
+
+    public RouterPool(Supplier<PlanRouter> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param routeCache optional cache which is shared by the routers of all threads.
+     */
+    public static RouterPool create(Injector injector, RouteCache routeCache, Config config) {
+        var timeInterpretation = injector.getInstance(TimeInterpretation.class);
+        return new RouterPool(() -> {
+            // the trip router is not bound as singleton, so every call creates new routing modules
+            var tripRouter = injector.getInstance(TripRouter.class);
+            if (routeCache != null) tripRouter = routeCache.createTripRouter(tripRouter, config);
+            return new PlanRouter(tripRouter, timeInterpretation);
+        });
+    }
+
+    /**
+     * Router of the calling thread.
+     */
+    public PlanRouter get() {
+        return routers.get();
+    }
+
+    /**
+     * Routes the plan with the router of the calling thread.
+     */
+    public void run(Plan plan) {
+        var start = System.nanoTime();
+        get().run(plan);
+        var duration = System.nanoTime() - start;
+        nanos.add(duration);
+        plans.increment();
+        StageStats.get(StageStats.ROUTING).record(1, duration);
+    }
+
+    /**
+     * Number of routers created so far, i.e. the number of threads which have routed.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Logs the number of routed plans and compares the throughput of all threads with the throughput of a single router.
+     */
+    public void logStats() {
+        var routed = plans.sum();
+        var routingSeconds = nanos.sum() / 1e9;
+        var wallSeconds = (System.nanoTime() - startTime) / 1e9;
+        var perRouter = routed / Math.max(routingSeconds, 1e-9);
+        log.info(String.format("Routed %d plans with %d routers. %.1f plans/s per router, %.1f plans/s over %.1fs wall time",
+                routed, size(), perRouter, routed / Math.max(wallSeconds, 1e-9), wallSeconds));
+    }
+
+    private PlanRouter createRouter() {
+        size.incrementAndGet();
+        return factory.get();
+    }
+}
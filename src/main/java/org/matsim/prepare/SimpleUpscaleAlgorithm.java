@@ -9,7 +9,6 @@ import org.matsim.core.population.algorithms.PersonAlgorithm;
 import org.matsim.vehicles.VehicleType;
 
 import java.util.Map;
-import java.util.Random;
 import java.util.stream.Stream;
 
 public class SimpleUpscaleAlgorithm implements PersonAlgorithm {
@@ -18,14 +17,12 @@ public class SimpleUpscaleAlgorithm implements PersonAlgorithm {
 
     //private final PlanRouter router;
     private final Map<String, VehicleType> modeVehicleTypes;
-    private final Scenario scenario;
     private final PersonAlgorithm personAlgorithm;
     private final double factor;
-    private final Random rnd = new Random(42);
+    private final long seed = PersonRandom.DEFAULT_SEED;
 
     public SimpleUpscaleAlgorithm(double factor, Config config, Scenario scenario, PersonAlgorithm personAlgorithm) {
         this.modeVehicleTypes = UpscaleAlgorithm.createModeVehicleTypes(config, scenario);
-        this.scenario = scenario;
         this.personAlgorithm = personAlgorithm;
         this.factor = factor;
     }
@@ -45,21 +42,27 @@ public class SimpleUpscaleAlgorithm implements PersonAlgorithm {
     }
 
     private void upscale(Person person) {
-        // clone agents
+        UpscaleAlgorithm.assertNumberOfActsAndTrips(person);
+
+        // clone agents. Clones share the plan of the person, see ClonedPerson
+        var numberOfClones = calcLimit(factor, PersonRandom.nextDouble(seed, PersonRandom.CLONES, person.getId(), 0));
+        StageStats.get(StageStats.CLONES).add(numberOfClones);
         Stream.iterate(0, i -> i + 1)
-                .limit(calcLimit(factor, rnd))
-                .map(i -> UpscaleAlgorithm.clonePerson(person, i, scenario))
+                .limit(numberOfClones)
+                .map(i -> UpscaleAlgorithm.clonePerson(person, i))
                 .forEach(cloned -> {
-                    UpscaleAlgorithm.addModeVehicles(cloned, scenario, modeVehicleTypes);
+                    UpscaleAlgorithm.addModeVehicles(cloned, modeVehicleTypes);
                     personAlgorithm.run(cloned); // write to file
                 });
     }
 
-    private static int calcLimit(double factor, Random rnd) {
+    // the draw only depends on seed and person id, so that the number of clones does not depend on the order in which
+    // persons are processed. This keeps the output of the pipeline the same as in sequential mode.
+    static int calcLimit(double factor, double draw) {
 
         int floor = (int) factor;
         double diff = factor - floor;
-        int add = rnd.nextDouble() <= diff ? 1 : 0;
+        int add = draw < diff ? 1 : 0;
         // subtract 1, as we are taking the original agent as well in any case. for example:
         // for factor = 2.0 we must clone original agent once, because we will include the original
         // agent and the cloned one.
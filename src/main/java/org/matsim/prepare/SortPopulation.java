@@ -0,0 +1,481 @@
+package org.matsim.prepare;
+
+import com.beust.jcommander.Parameter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.misc.Time;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.matsim.prepare.BinaryPopulationWriter.*;
+
+/**
+ * Sorts populations by the end time of the first activity of each person, i.e. by the first departure, so that the
+ * Rust QSim can schedule the agents in the order in which it reads them. If the first activity has no end time, its
+ * maximum duration is used, and persons with neither come last. The sort is stable, so persons with the same first
+ * departure keep their order.
+ * <p>
+ * This is an external merge sort. Persons are collected as raw bytes until the memory budget is used up, then sorted
+ * and spilled into the temporary directory as a run of binary (key, length, bytes) records. At most
+ * {@link #MAX_FAN_IN} runs are merged at once, until the last merge writes the sorted file, which replaces the input.
+ * Memory therefore depends on the budget and not on the size of the population. Xml files are processed line by line,
+ * which relies on the layout of {@link PopulationXmlEncoder}. Binary files keep their records, only the dictionary
+ * entries move in front of all persons.
+ * <p>
+ * This tool sorts files which were already written. The population writers sort with the same runs while they write,
+ * see {@link PopulationXmlWriter#sortByFirstDeparture(long)}, which saves reading and compressing the files again.
+ */
+public class SortPopulation {
+
+    private static final Logger log = LogManager.getLogger(SortPopulation.class);
+
+    // each run of a merge holds a read buffer, so a merge needs MAX_FAN_IN * BUFFER_SIZE besides the budget
+    static final int MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // estimated heap of a buffered person besides its bytes, i.e. record, array header and list slot
+    private static final int RECORD_OVERHEAD = 48;
+    private static final Comparator<Record> BY_KEY = Comparator.comparingDouble(Record::key);
+
+    public static class InputArgs {
+
+        // population files in xml or binary format, each of which is replaced by its sorted version
+        @Parameter(names = "-p", required = true)
+        public List<Path> populations;
+
+        // memory for buffered persons. A larger budget writes fewer runs
+        @Parameter(names = "-m")
+        public int memoryMb = 1024;
+
+        // directory for the runs. Defaults to the directory of each population
+        @Parameter(names = "-t")
+        public Path tempDirectory;
+    }
+
+    private final long memoryBytes;
+    private final Path tempDirectory;
+
+    /**
+     * @param tempDirectory directory for the runs, or null for the directory of each population.
+     */
+    public SortPopulation(long memoryBytes, Path tempDirectory) {
+        this.memoryBytes = memoryBytes;
+        this.tempDirectory = tempDirectory;
+    }
+
+    public static void main(String[] args) {
+
+        var inputArgs = new InputArgs();
+        com.beust.jcommander.JCommander.newBuilder()
+                .addObject(inputArgs)
+                .build()
+                .parse(args);
+
+        var sort = new SortPopulation(inputArgs.memoryMb * 1024L * 1024L, inputArgs.tempDirectory);
+        for (var population : inputArgs.populations) {
+            sort.sort(population);
+        }
+    }
+
+    /**
+     * Replaces the file by its sorted version. Files ending with .bin are sorted as written by
+     * {@link BinaryPopulationWriter}, all others as xml.
+     */
+    public void sort(Path population) {
+        var start = System.nanoTime();
+        var directory = tempDirectory == null ? population.toAbsolutePath().getParent() : tempDirectory;
+        // the sorted file keeps the extension, which decides about compression
+        var sorted = population.resolveSibling(".sorting-" + population.getFileName());
+        long persons;
+        try (var runs = new Runs(directory, memoryBytes)) {
+            persons = population.toString().endsWith(".bin") ? sortBinary(population, sorted, runs) : sortXml(population, sorted, runs);
+            log.info("Merged {} persons from {} spilled runs", persons, runs.spilled());
+            Files.move(sorted, population, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info(String.format("Sorted %d persons of %s by first departure in %.1fs", persons, population, (System.nanoTime() - start) / 1e9));
+    }
+
+    private long sortXml(Path population, Path sorted, Runs runs) throws IOException {
+        var header = new StringBuilder();
+        var footer = new StringBuilder();
+        var person = new StringBuilder();
+        var departure = new FirstDeparture();
+        var inPerson = false;
+        var seenPerson = false;
+
+        try (var in = IOUtils.getBufferedReader(population.toString())) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                var tag = line.stripLeading();
+                if (!inPerson && (tag.startsWith("<person ") || tag.startsWith("<person>"))) {
+                    inPerson = true;
+                    seenPerson = true;
+                    person.setLength(0);
+                    footer.setLength(0);
+                    departure.reset();
+                }
+
+                if (inPerson) {
+                    person.append(line).append('\n');
+                    if (tag.startsWith("<plan ") || tag.startsWith("<plan>")) {
+                        departure.startPlan(tag.contains("selected=\"yes\""));
+                    } else if (tag.startsWith("<activity ")) {
+                        departure.activity(tag);
+                    } else if (tag.startsWith("</person>")) {
+                        inPerson = false;
+                        runs.add(departure.get(), person.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                } else if (!seenPerson) {
+                    header.append(line).append('\n');
+                } else if (!tag.isEmpty() && !tag.startsWith("<!--")) {
+                    // separators between persons are written again after each person
+                    footer.append(line).append('\n');
+                }
+            }
+        }
+        if (inPerson) throw new RuntimeException("The last person of " + population + " has no end tag.");
+
+        try (var out = new BufferedOutputStream(PopulationXmlWriter.openOutputStream(sorted.toString()), BUFFER_SIZE)) {
+            out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+            var separator = PopulationXmlEncoder.SEPARATOR.getBytes(StandardCharsets.UTF_8);
+            var persons = runs.merge(bytes -> {
+                out.write(bytes);
+                out.write(separator);
+            });
+            out.write(footer.toString().getBytes(StandardCharsets.UTF_8));
+            return persons;
+        }
+    }
+
+    private long sortBinary(Path population, Path sorted, Runs runs) throws IOException {
+        // dictionary entries are written in front of all persons, so that each is known before the first person uses it
+        var dictionary = runs.newFile("dictionary");
+        try (var in = new DataInputStream(new BufferedInputStream(IOUtils.getInputStream(IOUtils.getFileUrl(population.toString())), BUFFER_SIZE));
+             var entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dictionary), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) throw new IOException(population + " is not a binary population file.");
+            var version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported version " + version + " of binary population file " + population);
+
+            var end = false;
+            while (!end) {
+                var kind = in.readByte();
+                var length = in.readInt();
+                var payload = new byte[length];
+                in.readFully(payload);
+                switch (kind) {
+                    case DICTIONARY -> {
+                        entries.writeByte(kind);
+                        entries.writeInt(length);
+                        entries.write(payload);
+                    }
+                    case PERSON -> runs.add(firstDeparture(payload), payload);
+                    case END -> end = true;
+                    default -> throw new IOException("Unknown record " + kind + " in " + population);
+                }
+            }
+        }
+
+        try (var out = new DataOutputStream(new BufferedOutputStream(PopulationXmlWriter.openOutputStream(sorted.toString()), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Files.copy(dictionary, out);
+            var persons = runs.merge(payload -> {
+                out.writeByte(PERSON);
+                out.writeInt(payload.length);
+                out.write(payload);
+            });
+            out.writeByte(END);
+            out.writeInt(Long.BYTES);
+            out.writeLong(persons);
+            return persons;
+        }
+    }
+
+    /**
+     * First departure of the selected plan of the person, with the same fallbacks as for files.
+     */
+    static double firstDeparture(Person person) {
+        var elements = person.getSelectedPlan().getPlanElements();
+        if (elements.isEmpty() || !(elements.get(0) instanceof Activity act)) return Double.POSITIVE_INFINITY;
+        if (act.getEndTime().isDefined()) return act.getEndTime().seconds();
+        return act.getMaximumDuration().isDefined() ? act.getMaximumDuration().seconds() : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * First departure of a person record of a {@link BinaryPopulationWriter}.
+     */
+    static double firstDeparture(byte[] payload) {
+        var buffer = ByteBuffer.wrap(payload);
+        skipString(buffer);
+        var vehicles = Short.toUnsignedInt(buffer.getShort());
+        for (var i = 0; i < vehicles; i++) {
+            buffer.getInt();
+            skipString(buffer);
+        }
+        if (buffer.getInt() == 0 || buffer.get() != ACTIVITY) return Double.POSITIVE_INFINITY;
+
+        // type, link, x, y and start time
+        buffer.position(buffer.position() + 2 * Integer.BYTES + 3 * Double.BYTES);
+        var endTime = buffer.getDouble();
+        var maxDuration = buffer.getDouble();
+        if (!Double.isNaN(endTime)) return endTime;
+        return Double.isNaN(maxDuration) ? Double.POSITIVE_INFINITY : maxDuration;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * First departure of the selected plan of an xml person, which is the last plan with selected="yes", or the first
+     * plan if none is selected.
+     */
+    private static final class FirstDeparture {
+
+        private int plans;
+        private boolean planSelected;
+        private boolean planHasActivity;
+        private double first;
+        private double selected;
+        private boolean hasSelected;
+
+        void reset() {
+            plans = 0;
+            hasSelected = false;
+            first = Double.POSITIVE_INFINITY;
+        }
+
+        void startPlan(boolean selected) {
+            plans++;
+            planSelected = selected;
+            planHasActivity = false;
+        }
+
+        void activity(String tag) {
+            if (planHasActivity) return;
+            planHasActivity = true;
+
+            var endTime = XmlText.attributeValue(tag, "end_time");
+            var maxDuration = XmlText.attributeValue(tag, "max_dur");
+            var departure = endTime != null ? Time.parseTime(endTime) :
+                    maxDuration != null ? Time.parseTime(maxDuration) : Double.POSITIVE_INFINITY;
+            if (plans == 1) first = departure;
+            if (planSelected) {
+                selected = departure;
+                hasSelected = true;
+            }
+        }
+
+        double get() {
+            return hasSelected ? selected : first;
+        }
+    }
+
+    private static DataOutputStream openRun(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+    }
+
+    private static void write(DataOutputStream out, Record record) throws IOException {
+        out.writeDouble(record.key());
+        out.writeInt(record.bytes().length);
+        out.write(record.bytes());
+    }
+
+    private record Record(double key, byte[] bytes) {
+    }
+
+    interface Sink<T> {
+        void accept(T value) throws IOException;
+    }
+
+    /**
+     * Sorted runs in the order of the input. Each run file starts with its number of records. Writers use them to sort
+     * persons before they write them, see {@link PopulationXmlWriter#sortByFirstDeparture(long)}.
+     */
+    static final class Runs implements AutoCloseable {
+
+        private final Path directory;
+        private final long memoryBytes;
+        private final List<Record> buffer = new ArrayList<>();
+        private final List<Path> files = new ArrayList<>();
+        private List<Path> runs = new ArrayList<>();
+        private long buffered = 0;
+        private int spilled = 0;
+
+        Runs(Path directory, long memoryBytes) {
+            this.directory = directory;
+            this.memoryBytes = memoryBytes;
+        }
+
+        void add(double key, byte[] bytes) throws IOException {
+            buffer.add(new Record(key, bytes));
+            buffered += bytes.length + RECORD_OVERHEAD;
+            if (buffered >= memoryBytes) spill();
+        }
+
+        int spilled() {
+            return spilled;
+        }
+
+        /**
+         * Passes the bytes of all records to the sink, ordered by key.
+         *
+         * @return number of records
+         */
+        long merge(Sink<byte[]> sink) throws IOException {
+            if (runs.isEmpty()) {
+                // everything fits into memory
+                buffer.sort(BY_KEY);
+                for (var record : buffer) {
+                    sink.accept(record.bytes());
+                }
+                var records = buffer.size();
+                buffer.clear();
+                return records;
+            }
+
+            spill();
+            // merging consecutive runs keeps the sort stable
+            while (runs.size() > MAX_FAN_IN) {
+                var merged = new ArrayList<Path>();
+                for (var i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    var group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    var file = newFile("run");
+                    try (var out = openRun(file)) {
+                        merge(group, out, record -> write(out, record));
+                    }
+                    for (var run : group) {
+                        Files.delete(run);
+                    }
+                    merged.add(file);
+                }
+                runs = merged;
+            }
+            return merge(runs, null, record -> sink.accept(record.bytes()));
+        }
+
+        /**
+         * Merges the runs into the sink. If out is given, the number of records is written to it first.
+         */
+        private long merge(List<Path> group, DataOutputStream out, Sink<Record> sink) throws IOException {
+            var readers = new ArrayList<RunReader>();
+            try {
+                // ties are taken from the earlier run, which keeps the sort stable
+                var queue = new PriorityQueue<RunReader>(Comparator.comparing(RunReader::record, BY_KEY).thenComparingInt(RunReader::index));
+                var records = 0L;
+                for (var run : group) {
+                    var reader = new RunReader(run, readers.size());
+                    readers.add(reader);
+                    records += reader.records;
+                    if (reader.next()) queue.add(reader);
+                }
+                if (out != null) out.writeLong(records);
+
+                while (!queue.isEmpty()) {
+                    var reader = queue.poll();
+                    sink.accept(reader.record());
+                    if (reader.next()) queue.add(reader);
+                }
+                return records;
+            } finally {
+                for (var reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        private void spill() throws IOException {
+            if (buffer.isEmpty()) return;
+            var start = System.nanoTime();
+            buffer.sort(BY_KEY);
+            var file = newFile("run");
+            try (var out = openRun(file)) {
+                out.writeLong(buffer.size());
+                for (var record : buffer) {
+                    write(out, record);
+                }
+            }
+            var stage = StageStats.get(StageStats.SORT_SPILLED);
+            stage.record(buffer.size(), System.nanoTime() - start);
+            stage.addBytes(Files.size(file));
+            runs.add(file);
+            spilled++;
+            buffer.clear();
+            buffered = 0;
+        }
+
+        private Path newFile(String kind) throws IOException {
+            var file = Files.createTempFile(directory, "sort-", "." + kind);
+            files.add(file);
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static final class RunReader implements AutoCloseable {
+
+        private final DataInputStream in;
+        private final int index;
+        private final long records;
+        private long read = 0;
+        private Record record;
+
+        RunReader(Path file, int index) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+            this.index = index;
+            this.records = in.readLong();
+        }
+
+        boolean next() throws IOException {
+            if (read == records) return false;
+            var key = in.readDouble();
+            var bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            record = new Record(key, bytes);
+            read++;
+            return true;
+        }
+
+        Record record() {
+            return record;
+        }
+
+        int index() {
+            return index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package org.matsim.prepare;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Timespan;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the stages of a prepare run, e.g. persons read, clones created, routing and
+ * snapping time or bytes passed to each writer. Tools open a run with {@link #start()} and close it at their end.
+ * Algorithms record into the stages of the open run through {@link #get(String)}, so that no registry has to be passed
+ * through all constructors. Without an open run, nothing is recorded.
+ * <p>
+ * Each timed operation is also emitted as {@link LatencyEvent}. Once {@link #registerEvents()} was called, the totals
+ * of all stages of the open run are emitted as periodic {@link TotalsEvent}, so that a JFR recording shows the stages
+ * next to GC and allocation.
+ */
+public final class StageStats implements AutoCloseable {
+
+    private static final Logger log = LogManager.getLogger(StageStats.class);
+
+    public static final String READ = "read";
+    public static final String PT_DROPPED = "pt-dropped";
+    public static final String SKIPPED_PLANS = "skipped-plans";
+    public static final String CLONES = "clones";
+    public static final String SNAPPING = "snapping";
+    public static final String ROUTING = "routing";
+    public static final String FACILITY_COORDS = "facility-coords";
+    public static final String SORT_SPILLED = "sort-spilled";
+
+    private static final Stage DISABLED = new DisabledStage();
+    private static final AtomicBoolean eventsRegistered = new AtomicBoolean();
+    private static volatile StageStats open;
+
+    private final Map<String, Stage> stages = new ConcurrentSkipListMap<>();
+    private final AtomicLong inputSize = new AtomicLong();
+    private final LongAdder inputRead = new LongAdder();
+    private final long startTime = System.nanoTime();
+    private final StageStats previous;
+    private ScheduledExecutorService progressLog;
+
+    private StageStats(StageStats previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Opens a run, which collects all stages until it is closed. A run opened while another one is open replaces it
+     * until it is closed.
+     */
+    public static synchronized StageStats start() {
+        open = new StageStats(open);
+        return open;
+    }
+
+    /**
+     * Registers the periodic {@link TotalsEvent}. Tools call this from their main method, so that merely using the
+     * stages, e.g. in tests, leaves the flight recorder alone.
+     */
+    public static void registerEvents() {
+        if (!eventsRegistered.compareAndSet(false, true)) return;
+
+        FlightRecorder.addPeriodicEvent(TotalsEvent.class, () -> {
+            var run = open;
+            if (run == null) return;
+            for (var stage : run.stages.values()) {
+                var event = new TotalsEvent();
+                event.stage = stage.name;
+                event.count = stage.count();
+                event.totalDuration = stage.nanos.sum();
+                event.bytes = stage.bytes.sum();
+                event.commit();
+            }
+        });
+    }
+
+    /**
+     * Stage of the open run, or a stage which records nothing if no run is open.
+     */
+    public static Stage get(String name) {
+        var run = open;
+        return run == null ? DISABLED : run.stage(name);
+    }
+
+    /**
+     * Stage of a writer, named after the file it writes.
+     */
+    public static Stage writer(String filename) {
+        return get("write " + Path.of(filename).getFileName());
+    }
+
+    public Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    /**
+     * Counts the bytes read from the stream, which gives the progress log of the open run the fraction of the input
+     * read so far.
+     */
+    public static InputStream trackInput(Path file) {
+        try {
+            var run = open;
+            if (run == null) return Files.newInputStream(file);
+
+            run.inputSize.set(Files.size(file));
+            run.inputRead.reset();
+            return new FilterInputStream(Files.newInputStream(file)) {
+
+                @Override
+                public int read() throws IOException {
+                    var b = super.read();
+                    if (b >= 0) run.inputRead.increment();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    var n = super.read(bytes, offset, length);
+                    if (n > 0) run.inputRead.add(n);
+                    return n;
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Logs count and rate of each stage every period, and an ETA if the input is tracked, until the run is closed.
+     */
+    public StageStats startProgressLog(int periodSeconds) {
+        if (periodSeconds <= 0 || progressLog != null) return this;
+
+        progressLog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "progress-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var lastCounts = new HashMap<String, Long>();
+        progressLog.scheduleAtFixedRate(() -> logProgress(lastCounts, periodSeconds), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        return this;
+    }
+
+    private void logProgress(Map<String, Long> lastCounts, int periodSeconds) {
+        var text = new StringBuilder("Progress:");
+        for (var stage : stages.values()) {
+            var count = stage.count();
+            var rate = (count - lastCounts.getOrDefault(stage.name, 0L)) / (double) periodSeconds;
+            lastCounts.put(stage.name, count);
+            text.append(String.format(Locale.US, " %s %d (%.0f/s)", stage.name, count, rate));
+        }
+
+        var size = inputSize.get();
+        var read = inputRead.sum();
+        if (size > 0 && read > 0) {
+            var fraction = Math.min(1., read / (double) size);
+            var elapsed = (System.nanoTime() - startTime) / 1e9;
+            var eta = (long) (elapsed * (1 - fraction) / fraction);
+            text.append(String.format(Locale.US, " | input %.1f%%, ETA %d:%02d:%02d", fraction * 100, eta / 3600, eta / 60 % 60, eta % 60));
+        }
+        log.info(text);
+    }
+
+    /**
+     * Writes count, throughput, latency percentiles and bytes of each stage as csv, and logs the same table.
+     */
+    public void writeSummary(Path file) {
+        var elapsed = (System.nanoTime() - startTime) / 1e9;
+        var lines = new ArrayList<String>();
+        lines.add("stage;count;per_s;total_s;p50_us;p90_us;p99_us;max_us;bytes");
+        for (var stage : stages.values()) {
+            lines.add(String.format(Locale.US, "%s;%d;%.1f;%.3f;%.1f;%.1f;%.1f;%.1f;%d", stage.name, stage.count(),
+                    stage.count() / Math.max(elapsed, 1e-9), stage.nanos.sum() / 1e9, stage.percentile(0.5) / 1e3,
+                    stage.percentile(0.9) / 1e3, stage.percentile(0.99) / 1e3, stage.percentile(1) / 1e3, stage.bytes.sum()));
+        }
+        log.info("Stage summary after {}s:\n{}", String.format(Locale.US, "%.1f", elapsed), String.join("\n", lines));
+        try {
+            Files.write(file, lines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stops the progress log and reopens the run which was open before this one, if any.
+     */
+    @Override
+    public void close() {
+        if (progressLog != null) progressLog.shutdownNow();
+        synchronized (StageStats.class) {
+            if (open == this) open = previous;
+        }
+    }
+
+    public static class Stage {
+
+        // 8 buckets per power of two, which bounds the error of a percentile to 12.5%
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = (64 - 3) * SUB_BUCKETS;
+
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        /**
+         * Records one operation, which processed n items in the given time.
+         */
+        public void record(long n, long durationNanos) {
+            count.add(n);
+            nanos.add(durationNanos);
+            histogram.incrementAndGet(bucket(durationNanos));
+
+            var event = new LatencyEvent();
+            if (event.shouldCommit()) {
+                event.stage = name;
+                event.count = n;
+                event.latency = durationNanos;
+                event.commit();
+            }
+        }
+
+        public void addBytes(long n) {
+            bytes.add(n);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return upper bound of the bucket which holds the percentile of the recorded durations in ns, 0 if nothing
+         * was recorded.
+         */
+        public long percentile(double p) {
+            var total = 0L;
+            for (var i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) return 0;
+
+            var rank = (long) Math.ceil(p * total);
+            var seen = 0L;
+            for (var i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= Math.max(rank, 1)) return i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+            var exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            var sub = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            var exponent = bucket / SUB_BUCKETS + 2;
+            var sub = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + (long) sub) << (exponent - 3);
+        }
+    }
+
+    private static class DisabledStage extends Stage {
+
+        private DisabledStage() {
+            super("disabled");
+        }
+
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void add(long n) {
+        }
+
+        @Override
+        public void record(long n, long durationNanos) {
+        }
+
+        @Override
+        public void addBytes(long n) {
+        }
+    }
+
+    @Name("org.matsim.prepare.StageLatency")
+    @Label("Stage Latency")
+    @Category({"MATSim", "Prepare"})
+    static class LatencyEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Count")
+        long count;
+
+        // events have an implicit duration field, which is why the recorded duration has its own name
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("org.matsim.prepare.StageTotals")
+    @Label("Stage Totals")
+    @Category({"MATSim", "Prepare"})
+    @Period("10 s")
+    static class TotalsEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Count")
+        long count;
+
+        @Label("Total Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long totalDuration;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,54 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+
+/**
+ * Id which is not registered in MATSim's global id cache, for ids which are only written to the output, e.g. of
+ * clones and their vehicles. Registered ids are never released, so millions of clones would otherwise fill the heap
+ * with ids nobody looks up again. The text is only concatenated when it is asked for, so a transient id holds no more
+ * than its prefix, which is usually the id of the original person, and a short suffix.
+ * <p>
+ * Transient ids are equal to transient ids with the same text, but never to registered ids. They have no index, because
+ * the index would register the id after all, and id based collections like IdMap would then treat a transient id like
+ * the registered id with the same text, while equals does not. {@link #index()} therefore fails. Transient ids may only
+ * be passed to code which uses their text, such as the population and vehicles writers and {@link PersonRandom}, and
+ * never to id based collections.
+ */
+final class TransientId<T> extends Id<T> {
+
+    private final Class<T> type;
+    private final Object prefix;
+    private final String suffix;
+
+    TransientId(Class<T> type, Object prefix, String suffix) {
+        this.type = type;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    @Override
+    public int index() {
+        throw new UnsupportedOperationException("Transient id " + this + " has no index. Use the registered id " +
+                "Id.create(\"" + this + "\", " + type.getSimpleName() + ".class) for id based collections.");
+    }
+
+    @Override
+    public int compareTo(Id<T> o) {
+        return toString().compareTo(o.toString());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof TransientId<?> other && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return prefix + suffix;
+    }
+}
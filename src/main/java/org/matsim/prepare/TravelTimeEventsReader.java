@@ -0,0 +1,312 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleAbortsEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads only the events which the travel time calculator listens to, i.e. link enter/leave and vehicle enters/leaves
+ * traffic or aborts. All other events are skipped by looking at the raw bytes of their type attribute, before any
+ * strings or event objects are created.
+ * <p>
+ * The decompressed file is cut into chunks at line ends. Chunks are parsed on several threads and the events are passed
+ * to the events manager on the calling thread in file order. This relies on the layout of the MATSim events writer,
+ * which writes one event per line.
+ */
+public class TravelTimeEventsReader {
+
+    private static final Logger log = LogManager.getLogger(TravelTimeEventsReader.class);
+
+    static final int CHUNK_SIZE = 1 << 22;
+    private static final byte[] EVENT_START = bytes("<event ");
+    private static final byte[] TYPE_ATTRIBUTE = bytes("type");
+
+    private static final byte[] LINK_ENTER = bytes(LinkEnterEvent.EVENT_TYPE);
+    private static final byte[] LINK_LEAVE = bytes(LinkLeaveEvent.EVENT_TYPE);
+    private static final byte[] VEHICLE_ENTERS_TRAFFIC = bytes(VehicleEntersTrafficEvent.EVENT_TYPE);
+    private static final byte[] VEHICLE_LEAVES_TRAFFIC = bytes(VehicleLeavesTrafficEvent.EVENT_TYPE);
+    private static final byte[] VEHICLE_ABORTS = bytes(VehicleAbortsEvent.EVENT_TYPE);
+
+    private static final byte[] TIME = bytes("time");
+    private static final byte[] VEHICLE = bytes("vehicle");
+    private static final byte[] LINK = bytes("link");
+    private static final byte[] PERSON = bytes("person");
+    private static final byte[] NETWORK_MODE = bytes("networkMode");
+    private static final byte[] RELATIVE_POSITION = bytes("relativePosition");
+
+    /**
+     * Reads the events file into the events manager.
+     *
+     * @param threads number of parser threads. With less than one thread, all events are read with the MATSim events
+     *                reader instead, which is what the events per second of this reader should be compared to.
+     */
+    public static void readEvents(EventsManager eventsManager, String eventsFile, int threads) {
+        var start = System.nanoTime();
+        if (threads < 1) {
+            var counter = new EventCounter();
+            eventsManager.addHandler(counter);
+            EventsUtils.readEvents(eventsManager, eventsFile);
+            eventsManager.removeHandler(counter);
+            logRate("Read " + counter.count + " events with the MATSim reader", counter.count, start);
+            return;
+        }
+
+        var executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "events-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (var in = IOUtils.getInputStream(IOUtils.getFileUrl(eventsFile))) {
+            var stats = read(in, eventsManager, executor, threads);
+            logRate("Scanned " + stats[0] + " events and passed " + stats[1] + " travel time events with " + threads + " parser threads",
+                    stats[0], start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return number of scanned events and number of events passed to the events manager.
+     */
+    private static long[] read(InputStream in, EventsManager eventsManager, ExecutorService executor, int threads) throws IOException {
+        Queue<Future<Chunk>> pending = new ArrayDeque<>();
+        var maxPending = 2 * threads;
+        var scanned = 0L;
+        var passed = 0L;
+
+        eventsManager.initProcessing();
+        var buffer = new byte[CHUNK_SIZE];
+        var length = 0;
+        while (true) {
+            var n = in.readNBytes(buffer, length, buffer.length - length);
+            length += n;
+            var eof = length < buffer.length;
+
+            // cut after the last complete line and carry the rest over into the next chunk
+            var end = eof ? length : lastIndexOf(buffer, length, (byte) '\n') + 1;
+            if (end == 0 && !eof) {
+                // a single line longer than the chunk. Grow the buffer and read on.
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                continue;
+            }
+
+            // at the end of the file, there may be nothing left after the last chunk
+            if (end > 0) {
+                var data = buffer;
+                var dataLength = end;
+                pending.add(executor.submit(() -> parse(data, dataLength)));
+
+                var next = new byte[Math.max(CHUNK_SIZE, length - end)];
+                System.arraycopy(buffer, end, next, 0, length - end);
+                buffer = next;
+                length = length - end;
+            }
+
+            while (pending.size() > maxPending || (eof && !pending.isEmpty())) {
+                var chunk = get(pending.poll());
+                for (var event : chunk.events) {
+                    eventsManager.processEvent(event);
+                }
+                scanned += chunk.scanned;
+                passed += chunk.events.size();
+            }
+            if (eof) break;
+        }
+        eventsManager.finishProcessing();
+        return new long[]{scanned, passed};
+    }
+
+    private static Chunk get(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse events", e.getCause());
+        }
+    }
+
+    static Chunk parse(byte[] data, int length) {
+        var chunk = new Chunk();
+        var parser = new LineParser(data);
+        var lineStart = 0;
+        while (lineStart < length) {
+            var lineEnd = indexOf(data, lineStart, length, (byte) '\n');
+            if (lineEnd < 0) lineEnd = length;
+
+            var eventStart = indexOf(data, lineStart, lineEnd, EVENT_START);
+            if (eventStart >= 0) {
+                chunk.scanned++;
+                var event = parser.parse(eventStart + EVENT_START.length, lineEnd);
+                if (event != null) chunk.events.add(event);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return chunk;
+    }
+
+    static final class Chunk {
+        final List<Event> events = new ArrayList<>();
+        long scanned = 0;
+    }
+
+    /**
+     * Parses the attributes of one event line. Only offsets are recorded until the type is known to be needed.
+     */
+    private static final class LineParser {
+
+        private final byte[] data;
+        private final int[] nameStarts = new int[16];
+        private final int[] nameEnds = new int[16];
+        private final int[] valueStarts = new int[16];
+        private final int[] valueEnds = new int[16];
+        private int size;
+
+        LineParser(byte[] data) {
+            this.data = data;
+        }
+
+        Event parse(int start, int end) {
+            size = 0;
+            var type = -1;
+            var i = start;
+            while (i < end && size < nameStarts.length) {
+                while (i < end && data[i] == ' ') i++;
+                var nameStart = i;
+                while (i < end && data[i] != '=' && data[i] != ' ' && data[i] != '/' && data[i] != '>') i++;
+                if (i >= end || data[i] != '=') break;
+                var nameEnd = i;
+                i++;
+                if (i >= end || data[i] != '"') break;
+                var valueStart = ++i;
+                while (i < end && data[i] != '"') i++;
+                if (i >= end) break;
+
+                nameStarts[size] = nameStart;
+                nameEnds[size] = nameEnd;
+                valueStarts[size] = valueStart;
+                valueEnds[size] = i;
+                if (equals(TYPE_ATTRIBUTE, nameStart, nameEnd)) {
+                    type = size;
+                    // skip the event as soon as its type is known to be irrelevant
+                    if (!isTravelTimeEvent(valueStart, i)) return null;
+                }
+                size++;
+                i++;
+            }
+            if (type < 0) return null;
+
+            var typeStart = valueStarts[type];
+            var typeEnd = valueEnds[type];
+            var time = Double.parseDouble(value(TIME));
+            var vehicleId = Id.createVehicleId(value(VEHICLE));
+            var linkId = Id.createLinkId(value(LINK));
+
+            if (equals(LINK_ENTER, typeStart, typeEnd)) return new LinkEnterEvent(time, vehicleId, linkId);
+            if (equals(LINK_LEAVE, typeStart, typeEnd)) return new LinkLeaveEvent(time, vehicleId, linkId);
+            if (equals(VEHICLE_ABORTS, typeStart, typeEnd)) return new VehicleAbortsEvent(time, vehicleId, linkId);
+
+            var personId = Id.createPersonId(value(PERSON));
+            var networkMode = value(NETWORK_MODE);
+            var position = value(RELATIVE_POSITION);
+            var relativePosition = position == null ? 1.0 : Double.parseDouble(position);
+            if (equals(VEHICLE_ENTERS_TRAFFIC, typeStart, typeEnd)) {
+                return new VehicleEntersTrafficEvent(time, personId, linkId, vehicleId, networkMode, relativePosition);
+            }
+            return new VehicleLeavesTrafficEvent(time, personId, linkId, vehicleId, networkMode, relativePosition);
+        }
+
+        private boolean isTravelTimeEvent(int start, int end) {
+            return equals(LINK_ENTER, start, end) || equals(LINK_LEAVE, start, end) || equals(VEHICLE_ENTERS_TRAFFIC, start, end)
+                    || equals(VEHICLE_LEAVES_TRAFFIC, start, end) || equals(VEHICLE_ABORTS, start, end);
+        }
+
+        private String value(byte[] name) {
+            for (var a = 0; a < size; a++) {
+                if (equals(name, nameStarts[a], nameEnds[a])) {
+                    return XmlText.unescape(new String(data, valueStarts[a], valueEnds[a] - valueStarts[a], StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        }
+
+        private boolean equals(byte[] expected, int start, int end) {
+            if (end - start != expected.length) return false;
+            for (var i = 0; i < expected.length; i++) {
+                if (data[start + i] != expected[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (var i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (var i = from; i <= to - pattern.length; i++) {
+            for (var j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, int length, byte b) {
+        for (var i = length - 1; i >= 0; i--) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void logRate(String message, long events, long startNanos) {
+        var seconds = (System.nanoTime() - startNanos) / 1e9;
+        log.info(String.format("%s in %.1fs (%.0f events/s)", message, seconds, events / Math.max(seconds, 1e-9)));
+    }
+
+    private static final class EventCounter implements BasicEventHandler {
+
+        private long count = 0;
+
+        @Override
+        public void handleEvent(Event event) {
+            count++;
+        }
+    }
+}
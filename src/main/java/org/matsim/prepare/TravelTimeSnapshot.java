@@ -0,0 +1,377 @@
+package org.matsim.prepare;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.ControlerDefaultCoreListenersModule;
+import org.matsim.core.controler.ControlerDefaultsModule;
+import org.matsim.core.controler.NewControlerModule;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.scenario.ScenarioByInstanceModule;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Binary snapshot of the travel times which the travel time calculator computes from an events file. Reading a large
+ * events file only to warm up the router takes a long time, while the snapshot only holds one value per link and time
+ * bin, and only for bins which differ from the free speed travel time. It holds one table for each routed network mode
+ * which the injector has a travel time for.
+ * <p>
+ * The travel time calculator cannot be filled from the outside. A loaded snapshot therefore replaces the travel times
+ * of these modes in the injector with {@link SnapshotTravelTime}s, which look up the stored bins and fall back to the
+ * free speed travel time like the calculator does for bins without traffic.
+ * <p>
+ * The snapshot stores a hash of the network and a fingerprint of the events file, together with the time bin settings
+ * and the network modes. A snapshot which does not match the current input, or which is truncated, is ignored and
+ * replaced.
+ */
+public class TravelTimeSnapshot {
+
+    private static final Logger log = LogManager.getLogger(TravelTimeSnapshot.class);
+    private static final int MAGIC = 0x54545333; // TTS3
+    private static final int FINGERPRINT_BYTES = 1 << 20;
+
+    /**
+     * Creates the injector for routing on the travel times of the events file. If the snapshot file exists and
+     * matches network, events file and time bins, its travel times are bound instead of reading the events. Otherwise,
+     * the events are read and the snapshot is written for the next run. If no snapshot file is given, the events are
+     * always read.
+     *
+     * @param eventsThreads parser threads of the {@link TravelTimeEventsReader}. 0 reads all events with the MATSim reader.
+     */
+    public static Injector createInjector(Scenario scenario, String eventsFile, Path snapshotFile, int eventsThreads) {
+        var header = snapshotFile == null ? null : createHeader(scenario, eventsFile);
+        if (header != null && Files.exists(snapshotFile)) {
+            var travelTimes = load(snapshotFile, header, scenario.getNetwork());
+            if (travelTimes != null) {
+                var defaults = List.of(new NewControlerModule(), new ControlerDefaultCoreListenersModule(), new ControlerDefaultsModule(),
+                        new ScenarioByInstanceModule(scenario));
+                return org.matsim.core.controler.Injector.createInjector(scenario.getConfig(), AbstractModule.override(defaults, new AbstractModule() {
+                    @Override
+                    public void install() {
+                        travelTimes.forEach((mode, travelTime) -> addTravelTimeBinding(mode).toInstance(travelTime));
+                    }
+                }));
+            }
+        }
+
+        var injector = org.matsim.core.controler.Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
+        TravelTimeEventsReader.readEvents(injector.getInstance(EventsManager.class), eventsFile, eventsThreads);
+        if (header != null) {
+            var travelTimes = injector.getInstance(Key.get(new TypeLiteral<Map<String, TravelTime>>() {
+            }));
+            write(snapshotFile, header, scenario.getNetwork(), travelTimes);
+        }
+        return injector;
+    }
+
+    /**
+     * Writes a table for each network mode of the header which has a travel time.
+     */
+    static void write(Path file, Header header, Network network, Map<String, TravelTime> travelTimes) {
+        var start = System.currentTimeMillis();
+        var entries = 0L;
+        var modes = header.modes().stream()
+                .filter(travelTimes::containsKey)
+                .toList();
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            header.write(out);
+
+            out.writeInt(modes.size());
+            for (var mode : modes) {
+                writeString(out, mode);
+                entries += writeTable(out, header, modeLinks(network, List.of(mode)), travelTimes.get(mode));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote travel time snapshot of modes {} with {} link/time bin entries to {} in {}ms", modes, entries, file, System.currentTimeMillis() - start);
+    }
+
+    private static long writeTable(DataOutputStream out, Header header, List<Link> links, TravelTime travelTime) throws IOException {
+        var entries = 0L;
+        out.writeInt(links.size());
+        var bins = new ArrayList<Integer>();
+        var travelTimes = new ArrayList<Double>();
+        for (var link : links) {
+            bins.clear();
+            travelTimes.clear();
+            var freeSpeedTravelTime = link.getLength() / link.getFreespeed();
+            for (var bin = 0; bin < header.numberOfBins(); bin++) {
+                var tt = travelTime.getLinkTravelTime(link, (double) bin * header.binSize(), null, null);
+                if (tt != freeSpeedTravelTime) {
+                    bins.add(bin);
+                    travelTimes.add(tt);
+                }
+            }
+
+            writeString(out, link.getId().toString());
+            out.writeInt(bins.size());
+            for (var i = 0; i < bins.size(); i++) {
+                out.writeInt(bins.get(i));
+                out.writeDouble(travelTimes.get(i));
+            }
+            entries += bins.size();
+        }
+        return entries;
+    }
+
+    /**
+     * @return travel time by mode, or null if the snapshot does not match the header, i.e. network, events, time bins
+     * or network modes have changed, or if it is truncated.
+     */
+    static Map<String, SnapshotTravelTime> load(Path file, Header expected, Network network) {
+        var start = System.currentTimeMillis();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < Integer.BYTES || buffer.getInt() != MAGIC) {
+                log.warn("{} is not a travel time snapshot of this version. It will be replaced.", file);
+                return null;
+            }
+            var header = Header.read(buffer);
+            if (!header.equals(expected)) {
+                log.warn("Travel time snapshot {} was created for a different network, events file or time bin setting. It will be replaced.", file);
+                return null;
+            }
+
+            var travelTimes = new TreeMap<String, SnapshotTravelTime>();
+            var numberOfModes = buffer.getInt();
+            var entries = 0L;
+            for (var m = 0; m < numberOfModes; m++) {
+                var mode = readString(buffer);
+                if (!header.modes().contains(mode)) {
+                    throw new IllegalStateException("Travel time snapshot " + file + " has a table of mode " + mode + ", which is not a network mode.");
+                }
+                var travelTime = new SnapshotTravelTime(header);
+                entries += readTable(buffer, file, network, travelTime);
+                travelTimes.put(mode, travelTime);
+            }
+            if (buffer.hasRemaining()) {
+                log.warn("Travel time snapshot {} has {} unexpected trailing bytes. It will be replaced.", file, buffer.remaining());
+                return null;
+            }
+
+            log.info("Loaded {} link/time bin entries of modes {} from travel time snapshot {} in {}ms", entries, travelTimes.keySet(), file, System.currentTimeMillis() - start);
+            return travelTimes;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            log.warn("Travel time snapshot {} is truncated. It will be replaced.", file);
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long readTable(ByteBuffer buffer, Path file, Network network, SnapshotTravelTime travelTime) {
+        var numberOfLinks = buffer.getInt();
+        var entries = 0L;
+        for (var l = 0; l < numberOfLinks; l++) {
+            var linkId = Id.createLinkId(readString(buffer));
+            if (!network.getLinks().containsKey(linkId)) {
+                throw new IllegalStateException("Link " + linkId + " from travel time snapshot is not in the network. The network hash should have prevented this.");
+            }
+
+            var numberOfBins = buffer.getInt();
+            if (numberOfBins == 0) continue;
+            var bins = travelTime.bins(linkId);
+            for (var b = 0; b < numberOfBins; b++) {
+                var bin = buffer.getInt();
+                if (bin < 0 || bin >= bins.length) {
+                    throw new IllegalStateException("Time bin " + bin + " of link " + linkId + " in travel time snapshot " + file + " is out of range.");
+                }
+                bins[bin] = buffer.getDouble();
+            }
+            entries += numberOfBins;
+        }
+        return entries;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static Header createHeader(Scenario scenario, String eventsFile) {
+        var binSize = scenario.getConfig().travelTimeCalculator().getTraveltimeBinSize();
+        var maxTime = scenario.getConfig().travelTimeCalculator().getMaxTime();
+        var modes = List.copyOf(new TreeSet<>(scenario.getConfig().routing().getNetworkModes()));
+        return new Header(hashNetwork(scenario.getNetwork(), modes), fingerprint(Path.of(eventsFile)), binSize, maxTime / binSize + 1, modes);
+    }
+
+    /**
+     * Hash over everything of the network which influences the travel times of the modes.
+     */
+    static long hashNetwork(Network network, Collection<String> modes) {
+        var digest = sha256();
+        var buffer = ByteBuffer.allocate(64);
+        for (var link : modeLinks(network, modes)) {
+            digest.update(link.getId().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(link.getFromNode().getId().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(link.getToNode().getId().toString().getBytes(StandardCharsets.UTF_8));
+            buffer.clear();
+            buffer.putDouble(link.getLength());
+            buffer.putDouble(link.getFreespeed());
+            buffer.putDouble(link.getCapacity());
+            buffer.putDouble(link.getNumberOfLanes());
+            digest.update(buffer.array(), 0, buffer.position());
+            for (var mode : new TreeSet<>(link.getAllowedModes())) {
+                digest.update(mode.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Hashing several GB of events would take almost as long as parsing them. The fingerprint therefore covers the size
+     * of the file and its first and last MB.
+     */
+    static long fingerprint(Path file) {
+        var digest = sha256();
+        try (var in = new RandomAccessFile(file.toFile(), "r")) {
+            var length = in.length();
+            digest.update(ByteBuffer.allocate(8).putLong(length).array());
+
+            var bytes = new byte[(int) Math.min(FINGERPRINT_BYTES, length)];
+            in.readFully(bytes);
+            digest.update(bytes);
+            in.seek(length - bytes.length);
+            in.readFully(bytes);
+            digest.update(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    static List<Link> carLinks(Network network) {
+        return modeLinks(network, List.of(TransportMode.car));
+    }
+
+    /**
+     * Links which allow any of the modes, sorted by id.
+     */
+    static List<Link> modeLinks(Network network, Collection<String> modes) {
+        var links = new ArrayList<Link>();
+        for (var link : network.getLinks().values()) {
+            if (modes.stream().anyMatch(link.getAllowedModes()::contains)) links.add(link);
+        }
+        links.sort(Comparator.comparing(link -> link.getId().toString()));
+        return links;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Travel times of one mode of a snapshot. Like the travel time calculator, times after the last bin fall into the last bin,
+     * and bins without traffic have the free speed travel time.
+     */
+    static class SnapshotTravelTime implements TravelTime {
+
+        private final int binSize;
+        private final int numberOfBins;
+        // bins by link index, null for links without traffic and NaN for bins without traffic
+        private double[][] travelTimes = new double[0][];
+
+        SnapshotTravelTime(Header header) {
+            this.binSize = header.binSize();
+            this.numberOfBins = header.numberOfBins();
+        }
+
+        private double[] bins(Id<Link> linkId) {
+            var index = linkId.index();
+            if (index >= travelTimes.length) {
+                travelTimes = Arrays.copyOf(travelTimes, Math.max(index + 1, travelTimes.length * 2));
+            }
+            if (travelTimes[index] == null) {
+                travelTimes[index] = new double[numberOfBins];
+                Arrays.fill(travelTimes[index], Double.NaN);
+            }
+            return travelTimes[index];
+        }
+
+        @Override
+        public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+            var index = link.getId().index();
+            var bins = index < travelTimes.length ? travelTimes[index] : null;
+            if (bins != null) {
+                var bin = (int) Math.min(Math.max(time, 0) / binSize, numberOfBins - 1);
+                if (!Double.isNaN(bins[bin])) return bins[bin];
+            }
+            return link.getLength() / link.getFreespeed(time);
+        }
+    }
+
+    /**
+     * @param modes routed network modes, sorted
+     */
+    record Header(long networkHash, long eventsFingerprint, int binSize, int numberOfBins, List<String> modes) {
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(networkHash);
+            out.writeLong(eventsFingerprint);
+            out.writeInt(binSize);
+            out.writeInt(numberOfBins);
+            out.writeInt(modes.size());
+            for (var mode : modes) {
+                writeString(out, mode);
+            }
+        }
+
+        static Header read(ByteBuffer buffer) {
+            var networkHash = buffer.getLong();
+            var eventsFingerprint = buffer.getLong();
+            var binSize = buffer.getInt();
+            var numberOfBins = buffer.getInt();
+            var modes = new ArrayList<String>();
+            for (var i = buffer.getInt(); i > 0; i--) {
+                modes.add(readString(buffer));
+            }
+            return new Header(networkHash, eventsFingerprint, binSize, numberOfBins, modes);
+        }
+    }
+}
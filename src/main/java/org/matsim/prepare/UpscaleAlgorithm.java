@@ -5,109 +5,237 @@ import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.TransportMode;
-import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.groups.PlansConfigGroup;
-import org.matsim.core.controler.Injector;
-import org.matsim.core.events.EventsUtils;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.population.algorithms.PlanAlgorithm;
 import org.matsim.core.population.algorithms.XY2Links;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.router.PlanRouter;
-import org.matsim.core.router.TripRouter;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.utils.collections.Tuple;
-import org.matsim.core.utils.timing.TimeInterpretation;
 import org.matsim.vehicles.Vehicle;
 import org.matsim.vehicles.VehicleType;
 import org.matsim.vehicles.VehicleUtils;
 
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class UpscaleAlgorithm implements PersonAlgorithm {
 
     private static final Logger log = LogManager.getLogger(UpscaleAlgorithm.class);
 
-    private final PlanRouter router;
-    private final XY2Links xy2Links;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final String CLONE_INFIX = "_cloned_";
+    // clones per parallel chunk are at least this many, so that small factors are not split across threads
+    private static final int MIN_CHUNK_SIZE = 16;
+    private static final int PARALLELISM = ForkJoinPool.getCommonPoolParallelism();
+
+    private final RouterPool routers;
+    private final RouteCache routeCache;
+    private final PlanAlgorithm xy2Links;
+    private final PlanAlgorithm routeRewriter;
     private final Map<String, VehicleType> modeVehicleTypes;
     private final Scenario scenario;
     private final Config config;
     private final Collection<? extends PersonAlgorithm> personAlgorithms;
+    private final List<EncodedPopulationWriter> writers;
+    private final List<? extends PersonAlgorithm> otherAlgorithms;
     private final double factor;
-    private final List<Random> rnds = new ArrayList<>();
-
+    // bytes buffered per writer before the block is handed to the writer
+    private final int blockSize;
+
+    // clones are encoded in parallel chunks. The chunks are appended to the output blocks in the order of the clones,
+    // followed by the original, so that the output is the same with any number of threads. The blocks are handed to
+    // the writers once they are large enough, so that the writers are only locked once per block instead of once per
+    // clone.
+    private final List<CloneBuffer> chunks = new ArrayList<>();
+    private final CloneBuffer output;
+
+    /**
+     * All threads which call {@link #run(Person)} share the router, so it must be called from one thread at a time. Use
+     * {@link #create(double, String, Path, int, int, Path, Scenario, Collection)} for a router per thread.
+     */
     public UpscaleAlgorithm(double factor, PlanRouter router, XY2Links xy2Links, Config config, Scenario scenario, Collection<? extends PersonAlgorithm> personAlgorithms) {
-        this.router = router;
+        this(factor, BLOCK_SIZE, new RouterPool(() -> router), null, xy2Links, null, config, scenario, personAlgorithms);
+    }
+
+    private UpscaleAlgorithm(double factor, int blockSize, RouterPool routers, RouteCache routeCache, PlanAlgorithm xy2Links, PlanAlgorithm routeRewriter, Config config, Scenario scenario, Collection<? extends PersonAlgorithm> personAlgorithms) {
+        this.routers = routers;
+        this.routeCache = routeCache;
         this.xy2Links = xy2Links;
+        this.routeRewriter = routeRewriter;
         this.modeVehicleTypes = createModeVehicleTypes(config, scenario);
         this.scenario = scenario;
         this.config = config;
         this.personAlgorithms = personAlgorithms;
-        this.factor = factor;
-        for (var i = 0; i < factor - 1; i++) {
-            rnds.add(new Random(i));
+        this.writers = personAlgorithms.stream()
+                .flatMap(algorithm -> {
+                    if (algorithm instanceof EncodedPopulationWriter writer) return Stream.of(writer);
+                    if (algorithm instanceof FanOutPopulationWriter fanOut) return fanOut.getWriters().stream();
+                    return Stream.<EncodedPopulationWriter>empty();
+                })
+                .toList();
+        // clone buffers decide with one draw for all writers, see CloneBuffer
+        if (writers.stream().mapToLong(EncodedPopulationWriter::getSeed).distinct().count() > 1) {
+            throw new IllegalArgumentException("All population writers must use the same seed.");
+        }
+        // and one encoding for all writers
+        if (writers.stream().map(EncodedPopulationWriter::getIds).distinct().count() > 1) {
+            throw new IllegalArgumentException("All population writers must use the same dense ids.");
         }
+        this.otherAlgorithms = personAlgorithms.stream()
+                .filter(algorithm -> !(algorithm instanceof EncodedPopulationWriter || algorithm instanceof FanOutPopulationWriter))
+                .toList();
+        this.factor = factor;
+        this.blockSize = blockSize;
+        this.output = new CloneBuffer();
     }
 
     static UpscaleAlgorithm create(double factor, String eventsFile, Scenario scenario, Collection<? extends PersonAlgorithm> algorithms) {
-        var injector = Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
-        var eventsManager = injector.getInstance(EventsManager.class);
-        EventsUtils.readEvents(eventsManager, eventsFile);
-        var tripRouter = injector.getInstance(TripRouter.class);
-        var timeInterpretation = injector.getInstance(TimeInterpretation.class);
-        var planRouter = new PlanRouter(tripRouter, timeInterpretation);
-        var carOnlyNet = scenario.getNetwork().getLinks().values().stream()
-                .filter(link -> link.getAllowedModes().contains(TransportMode.car))
-                .collect(NetworkUtils.getCollector());
-        var xy2Links = new XY2Links(carOnlyNet, scenario.getActivityFacilities());
-        return new UpscaleAlgorithm(factor, planRouter, xy2Links, scenario.getConfig(), scenario, algorithms);
+        return create(factor, eventsFile, null, 0, 0, null, false, scenario, algorithms);
+    }
+
+    /**
+     * @param travelTimeSnapshot optional file for a {@link TravelTimeSnapshot}, which replaces reading the events file
+     *                           if it was created from the same network and events.
+     * @param eventsThreads      parser threads for the {@link TravelTimeEventsReader}, 0 reads all events.
+     * @param routeCacheSize     number of trips kept in the {@link RouteCache}, 0 routes every trip. The cache requires
+     *                           routing randomness to be turned off.
+     * @param linkIndexFile      optional file for the {@link LinkIndex}, which is memory mapped if it was created from
+     *                           the same network.
+     * @param nearestSegment     snap activities to the closest link segment instead of the right entry link of the
+     *                           closest node, which XY2Links uses.
+     */
+    static UpscaleAlgorithm create(double factor, String eventsFile, Path travelTimeSnapshot, int eventsThreads, int routeCacheSize, Path linkIndexFile, boolean nearestSegment, Scenario scenario, Collection<? extends PersonAlgorithm> algorithms) {
+        var injector = TravelTimeSnapshot.createInjector(scenario, eventsFile, travelTimeSnapshot, eventsThreads);
+        var routeCache = routeCacheSize > 0 ? RouteCache.create(routeCacheSize, scenario.getConfig()) : null;
+        var routers = RouterPool.create(injector, routeCache, scenario.getConfig());
+        var xy2Links = LinkIndex.create(scenario.getNetwork(), linkIndexFile).xy2Links(scenario.getActivityFacilities(), nearestSegment);
+        return new UpscaleAlgorithm(factor, BLOCK_SIZE, routers, routeCache, xy2Links, null, scenario.getConfig(), scenario, algorithms);
+    }
+
+    /**
+     * Creates an algorithm which shares routers and network with this one, but passes persons to different algorithms,
+     * e.g. one per worker of a {@link PopulationPipeline}. It hands the output of each person to the writers before
+     * {@link #run(Person)} returns, so that the caller can keep the output of each person together.
+     */
+    UpscaleAlgorithm withPersonAlgorithms(Collection<? extends PersonAlgorithm> algorithms) {
+        return new UpscaleAlgorithm(factor, 0, routers, routeCache, xy2Links, routeRewriter, config, scenario, algorithms);
+    }
+
+    /**
+     * Creates an algorithm which runs the rewriter on each plan after routing, e.g. a {@link NetworkReduction} which
+     * replaces merged links. The rewriter runs once per original person and must not depend on the clones.
+     */
+    UpscaleAlgorithm withRouteRewriter(PlanAlgorithm rewriter) {
+        return new UpscaleAlgorithm(factor, blockSize, routers, routeCache, xy2Links, rewriter, config, scenario, personAlgorithms);
     }
 
     @Override
     public void run(Person person) {
 
-        if (isPtPerson(person)) return; // exclude all pt persons.
+        StageStats.get(StageStats.READ).increment();
+        if (isPtPerson(person)) {
+            StageStats.get(StageStats.PT_DROPPED).increment();
+            return; // exclude all pt persons.
+        }
 
         removeExceptSelectedPlan(person);
         setActCoordsFromFacilities(person, this.scenario);
 
-        // try to process cloned agents in parallel.
-        // it would be better to have this run method parallelized, but I think
-        // that is much more work. So, we compromise on approach, which is cheap
-        // to implement
-        Stream.iterate(0, i -> i + 1).parallel()
-                .limit((int) factor - 1)
-                .map(i -> clonePerson(person, i, scenario))
-                .forEach(cloned -> {
-                    addModeVehicles(cloned, scenario, modeVehicleTypes);
-                    addRoutingModeIfNecessary(cloned, config);
-                    preparePersonForSim(cloned, xy2Links, router);
-
-                    for (var algorithm : personAlgorithms) {
-                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-                        synchronized (algorithm) {
-                            algorithm.run(cloned);
-                        }
-                    }
-                });
+        // the original is prepared even without clones, because its input links and routes may use links which the
+        // network reduction removes or merges. All clones share the plan of the original, so the plan is prepared only
+        // once, on behalf of the original and with its vehicles. Writers replace the vehicles of the routes by the
+        // vehicles of each clone.
+        addModeVehicles(person, modeVehicleTypes);
+        addRoutingModeIfNecessary(person, config);
+        preparePersonForSim(person, xy2Links, routers);
+        if (routeRewriter != null) routeRewriter.run(person.getSelectedPlan());
+
+        var numberOfClones = (int) factor - 1;
+        List<Person> clones = List.of();
+        if (numberOfClones > 0) {
+            assertNumberOfActsAndTrips(person);
+            StageStats.get(StageStats.CLONES).add(numberOfClones);
+
+            // try to process cloned agents in parallel.
+            // it would be better to have this run method parallelized, but I think
+            // that is much more work. So, we compromise on approach, which is cheap
+            // to implement. The list keeps the order of the clones.
+            clones = IntStream.range(0, numberOfClones).parallel()
+                    .mapToObj(i -> {
+                        var cloned = clonePerson(person, i);
+                        addModeVehicles(cloned, modeVehicleTypes);
+                        return cloned;
+                    })
+                    .toList();
+        }
+
+        encode(clones);
+        output.add(person);
+        for (var cloned : clones) {
+            runOtherAlgorithms(cloned);
+        }
+        runOtherAlgorithms(person);
+        output.flush(blockSize);
+    }
+
+    /**
+     * Encodes the clones in parallel chunks and appends the chunks in the order of the clones to the output.
+     */
+    private void encode(List<Person> clones) {
+        if (writers.isEmpty() || clones.isEmpty()) return;
+
+        var chunkSize = Math.max(MIN_CHUNK_SIZE, (clones.size() + PARALLELISM - 1) / PARALLELISM);
+        var numberOfChunks = (clones.size() + chunkSize - 1) / chunkSize;
+        while (chunks.size() < numberOfChunks) {
+            chunks.add(new CloneBuffer());
+        }
+        IntStream.range(0, numberOfChunks).parallel().forEach(chunk -> {
+            var buffer = chunks.get(chunk);
+            for (var i = chunk * chunkSize; i < Math.min(clones.size(), (chunk + 1) * chunkSize); i++) {
+                buffer.add(clones.get(i));
+            }
+        });
+        for (var chunk = 0; chunk < numberOfChunks; chunk++) {
+            chunks.get(chunk).moveTo(output);
+        }
+    }
+
+    private void runOtherAlgorithms(Person person) {
+        for (var algorithm : otherAlgorithms) {
+            algorithm.run(person);
+        }
+    }
 
-        // we can call all algorithms in parallel for the last person
-        personAlgorithms.parallelStream().forEach(algorithm -> algorithm.run(person));
+    /**
+     * Hands all buffered persons to the writers. Must be called before the writers are closed.
+     */
+    public void flush() {
+        output.flush(0);
+        routers.logStats();
+        if (routeCache != null) routeCache.logStats();
     }
 
     public static boolean isPtPerson(Person person) {
-        var mode = TransportMode.pt;
         return person.getSelectedPlan().getPlanElements().stream()
                 .filter(e -> e instanceof Leg)
                 .map(e -> (Leg) e)
-                .anyMatch(l -> l.getRoutingMode().contains(mode) || l.getMode().contains(mode));
+                .anyMatch(l -> isPtMode(l.getRoutingMode()) || isPtMode(l.getMode()));
+    }
+
+    /**
+     * Pt modes are all modes which contain pt, e.g. pt or ptSlow.
+     */
+    public static boolean isPtMode(String mode) {
+        return mode != null && mode.contains(TransportMode.pt);
     }
 
     public static void removeExceptSelectedPlan(Person person) {
@@ -121,38 +249,37 @@ public class UpscaleAlgorithm implements PersonAlgorithm {
         for (var a : acts) {
             if (a.getLinkId() == null) {
                 var facility = scenario.getActivityFacilities().getFacilities().get(a.getFacilityId());
-
-                System.out.println("Found Empty activity. Adding Coord: " + facility.getCoord() + " and link-id:" + facility.getLinkId() + " to activity");
+                StageStats.get(StageStats.FACILITY_COORDS).increment();
                 a.setCoord(facility.getCoord());
                 a.setLinkId(facility.getLinkId());
             }
         }
     }
 
-    public static Person clonePerson(Person person, int i, Scenario scenario) {
-
-        var trips = TripStructureUtils.getTrips(person.getSelectedPlan());
-        var mainActs = TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
-        assertNumberOfActsAndTrips(mainActs, trips);
-        var factory = scenario.getPopulation().getFactory();
-
-        var newPerson = factory.createPerson(Id.createPersonId(person.getId().toString() + "_cloned_" + i));
-        var plan = person.getSelectedPlan();
-        newPerson.addPlan(plan);
-        return newPerson;
+    /**
+     * Creates a {@link ClonedPerson}, which shares the selected plan with the original person. The id of the clone is
+     * a {@link TransientId}, which is released together with the clone. The plan must be routed for the original
+     * before.
+     */
+    public static Person clonePerson(Person person, int i) {
+        return new ClonedPerson(new TransientId<>(Person.class, person.getId(), CLONE_INFIX + i), person);
     }
 
-    private static void assertNumberOfActsAndTrips(Collection<Activity> act, Collection<TripStructureUtils.Trip> trips) {
+    static void assertNumberOfActsAndTrips(Person person) {
+        var trips = TripStructureUtils.getTrips(person.getSelectedPlan());
+        var act = TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
         if (act.size() != trips.size() + 1) {
             throw new RuntimeException("Assuming that we always have at one more activity than trip. Because plans look like: \nActivity->Leg->Activity->Leg->Activiy");
         }
     }
 
-    public static void preparePersonForSim(Person person, XY2Links xy2Links, PlanRouter router) {
+    public static void preparePersonForSim(Person person, PlanAlgorithm xy2Links, RouterPool routers) {
 
         var plan = person.getSelectedPlan();
+        var start = System.nanoTime();
         xy2Links.run(plan);
-        router.run(plan);
+        StageStats.get(StageStats.SNAPPING).record(1, System.nanoTime() - start);
+        routers.run(plan);
     }
 
     public static Map<String, VehicleType> createModeVehicleTypes(Config config, Scenario scenario) {
@@ -162,20 +289,25 @@ public class UpscaleAlgorithm implements PersonAlgorithm {
                 .collect(Collectors.toMap(Tuple::getFirst, Tuple::getSecond));
     }
 
-    public static void addModeVehicles(Person person, Scenario scenario, Map<String, VehicleType> modeVehicleTypes) {
+    /**
+     * Gives the person one vehicle per mode. The vehicles are only referenced by the person attributes and not added to
+     * the scenario, because millions of clones would keep their vehicles on the heap. They are written by a
+     * {@link VehiclesXmlWriter} instead. Persons with a {@link TransientId} get transient vehicle ids as well. Vehicles
+     * which the person already has, e.g. from the input plans, are kept.
+     */
+    public static void addModeVehicles(Person person, Map<String, VehicleType> modeVehicleTypes) {
 
+        var existing = person.getAttributes().getAttribute("vehicles") == null ? Map.<String, Id<Vehicle>>of() : VehicleUtils.getVehicleIds(person);
         var mode2Vehicle = new HashMap<String, Id<Vehicle>>();
+        for (var mode : modeVehicleTypes.keySet()) {
+            if (existing.containsKey(mode)) continue;
 
-        for (var entry : modeVehicleTypes.entrySet()) {
-            var vehId = VehicleUtils.createVehicleId(person, entry.getKey());
-            var veh = scenario.getVehicles().getFactory().createVehicle(vehId, entry.getValue());
-
-            // add veh to scenario. Don't know whether we should delete it later?
-            scenario.getVehicles().addVehicle(veh);
-            mode2Vehicle.put(entry.getKey(), vehId);
+            // same text as VehicleUtils.createVehicleId
+            var vehicleId = person.getId() instanceof TransientId<Person> personId ?
+                    new TransientId<>(Vehicle.class, personId, "_" + mode) : VehicleUtils.createVehicleId(person, mode);
+            mode2Vehicle.put(mode, vehicleId);
         }
-
-        VehicleUtils.insertVehicleIdsIntoAttributes(person, mode2Vehicle);
+        if (!mode2Vehicle.isEmpty()) VehicleUtils.insertVehicleIdsIntoAttributes(person, mode2Vehicle);
     }
 
     /// Stuff below is copied from personprepareforsim because it was not public.
@@ -314,4 +446,49 @@ public class UpscaleAlgorithm implements PersonAlgorithm {
 
         return null;
     }
+
+    private class CloneBuffer {
+
+        private final PopulationXmlEncoder clone = writers.isEmpty() ? new PopulationXmlEncoder() : writers.get(0).newEncoder();
+        private final List<PopulationXmlEncoder> blocks = writers.stream()
+                .map(EncodedPopulationWriter::newEncoder)
+                .toList();
+
+        /**
+         * Encodes the person once and appends it to the blocks of all writers which sample it. All writers share
+         * their seed, so one draw decides for all of them.
+         */
+        void add(Person person) {
+            if (writers.isEmpty()) return;
+
+            clone.reset();
+            var draw = PopulationXmlWriter.draw(writers.get(0).getSeed(), person);
+            for (var i = 0; i < writers.size(); i++) {
+                if (!writers.get(i).sample(draw)) continue;
+
+                if (clone.isEmpty()) clone.encode(person);
+                blocks.get(i).append(clone);
+            }
+        }
+
+        /**
+         * Appends the blocks to the blocks of the other buffer and clears them.
+         */
+        void moveTo(CloneBuffer other) {
+            for (var i = 0; i < writers.size(); i++) {
+                other.blocks.get(i).append(blocks.get(i));
+                blocks.get(i).reset();
+            }
+        }
+
+        void flush(int minSize) {
+            for (var i = 0; i < writers.size(); i++) {
+                var block = blocks.get(i);
+                if (!block.isEmpty() && block.size() >= minSize) {
+                    writers.get(i).write(block);
+                    block.reset();
+                }
+            }
+        }
+    }
 }
@@ -6,21 +6,16 @@ import org.matsim.api.core.v01.Scenario;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.PopulationFactory;
-import org.matsim.core.api.experimental.events.EventsManager;
-import org.matsim.core.controler.Injector;
 import org.matsim.core.controler.PrepareForSim;
-import org.matsim.core.events.EventsUtils;
 import org.matsim.core.router.TripStructureUtils;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Random;
 
 public class UpscalePopulation {
 
-    private static final Random rnd = new Random(42);
-
     public static void upscalePopulation(Scenario scenario, double factor) {
         for (var person : new HashSet<>(scenario.getPopulation().getPersons().values())) {
             var cloned = clonePerson(person, factor, scenario.getPopulation().getFactory());
@@ -31,11 +26,13 @@ public class UpscalePopulation {
     }
 
     public static void prepareForSim(Scenario scenario, String events) {
+        prepareForSim(scenario, events, null);
+    }
 
-        var injector = Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
+    public static void prepareForSim(Scenario scenario, String events, Path travelTimeSnapshot) {
 
-        // read in events
-        EventsUtils.readEvents(injector.getInstance(EventsManager.class), events);
+        // read in events, or the travel times computed from them in a previous run
+        var injector = TravelTimeSnapshot.createInjector(scenario, events, travelTimeSnapshot, 0);
         var prepareForSim = injector.getInstance(PrepareForSim.class);
         prepareForSim.run();
     }
@@ -51,13 +48,14 @@ public class UpscalePopulation {
         for (var i = 0; i < factor - 1; i++) {
             var tripIter = trips.iterator();
             var actIter = mainActs.iterator();
+            var actIndex = 0;
             var newPerson = factory.createPerson(Id.createPersonId(person.getId().toString() + "_cloned_" + i));
             var newPlan = factory.createPlan();
 
             while (actIter.hasNext()) {
                 var act = actIter.next();
-                var rndCoord = createRandomCoord(act.getCoord(), rnd);
-                var newAct = factory.createActivityFromCoord(act.getType(), new Coord(act.getCoord().getX(), act.getCoord().getY()));
+                var rndCoord = createRandomCoord(act.getCoord(), newPerson.getId(), actIndex++);
+                var newAct = factory.createActivityFromCoord(act.getType(), rndCoord);
                 if (act.getStartTime().isDefined()) {
                     newAct.setStartTime(act.getStartTime().seconds());
                 }
@@ -68,7 +66,7 @@ public class UpscalePopulation {
                     newAct.setMaximumDuration(act.getMaximumDuration().seconds());
                 }
 
-                newPlan.addActivity(act);
+                newPlan.addActivity(newAct);
 
                 if (tripIter.hasNext()) {
                     var trip = tripIter.next();
@@ -90,10 +88,11 @@ public class UpscalePopulation {
         }
     }
 
-    private static Coord createRandomCoord(Coord coord, Random rnd) {
+    // the jitter of an activity is keyed by clone and activity, so that it does not depend on the order of the persons
+    private static Coord createRandomCoord(Coord coord, Id<Person> personId, int actIndex) {
 
-        var x = rnd.nextDouble(coord.getX() - 100, coord.getX() + 100);
-        var y = rnd.nextDouble(coord.getY() - 100, coord.getY() + 100);
+        var x = coord.getX() - 100 + 200 * PersonRandom.nextDouble(PersonRandom.DEFAULT_SEED, PersonRandom.JITTER, personId, 2L * actIndex);
+        var y = coord.getY() - 100 + 200 * PersonRandom.nextDouble(PersonRandom.DEFAULT_SEED, PersonRandom.JITTER, personId, 2L * actIndex + 1);
         return new Coord(x, y);
     }
 }
@@ -0,0 +1,127 @@
+package org.matsim.prepare;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.utils.misc.Counter;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the vehicles of each person into a vehicles file, while the persons pass by. Clones get their vehicles only as
+ * person attributes, so that no vehicle objects pile up in the scenario. The vehicle types are taken from the scenario
+ * and written once at the start of the file.
+ */
+public class VehiclesXmlWriter implements PersonAlgorithm {
+
+    private static final String FOOTER = "</vehicleDefinitions>";
+
+    private final Vehicles vehicles;
+    private final Counter counter = new Counter("[" + getClass().getSimpleName() + "] dumped vehicle # ");
+    private OutputStream out;
+    private StageStats.Stage stage;
+
+    /**
+     * @param vehicles holds the vehicle types. Vehicles of persons which are already part of it keep their type, all
+     *                 other vehicles get the type named like their mode.
+     */
+    public VehiclesXmlWriter(Vehicles vehicles) {
+        this.vehicles = vehicles;
+    }
+
+    public void startStreaming(String filename) {
+        out = new BufferedOutputStream(PopulationXmlWriter.openOutputStream(filename), 1 << 16);
+        stage = StageStats.writer(filename);
+        var header = createHeader(Path.of(filename).toAbsolutePath().getParent());
+        write(header.substring(0, header.lastIndexOf(FOOTER)));
+    }
+
+    /**
+     * The vehicle types are written by the MATSim writer, which only writes to files. The header is everything of an
+     * otherwise empty vehicles file except the closing tag.
+     */
+    private String createHeader(Path dir) {
+        var types = VehicleUtils.createVehiclesContainer();
+        for (var type : vehicles.getVehicleTypes().values()) {
+            types.addVehicleType(type);
+        }
+        try {
+            var tmpFile = Files.createTempFile(dir, "vehicle-types", ".xml");
+            try {
+                new MatsimVehicleWriter(types).writeFile(tmpFile.toString());
+                return Files.readString(tmpFile);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void run(Person person) {
+        if (person.getAttributes().getAttribute("vehicles") == null) return;
+
+        var text = new StringBuilder();
+        for (var entry : VehicleUtils.getVehicleIds(person).entrySet()) {
+            appendVehicle(text, entry.getValue().toString(), typeId(vehicles, entry.getKey(), entry.getValue()));
+        }
+        write(text.toString());
+    }
+
+    /**
+     * Writes a vehicle which was already looked up by the caller, e.g. with a new id.
+     */
+    public synchronized void writeVehicle(String id, Id<VehicleType> typeId) {
+        var text = new StringBuilder();
+        appendVehicle(text, id, typeId);
+        write(text.toString());
+    }
+
+    private void appendVehicle(StringBuilder text, String id, Id<VehicleType> typeId) {
+        text.append("\t<vehicle id=\"").append(XmlText.escape(id))
+                .append("\" type=\"").append(XmlText.escape(typeId.toString())).append("\"/>\n");
+        counter.incCounter();
+        stage.increment();
+    }
+
+    /**
+     * Type of the vehicle in the scenario, or the type named like the mode for vehicles which are not part of it.
+     */
+    static Id<VehicleType> typeId(Vehicles vehicles, String mode, Id<Vehicle> vehicleId) {
+        // transient vehicles are never in the scenario, and they have no index to look them up with
+        var vehicle = vehicleId instanceof TransientId ? null : vehicles.getVehicles().get(vehicleId);
+        return vehicle == null ? Id.create(mode, VehicleType.class) : vehicle.getType().getId();
+    }
+
+    public synchronized void closeStreaming() {
+        write(FOOTER + "\n");
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        counter.printCounter();
+    }
+
+    private void write(String text) {
+        try {
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            if (stage != null) stage.addBytes(bytes.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.matsim.prepare;
+
+/**
+ * Escaping of attribute values and text content in the xml files which the prepare tools write and parse themselves.
+ */
+final class XmlText {
+
+    private XmlText() {
+    }
+
+    static String escape(String value) {
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '&' || c == '<' || c == '>' || c == '"') {
+                return value.replace("&", "&amp;")
+                        .replace("<", "&lt;")
+                        .replace(">", "&gt;")
+                        .replace("\"", "&quot;");
+            }
+        }
+        return value;
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('&') < 0) return value;
+        return value.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    /**
+     * Raw value of the attribute in a tag which the prepare tools wrote themselves, i.e. with double quotes, or null if
+     * the tag has no such attribute.
+     */
+    static String attributeValue(String tag, String name) {
+        var key = " " + name + "=\"";
+        var start = tag.indexOf(key);
+        if (start < 0) return null;
+        start += key.length();
+        var end = tag.indexOf('"', start);
+        return end < 0 ? null : tag.substring(start, end);
+    }
+}
@@ -0,0 +1,134 @@
+package org.matsim.prepare;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.GenericRouteImpl;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryPopulationTest {
+
+    private static final Logger log = LogManager.getLogger(BinaryPopulationTest.class);
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var population = scenario.getPopulation();
+
+        var xmlFile = utils.getOutputDirectory() + "plans.xml.gz";
+        var xmlWriter = new PopulationXmlWriter();
+        xmlWriter.startStreaming(xmlFile);
+        var binaryFile = utils.getOutputDirectory() + "plans.bin";
+        var binaryWriter = new BinaryPopulationWriter();
+        binaryWriter.startStreaming(binaryFile);
+        for (var person : population.getPersons().values()) {
+            xmlWriter.run(person);
+            binaryWriter.run(person);
+        }
+        xmlWriter.closeStreaming();
+        binaryWriter.closeStreaming();
+
+        var xmlStart = System.nanoTime();
+        PopulationUtils.readPopulation(xmlFile);
+        var xmlNanos = System.nanoTime() - xmlStart;
+
+        var readPersons = new ArrayList<Person>();
+        var binaryStart = System.nanoTime();
+        var count = new BinaryPopulationReader(population.getFactory()).readFile(binaryFile, readPersons::add);
+        var binaryNanos = System.nanoTime() - binaryStart;
+
+        log.info(String.format("xml: %d bytes, read in %.1fms. binary: %d bytes, read in %.1fms",
+                Files.size(Path.of(xmlFile)), xmlNanos / 1e6, Files.size(Path.of(binaryFile)), binaryNanos / 1e6));
+
+        assertEquals(population.getPersons().size(), count);
+        for (var readPerson : readPersons) {
+            var person = population.getPersons().get(readPerson.getId());
+            assertNotNull(person);
+
+            var expected = person.getSelectedPlan().getPlanElements();
+            var actual = readPerson.getSelectedPlan().getPlanElements();
+            assertEquals(expected.size(), actual.size());
+            for (var i = 0; i < expected.size(); i++) {
+                if (expected.get(i) instanceof Activity act) {
+                    var readAct = (Activity) actual.get(i);
+                    assertEquals(act.getType(), readAct.getType());
+                    assertEquals(act.getLinkId(), readAct.getLinkId());
+                    assertEquals(act.getCoord(), readAct.getCoord());
+                    assertEquals(act.getEndTime(), readAct.getEndTime());
+                    assertEquals(act.getMaximumDuration(), readAct.getMaximumDuration());
+                } else {
+                    var leg = (Leg) expected.get(i);
+                    var readLeg = (Leg) actual.get(i);
+                    assertEquals(leg.getMode(), readLeg.getMode());
+                    assertEquals(leg.getDepartureTime(), readLeg.getDepartureTime());
+                    assertEquals(leg.getRoute().getStartLinkId(), readLeg.getRoute().getStartLinkId());
+                    assertEquals(leg.getRoute().getEndLinkId(), readLeg.getRoute().getEndLinkId());
+                    assertEquals(leg.getRoute().getRouteDescription(), readLeg.getRoute().getRouteDescription());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTripOfLongStringsAndManyVehicles() {
+
+        var factory = PopulationUtils.getFactory();
+        var person = factory.createPerson(Id.createPersonId("x".repeat(70_000)));
+        // more than a signed short can count
+        var vehicles = new HashMap<String, Id<Vehicle>>();
+        for (var i = 0; i < 40_000; i++) {
+            vehicles.put("mode_" + i, Id.createVehicleId("vehicle_" + i));
+        }
+        VehicleUtils.insertVehicleIdsIntoAttributes(person, vehicles);
+        var plan = factory.createPlan();
+        plan.addActivity(factory.createActivityFromLinkId("home", Id.createLinkId("1")));
+        var leg = factory.createLeg(TransportMode.walk);
+        var route = new GenericRouteImpl(Id.createLinkId("1"), Id.createLinkId("2"));
+        route.setRouteDescription("d".repeat(100_000));
+        leg.setRoute(route);
+        plan.addLeg(leg);
+        plan.addActivity(factory.createActivityFromLinkId("work", Id.createLinkId("2")));
+        person.addPlan(plan);
+
+        var binaryFile = utils.getOutputDirectory() + "plans.bin";
+        var writer = new BinaryPopulationWriter();
+        writer.startStreaming(binaryFile);
+        writer.run(person);
+        writer.closeStreaming();
+
+        var readPersons = new ArrayList<Person>();
+        assertEquals(1, new BinaryPopulationReader(factory).readFile(binaryFile, readPersons::add));
+        var readPerson = readPersons.get(0);
+        assertEquals(person.getId(), readPerson.getId());
+        assertEquals(vehicles, VehicleUtils.getVehicleIds(readPerson));
+        var readLeg = (Leg) readPerson.getSelectedPlan().getPlanElements().get(1);
+        assertEquals(route.getRouteDescription(), readLeg.getRoute().getRouteDescription());
+    }
+}
@@ -0,0 +1,169 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DenseIdsTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void writesNetworkPopulationAndVehiclesWithDenseIds() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var scenario = ScenarioUtils.loadScenario(ConfigUtils.loadConfig(configURL));
+        var carType = VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class));
+        scenario.getVehicles().addVehicleType(carType);
+
+        var outputDir = Path.of(utils.getOutputDirectory());
+        var ids = new DenseIds(scenario.getNetwork(), linkId -> true, scenario.getVehicles());
+        var populationWriter = new PopulationXmlWriter(1.0, PersonRandom.DEFAULT_SEED, ids);
+        populationWriter.startStreaming(outputDir.resolve("run.compact.plans.xml.gz").toString());
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            UpscaleAlgorithm.addModeVehicles(person, Map.of(TransportMode.car, carType));
+            for (var leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+                if (leg.getRoute() instanceof NetworkRoute route) route.setVehicleId(VehicleUtils.getVehicleIds(person).get(TransportMode.car));
+            }
+            populationWriter.run(person);
+        }
+        populationWriter.closeStreaming();
+        ids.writeNetwork(scenario.getNetwork(), outputDir, "run");
+
+        var nodeIds = readTable(outputDir.resolve("run.node-ids.txt.gz"));
+        var linkIds = readTable(outputDir.resolve("run.link-ids.txt.gz"));
+        var network = NetworkUtils.readNetwork(outputDir.resolve("run.compact.network.xml.gz").toString());
+        assertEquals(scenario.getNetwork().getLinks().size(), network.getLinks().size());
+        assertEquals(scenario.getNetwork().getNodes().size(), nodeIds.size());
+        for (var link : network.getLinks().values()) {
+            var original = scenario.getNetwork().getLinks().get(Id.createLinkId(linkIds.get(index(link.getId()))));
+            assertEquals(original.getFromNode().getId().toString(), nodeIds.get(index(link.getFromNode().getId())));
+            assertEquals(original.getToNode().getId().toString(), nodeIds.get(index(link.getToNode().getId())));
+            assertEquals(original.getLength(), link.getLength());
+        }
+
+        var personIds = readTable(outputDir.resolve("run.compact.person-ids.txt.gz"));
+        var vehicleIds = readTable(outputDir.resolve("run.compact.vehicle-ids.txt.gz"));
+        var population = PopulationUtils.readPopulation(outputDir.resolve("run.compact.plans.xml.gz").toString());
+        assertEquals(scenario.getPopulation().getPersons().size(), personIds.size());
+        for (var person : population.getPersons().values()) {
+            var original = scenario.getPopulation().getPersons().get(Id.createPersonId(personIds.get(index(person.getId()))));
+            var vehicleId = VehicleUtils.getVehicleIds(person).get(TransportMode.car);
+            assertEquals(VehicleUtils.getVehicleIds(original).get(TransportMode.car).toString(), vehicleIds.get(index(vehicleId)));
+
+            var legs = TripStructureUtils.getLegs(person.getSelectedPlan());
+            var originalLegs = TripStructureUtils.getLegs(original.getSelectedPlan());
+            for (var i = 0; i < legs.size(); i++) {
+                var route = (NetworkRoute) legs.get(i).getRoute();
+                var originalRoute = (NetworkRoute) originalLegs.get(i).getRoute();
+                assertEquals(vehicleId, route.getVehicleId());
+                assertEquals(originalRoute.getLinkIds().stream().map(Id::toString).toList(),
+                        route.getLinkIds().stream().map(id -> linkIds.get(index(id))).toList());
+                assertEquals(originalRoute.getStartLinkId().toString(), linkIds.get(index(route.getStartLinkId())));
+                assertEquals(originalRoute.getEndLinkId().toString(), linkIds.get(index(route.getEndLinkId())));
+            }
+        }
+
+        var vehicles = VehicleUtils.createVehiclesContainer();
+        new MatsimVehicleReader(vehicles).readFile(outputDir.resolve("run.compact.vehicles.xml.gz").toString());
+        assertEquals(vehicleIds.size(), vehicles.getVehicles().size());
+        for (var i = 0; i < vehicleIds.size(); i++) {
+            assertNotNull(vehicles.getVehicles().get(Id.createVehicleId(String.valueOf(i))));
+        }
+    }
+
+    @Test
+    public void everySampleNumbersItsClonesInFileOrder() throws IOException {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var scenario = ScenarioUtils.loadScenario(ConfigUtils.loadConfig(configURL));
+        scenario.getVehicles().addVehicleType(VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class)));
+        var outputDir = Path.of(utils.getOutputDirectory());
+        var eventsFile = outputDir.resolve("events.xml");
+        Files.writeString(eventsFile, "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n</events>\n");
+
+        // both samples share the encoding of each clone, but number persons and vehicles on their own. The sorted
+        // sample numbers them in the sorted order, after spilling and merging runs
+        var ids = new DenseIds(scenario.getNetwork(), linkId -> true, scenario.getVehicles());
+        var samples = List.of("all", "half");
+        var writers = List.of(new PopulationXmlWriter(1.0, PersonRandom.DEFAULT_SEED, ids),
+                new PopulationXmlWriter(0.5, PersonRandom.DEFAULT_SEED, ids).sortByFirstDeparture(4096));
+        for (var i = 0; i < writers.size(); i++) {
+            writers.get(i).startStreaming(outputDir.resolve(samples.get(i) + ".plans.xml.gz").toString());
+        }
+        var fanOut = new FanOutPopulationWriter(writers);
+        var algorithm = UpscaleAlgorithm.create(40, eventsFile.toString(), scenario, List.of(fanOut));
+        List.copyOf(scenario.getPopulation().getPersons().values()).forEach(algorithm::run);
+        algorithm.flush();
+        fanOut.closeStreaming();
+
+        for (var sample : samples) {
+            var personIds = readTable(outputDir.resolve(sample + ".person-ids.txt.gz"));
+            var vehicleIds = readTable(outputDir.resolve(sample + ".vehicle-ids.txt.gz"));
+            var written = new ArrayList<Person>();
+            var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+            reader.addAlgorithm(written::add);
+            reader.readFile(outputDir.resolve(sample + ".plans.xml.gz").toString());
+
+            assertEquals(personIds.size(), written.size());
+            assertEquals(personIds.size(), Set.copyOf(personIds).size());
+            var vehicles = new HashSet<String>();
+            for (var i = 0; i < written.size(); i++) {
+                var person = written.get(i);
+                assertEquals(i, index(person.getId()));
+                var vehicleId = VehicleUtils.getVehicleIds(person).get(TransportMode.car);
+                assertTrue(vehicleIds.get(index(vehicleId)).startsWith(personIds.get(i)), "vehicle " + vehicleId + " of person " + i);
+                assertTrue(vehicles.add(vehicleId.toString()));
+                for (var leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+                    assertEquals(vehicleId, ((NetworkRoute) leg.getRoute()).getVehicleId());
+                }
+            }
+            assertEquals(vehicleIds.size(), vehicles.size());
+            if (sample.equals("half")) {
+                for (var i = 1; i < written.size(); i++) {
+                    assertTrue(SortPopulation.firstDeparture(written.get(i - 1)) <= SortPopulation.firstDeparture(written.get(i)));
+                }
+            }
+        }
+    }
+
+    private static int index(Id<?> id) {
+        return Integer.parseInt(id.toString());
+    }
+
+    private static List<String> readTable(Path file) {
+        try (var reader = IOUtils.getBufferedReader(file.toString())) {
+            return reader.lines().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
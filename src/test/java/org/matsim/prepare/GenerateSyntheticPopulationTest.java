@@ -0,0 +1,68 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GenerateSyntheticPopulationTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void generatesChainsOnNetwork() {
+
+        var network = NetworkUtils.readNetwork(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "network.xml").toString());
+        var args = new GenerateSyntheticPopulation.InputArgs();
+        args.size = 1000;
+        args.activityChains = List.of("h-w-h:3", "h-s-l-h:1");
+
+        var persons = new ArrayList<Person>();
+        new GenerateSyntheticPopulation(network, args).generate(persons::add);
+
+        assertEquals(1000, persons.size());
+        var chains = persons.stream()
+                .map(person -> TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities).stream()
+                        .map(Activity::getType)
+                        .collect(Collectors.joining("-")))
+                .collect(Collectors.groupingBy(chain -> chain, Collectors.counting()));
+        assertEquals(2, chains.size());
+        assertEquals(750, chains.get("h-w-h"), 60);
+
+        for (var person : persons) {
+            var activities = TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities);
+            for (var i = 1; i < activities.size() - 1; i++) {
+                assertTrue(activities.get(i).getEndTime().seconds() > activities.get(i - 1).getEndTime().seconds());
+            }
+            assertEquals(activities.get(0).getCoord(), activities.get(activities.size() - 1).getCoord());
+        }
+    }
+
+    @Test
+    public void sameArgumentsGenerateSamePopulation() {
+
+        var outputDir = Path.of(utils.getOutputDirectory());
+        for (var runId : List.of("a", "b")) {
+            GenerateSyntheticPopulation.main(new String[]{"-o", outputDir.resolve(runId).toString(), "-r", "synthetic", "-g", "10", "-s", "200", "-sd", "gauss"});
+        }
+
+        var a = PopulationUtils.readPopulation(outputDir.resolve("a/synthetic.plans.xml.gz").toString());
+        var b = PopulationUtils.readPopulation(outputDir.resolve("b/synthetic.plans.xml.gz").toString());
+        assertEquals(200, a.getPersons().size());
+        assertTrue(PopulationUtils.equalPopulation(a, b));
+    }
+}
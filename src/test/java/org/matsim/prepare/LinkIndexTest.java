@@ -0,0 +1,167 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LinkIndexTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void nearestLinkMatchesBruteForce() {
+
+        var network = loadNetwork();
+        var index = LinkIndex.create(network);
+
+        for (var coord : createCoords(network)) {
+            var nearest = index.getNearestLink(coord);
+            assertNotNull(nearest);
+            var expected = network.getLinks().values().stream().mapToDouble(link -> distance(link, coord)).min().orElseThrow();
+            assertEquals(expected, distance(network.getLinks().get(nearest), coord), 1e-6, "Wrong link for " + coord);
+        }
+    }
+
+    @Test
+    public void rightEntryLinkMatchesNetworkUtils() {
+
+        var network = loadNetwork();
+        var index = LinkIndex.create(network);
+
+        for (var coord : createCoords(network)) {
+            assertEquals(NetworkUtils.getNearestRightEntryLink(network, coord).getId(), index.getNearestRightEntryLink(coord), "Wrong link for " + coord);
+        }
+    }
+
+    @Test
+    public void indexIsMappedFromFile() {
+
+        var network = loadNetwork();
+        var file = Path.of(utils.getOutputDirectory()).resolve("links.index");
+        var built = LinkIndex.create(network, file);
+        assertTrue(Files.exists(file));
+        var mapped = LinkIndex.create(network, file);
+
+        var coords = createCoords(network);
+        for (var coord : coords) {
+            assertEquals(built.getNearestLink(coord), mapped.getNearestLink(coord));
+            assertEquals(built.getNearestRightEntryLink(coord), mapped.getNearestRightEntryLink(coord));
+        }
+
+        // moving a node changes the geometry, so the file must be replaced
+        var node = network.getNodes().values().iterator().next();
+        node.setCoord(new Coord(node.getCoord().getX() + 1000, node.getCoord().getY()));
+        var rebuilt = LinkIndex.create(network, file);
+        var fresh = LinkIndex.create(network);
+        for (var coord : coords) {
+            assertEquals(fresh.getNearestLink(coord), rebuilt.getNearestLink(coord));
+        }
+    }
+
+    @Test
+    public void truncatedFileIsReplaced() throws IOException {
+
+        var network = loadNetwork();
+        var file = Path.of(utils.getOutputDirectory()).resolve("links.index");
+        var built = LinkIndex.create(network, file);
+        var bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        var replaced = LinkIndex.create(network, file);
+        assertEquals(bytes.length, Files.size(file));
+        for (var coord : createCoords(network)) {
+            assertEquals(built.getNearestRightEntryLink(coord), replaced.getNearestRightEntryLink(coord));
+        }
+    }
+
+    @Test
+    public void rightSideWinsForBothDirections() {
+
+        var network = NetworkUtils.createNetwork();
+        var a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+        var b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(100, 0));
+        var ab = NetworkUtils.createAndAddLink(network, Id.createLinkId("a-b"), a, b, 100, 10, 1000, 1);
+        var ba = NetworkUtils.createAndAddLink(network, Id.createLinkId("b-a"), b, a, 100, 10, 1000, 1);
+
+        var index = LinkIndex.create(network);
+        // driving from a to b in the east, south is on the right
+        assertEquals(ab.getId(), index.getNearestLink(new Coord(50, -10)));
+        assertEquals(ba.getId(), index.getNearestLink(new Coord(50, 10)));
+    }
+
+    @Test
+    public void removedFacilityLinksAreReplaced() {
+
+        var network = NetworkUtils.createNetwork();
+        var a = NetworkUtils.createAndAddNode(network, Id.createNodeId("a"), new Coord(0, 0));
+        var b = NetworkUtils.createAndAddNode(network, Id.createNodeId("b"), new Coord(100, 0));
+        var deadEnd = NetworkUtils.createAndAddNode(network, Id.createNodeId("dead-end"), new Coord(0, 100));
+        NetworkUtils.createAndAddLink(network, Id.createLinkId("a-b"), a, b, 100, 10, 1000, 1);
+        NetworkUtils.createAndAddLink(network, Id.createLinkId("b-a"), b, a, 100, 10, 1000, 1);
+        var removed = NetworkUtils.createAndAddLink(network, Id.createLinkId("a-dead-end"), a, deadEnd, 100, 10, 1000, 1);
+
+        var facilities = FacilitiesUtils.createActivityFacilities();
+        var facility = facilities.getFactory().createActivityFacility(Id.create("f", ActivityFacility.class), new Coord(10, 90), removed.getId());
+        facilities.addActivityFacility(facility);
+
+        new NetworkReduction(network).keepLargestComponent(TransportMode.car);
+        assertFalse(network.getLinks().containsKey(removed.getId()));
+
+        var plan = PopulationUtils.createPlan();
+        var act = PopulationUtils.createActivityFromLinkId("home", removed.getId());
+        act.setFacilityId(facility.getId());
+        plan.addActivity(act);
+        LinkIndex.create(network).xy2Links(facilities).run(plan);
+        assertTrue(network.getLinks().containsKey(act.getLinkId()), "activity is on link " + act.getLinkId());
+    }
+
+    private static Network loadNetwork() {
+        var url = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "network.xml");
+        return NetworkUtils.readNetwork(url.toString());
+    }
+
+    private static List<Coord> createCoords(Network network) {
+        var coords = new ArrayList<Coord>();
+        var rnd = new Random(42);
+        for (var node : network.getNodes().values()) {
+            coords.add(node.getCoord());
+        }
+        // includes coordinates outside the bounding box of the network
+        for (var i = 0; i < 1000; i++) {
+            coords.add(new Coord(-30_000 + rnd.nextDouble() * 60_000, -30_000 + rnd.nextDouble() * 60_000));
+        }
+        return coords;
+    }
+
+    private static double distance(Link link, Coord coord) {
+        var from = link.getFromNode().getCoord();
+        var to = link.getToNode().getCoord();
+        var dx = to.getX() - from.getX();
+        var dy = to.getY() - from.getY();
+        var lengthSquared = dx * dx + dy * dy;
+        var t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((coord.getX() - from.getX()) * dx + (coord.getY() - from.getY()) * dy) / lengthSquared));
+        return Math.hypot(from.getX() + t * dx - coord.getX(), from.getY() + t * dy - coord.getY());
+    }
+}
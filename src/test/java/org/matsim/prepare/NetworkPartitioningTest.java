@@ -0,0 +1,108 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetworkPartitioningTest {
+
+    private static final int SIZE = 10;
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void partitionsAreBalancedByLoad() {
+
+        var network = createGrid();
+        // the western half of the grid carries all the traffic
+        var partitioning = NetworkPartitioning.create(network, linkId -> westernLoad(network.getLinks().get(linkId)), 4, 0.03);
+
+        var partitions = new HashSet<Integer>();
+        var westernNodes = 0;
+        var easternNodes = 0;
+        for (var node : network.getNodes().values()) {
+            var partition = partitioning.getPartition(node.getId());
+            assertTrue(partition >= 0 && partition < 4);
+            partitions.add(partition);
+        }
+        assertEquals(4, partitions.size());
+        assertTrue(partitioning.getImbalance() < 1.1, "Imbalance is " + partitioning.getImbalance());
+        // a cut through a grid should only cross a few rows or columns
+        assertTrue(partitioning.getCutLinks() < 6 * SIZE, "Cut links: " + partitioning.getCutLinks());
+
+        // loaded nodes are heavier, so more of the partitions are in the west
+        var westernPartitions = new HashSet<Integer>();
+        for (var node : network.getNodes().values()) {
+            if (node.getCoord().getX() < SIZE / 2 * 100) {
+                westernNodes++;
+                westernPartitions.add(partitioning.getPartition(node.getId()));
+            } else {
+                easternNodes++;
+            }
+        }
+        assertEquals(westernNodes, easternNodes);
+        assertTrue(westernPartitions.size() >= 3);
+    }
+
+    @Test
+    public void shardsContainEachLinkOnce() {
+
+        var network = createGrid();
+        var partitioning = NetworkPartitioning.create(network, linkId -> westernLoad(network.getLinks().get(linkId)), 3, 0.03);
+        var outputDir = Path.of(utils.getOutputDirectory());
+        partitioning.write(outputDir, "test");
+
+        var links = new HashSet<Id<Link>>();
+        for (var rank = 0; rank < 3; rank++) {
+            assertTrue(Files.exists(outputDir.resolve("test.network.rank-" + rank + ".xml.gz")));
+            var shard = partitioning.createShard(rank);
+            for (var link : shard.getLinks().values()) {
+                assertTrue(links.add(link.getId()));
+                assertEquals(rank, link.getToNode().getAttributes().getAttribute(NetworkPartitioning.PARTITION_ATTRIBUTE));
+                assertEquals(partitioning.getPartition(link.getFromNode().getId()), link.getFromNode().getAttributes().getAttribute(NetworkPartitioning.PARTITION_ATTRIBUTE));
+            }
+        }
+        assertEquals(network.getLinks().keySet(), links);
+        assertTrue(Files.exists(outputDir.resolve("test.partitions.csv")));
+        assertTrue(Files.exists(outputDir.resolve("test.partition-stats.csv")));
+    }
+
+    private static long westernLoad(Link link) {
+        return link.getToNode().getCoord().getX() < SIZE / 2 * 100 ? 10 : 0;
+    }
+
+    private static Network createGrid() {
+        var network = NetworkUtils.createNetwork();
+        var nodes = new Node[SIZE][SIZE];
+        for (var x = 0; x < SIZE; x++) {
+            for (var y = 0; y < SIZE; y++) {
+                nodes[x][y] = NetworkUtils.createAndAddNode(network, Id.createNodeId(x + "_" + y), new Coord(x * 100, y * 100));
+            }
+        }
+        for (var x = 0; x < SIZE; x++) {
+            for (var y = 0; y < SIZE; y++) {
+                if (x + 1 < SIZE) addLinks(network, nodes[x][y], nodes[x + 1][y]);
+                if (y + 1 < SIZE) addLinks(network, nodes[x][y], nodes[x][y + 1]);
+            }
+        }
+        return network;
+    }
+
+    private static void addLinks(Network network, Node a, Node b) {
+        NetworkUtils.createAndAddLink(network, Id.createLinkId(a.getId() + "-" + b.getId()), a, b, 100, 10, 1000, 1);
+        NetworkUtils.createAndAddLink(network, Id.createLinkId(b.getId() + "-" + a.getId()), b, a, 100, 10, 1000, 1);
+    }
+}
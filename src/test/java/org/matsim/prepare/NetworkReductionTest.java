@@ -0,0 +1,154 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetworkReductionTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void removeModes() {
+
+        var network = createNetwork();
+        var stop = NetworkUtils.createAndAddNode(network, Id.createNodeId("stop"), new Coord(100, -100));
+        var ptOnly = NetworkUtils.createAndAddLink(network, Id.createLinkId("pt"), network.getNodes().get(Id.createNodeId("a")), stop, 100, 10, 1000, 1);
+        ptOnly.setAllowedModes(Set.of(TransportMode.pt));
+        var mixed = network.getLinks().get(Id.createLinkId("s-a"));
+        mixed.setAllowedModes(Set.of(TransportMode.car, TransportMode.pt));
+
+        new NetworkReduction(network).removeModes(Set.of(TransportMode.pt));
+
+        assertFalse(network.getLinks().containsKey(ptOnly.getId()));
+        assertFalse(network.getNodes().containsKey(stop.getId()));
+        assertEquals(Set.of(TransportMode.car), network.getLinks().get(mixed.getId()).getAllowedModes());
+    }
+
+    @Test
+    public void keepLargestComponent() {
+
+        var network = createNetwork();
+        // a one way dead end, which can be entered but not left
+        NetworkUtils.createAndAddNode(network, Id.createNodeId("dead-end"), new Coord(500, 500));
+        addLink(network, "a", "dead-end");
+        var linksBefore = network.getLinks().size();
+
+        new NetworkReduction(network).keepLargestComponent(TransportMode.car);
+
+        assertEquals(linksBefore - 1, network.getLinks().size());
+        assertFalse(network.getNodes().containsKey(Id.createNodeId("dead-end")));
+    }
+
+    @Test
+    public void contractChainsAndRewriteRoutes() {
+
+        var network = createNetwork();
+        var reduction = new NetworkReduction(network).findChains();
+
+        // a route over the whole chain, and one which starts in the middle of it
+        var plan = PopulationUtils.createPlan();
+        plan.addActivity(PopulationUtils.createActivityFromLinkId("home", Id.createLinkId("s-a")));
+        var leg = PopulationUtils.createLeg(TransportMode.car);
+        leg.setRoute(RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("s-a"), ids("a-b", "b-c", "c-d"), Id.createLinkId("d-t")));
+        plan.addLeg(leg);
+        plan.addActivity(PopulationUtils.createActivityFromLinkId("work", Id.createLinkId("d-t")));
+        var back = PopulationUtils.createLeg(TransportMode.car);
+        back.setRoute(RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("d-t"), ids("t-d", "d-c", "c-b"), Id.createLinkId("b-a")));
+        plan.addLeg(back);
+        plan.addActivity(PopulationUtils.createActivityFromLinkId("shop", Id.createLinkId("b-a")));
+
+        reduction.run(plan);
+        var route = (NetworkRoute) ((Leg) plan.getPlanElements().get(1)).getRoute();
+        assertEquals(Id.createLinkId("s-a"), route.getStartLinkId());
+        assertEquals(ids("a-b"), route.getLinkIds());
+        assertEquals(Id.createLinkId("d-t"), route.getEndLinkId());
+        var backRoute = (NetworkRoute) ((Leg) plan.getPlanElements().get(3)).getRoute();
+        assertEquals(ids("t-d"), backRoute.getLinkIds());
+        assertEquals(Id.createLinkId("d-c"), backRoute.getEndLinkId());
+        assertEquals(Id.createLinkId("d-c"), PopulationUtils.getLastActivity(plan).getLinkId());
+
+        // rewriting twice must not change the plan
+        reduction.run(plan);
+        assertEquals(ids("a-b"), ((NetworkRoute) ((Leg) plan.getPlanElements().get(1)).getRoute()).getLinkIds());
+
+        reduction.applyContraction();
+        assertFalse(network.getNodes().containsKey(Id.createNodeId("b")));
+        assertFalse(network.getNodes().containsKey(Id.createNodeId("c")));
+        var mergedLink = network.getLinks().get(Id.createLinkId("a-b"));
+        assertEquals(300, mergedLink.getLength(), 1e-9);
+        assertEquals(Id.createNodeId("d"), mergedLink.getToNode().getId());
+        assertEquals(Id.createNodeId("a"), network.getLinks().get(Id.createLinkId("d-c")).getToNode().getId());
+
+        var mapping = Path.of(utils.getOutputDirectory()).resolve("link-mapping.csv");
+        reduction.writeMapping(mapping);
+        assertTrue(Files.exists(mapping));
+    }
+
+    @Test
+    public void linksWithOtherAttributesAreNotMerged() {
+
+        var network = createNetwork();
+        network.getLinks().get(Id.createLinkId("b-c")).getAttributes().putAttribute("type", "bridge");
+        var linksBefore = network.getLinks().size();
+
+        var reduction = new NetworkReduction(network).findChains();
+        reduction.applyContraction();
+
+        // b and c are junctions of links with different attributes now, so neither direction of the chain is merged
+        assertEquals(linksBefore, network.getLinks().size());
+        assertTrue(network.getNodes().containsKey(Id.createNodeId("b")));
+    }
+
+    private static List<Id<Link>> ids(String... ids) {
+        return Arrays.stream(ids).map(Id::createLinkId).toList();
+    }
+
+    /**
+     * Two way chain a-b-c-d between junctions, which connect to s and t in both directions.
+     */
+    private static Network createNetwork() {
+        var network = NetworkUtils.createNetwork();
+        var names = List.of("s", "a", "b", "c", "d", "t");
+        for (var i = 0; i < names.size(); i++) {
+            NetworkUtils.createAndAddNode(network, Id.createNodeId(names.get(i)), new Coord(i * 100, 0));
+        }
+        NetworkUtils.createAndAddNode(network, Id.createNodeId("x"), new Coord(100, 100));
+        NetworkUtils.createAndAddNode(network, Id.createNodeId("y"), new Coord(400, 100));
+        for (var i = 0; i + 1 < names.size(); i++) {
+            addLink(network, names.get(i), names.get(i + 1));
+            addLink(network, names.get(i + 1), names.get(i));
+        }
+        // junctions at a and d, so that s-a and d-t are not part of the chain
+        addLink(network, "a", "x");
+        addLink(network, "x", "a");
+        addLink(network, "d", "y");
+        addLink(network, "y", "d");
+        return network;
+    }
+
+    private static void addLink(Network network, String from, String to) {
+        var link = NetworkUtils.createAndAddLink(network, Id.createLinkId(from + "-" + to),
+                network.getNodes().get(Id.createNodeId(from)), network.getNodes().get(Id.createNodeId(to)), 100, 10, 1000, 1);
+        link.setAllowedModes(Set.of(TransportMode.car));
+    }
+}
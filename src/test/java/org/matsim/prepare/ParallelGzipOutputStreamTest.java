@@ -0,0 +1,101 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        var input = createInput();
+        var compressed = compress(input, ParallelGzipOutputStream.MAX_BLOCK_SIZE);
+
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(input, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void outputIsStable() throws IOException {
+
+        var input = createInput();
+
+        assertArrayEquals(compress(input, 10_000), compress(input, 10_000));
+        assertNotEquals(compress(input, 10_000).length, compress(input, 20_000).length);
+    }
+
+    @Test
+    public void incompressibleInput() throws IOException {
+
+        var input = new byte[1_000_000];
+        new Random(42).nextBytes(input);
+        var compressed = compress(input, ParallelGzipOutputStream.MAX_BLOCK_SIZE);
+
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(input, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void failedWriteClosesOutput() {
+
+        var closed = new AtomicBoolean();
+        var failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        var out = new ParallelGzipOutputStream(failing, 10_000, Deflater.DEFAULT_COMPRESSION);
+        // blocks may already fail while writing, once too many of them are pending
+        assertThrows(IOException.class, () -> {
+            try {
+                out.write(createInput());
+            } finally {
+                out.close();
+            }
+        });
+        assertTrue(closed.get());
+    }
+
+    private static byte[] compress(byte[] input, int blockSize) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new ParallelGzipOutputStream(bytes, blockSize, Deflater.DEFAULT_COMPRESSION)) {
+            // write in odd chunks and flush in between, which must not change the output
+            var rnd = new Random(1);
+            var offset = 0;
+            while (offset < input.length) {
+                var length = Math.min(input.length - offset, rnd.nextInt(5000));
+                out.write(input, offset, length);
+                if (rnd.nextDouble() < 0.1) out.flush();
+                offset += length;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] createInput() {
+        var text = new StringBuilder();
+        for (var i = 0; i < 100_000; i++) {
+            text.append("\t\t\t<activity type=\"home\" link=\"").append(i % 977).append("\" end_time=\"06:00:00\" >\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PersonRandomTest {
+
+    @Test
+    public void drawsOnlyDependOnKey() {
+
+        var person = Id.createPersonId("person");
+        var draw = PersonRandom.nextDouble(42, PersonRandom.SAMPLE, person, 0);
+        for (var i = 0; i < 100; i++) {
+            PersonRandom.nextDouble(42, PersonRandom.SAMPLE, Id.createPersonId("other_" + i), i);
+        }
+        assertEquals(draw, PersonRandom.nextDouble(42, PersonRandom.SAMPLE, person, 0));
+
+        assertNotEquals(draw, PersonRandom.nextDouble(43, PersonRandom.SAMPLE, person, 0));
+        assertNotEquals(draw, PersonRandom.nextDouble(42, PersonRandom.CLONES, person, 0));
+        assertNotEquals(draw, PersonRandom.nextDouble(42, PersonRandom.SAMPLE, person, 1));
+
+        var sum = 0.;
+        var n = 100_000;
+        for (var i = 0; i < n; i++) {
+            var value = PersonRandom.nextDouble(42, PersonRandom.SAMPLE, Id.createPersonId("person_" + i), 0);
+            assertTrue(value >= 0 && value < 1);
+            sum += value;
+        }
+        assertEquals(0.5, sum / n, 0.01);
+    }
+
+    @Test
+    public void smallerSamplesAreNested() {
+
+        var fractions = List.of(0.5, 0.1, 0.01);
+        var samples = fractions.stream()
+                .map(fraction -> new HashSet<Id<Person>>())
+                .toList();
+        var factory = PopulationUtils.getFactory();
+        var n = 10_000;
+        for (var i = 0; i < n; i++) {
+            var person = factory.createPerson(Id.createPersonId("person_" + i));
+            for (var f = 0; f < fractions.size(); f++) {
+                if (new PopulationXmlWriter(fractions.get(f)).sample(person)) samples.get(f).add(person.getId());
+            }
+        }
+
+        for (var f = 0; f < fractions.size(); f++) {
+            assertEquals(fractions.get(f) * n, samples.get(f).size(), 5 * Math.sqrt(fractions.get(f) * n));
+            if (f > 0) assertTrue(samples.get(f - 1).containsAll(samples.get(f)));
+        }
+    }
+
+    @Test
+    public void parallelUpscalingMatchesSequential() {
+
+        var scenario = loadScenario();
+        var persons = new ArrayList<Person>(scenario.getPopulation().getPersons().values());
+
+        var sequential = upscale(scenario, List.copyOf(persons), false);
+        Collections.reverse(persons);
+        var parallel = upscale(scenario, persons, true);
+
+        assertEquals(sequential, parallel);
+        // 2.5 clones each person once, and about half of the persons twice. Half of all persons are sampled.
+        assertTrue(sequential.size() > persons.size() && sequential.size() < 1.5 * persons.size());
+    }
+
+    /**
+     * @return ids of the persons which a writer with a sample size of 50% writes
+     */
+    private static Set<Id<Person>> upscale(Scenario scenario, List<Person> persons, boolean parallel) {
+        var writer = new PopulationXmlWriter(0.5);
+        var sampled = Collections.synchronizedSet(new HashSet<Id<Person>>());
+        var algorithm = SimpleUpscaleAlgorithm.create(2.5, scenario, person -> {
+            if (writer.sample(person)) sampled.add(person.getId());
+        });
+        var stream = parallel ? persons.parallelStream() : persons.stream();
+        stream.forEach(algorithm::run);
+        return sampled;
+    }
+
+    private static Scenario loadScenario() {
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        scenario.getVehicles().addVehicleType(VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class)));
+        return scenario;
+    }
+}
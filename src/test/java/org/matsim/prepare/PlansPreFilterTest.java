@@ -0,0 +1,105 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlansPreFilterTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void dropsPtPersonsAndUnselectedPlans() throws IOException {
+
+        var population = PopulationUtils.createPopulation(ConfigUtils.createConfig());
+        // the selected car plan follows an unselected pt plan
+        addPerson(population, "car", List.of(TransportMode.pt, TransportMode.car), 1, TransportMode.car);
+        addPerson(population, "pt", List.of(TransportMode.car, TransportMode.pt), 1, TransportMode.pt);
+        // walk legs are routed as pt, which makes a pt person
+        addPerson(population, "walk", List.of(TransportMode.walk), 0, TransportMode.pt);
+        addPerson(population, "bike", List.of(TransportMode.bike, TransportMode.pt), 0, TransportMode.bike);
+        var file = Path.of(utils.getOutputDirectory()).resolve("plans.xml");
+        PopulationUtils.writePopulation(population, file.toString());
+
+        var expected = new ArrayList<Person>();
+        var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        reader.addAlgorithm(person -> {
+            if (UpscaleAlgorithm.isPtPerson(person)) return;
+            UpscaleAlgorithm.removeExceptSelectedPlan(person);
+            expected.add(person);
+        });
+        reader.readFile(file.toString());
+
+        // hand out a few bytes at a time, so that persons are cut at all positions
+        var filtered = new ArrayList<Person>();
+        var filteredReader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        filteredReader.addAlgorithm(filtered::add);
+        try (var in = PlansPreFilter.dropPtPersons(slowStream(Files.newInputStream(file), 5))) {
+            filteredReader.parse(in);
+        }
+
+        assertEquals(List.of(Id.createPersonId("car"), Id.createPersonId("bike")), filtered.stream().map(Person::getId).toList());
+        assertEquals(expected.size(), filtered.size());
+        for (var i = 0; i < expected.size(); i++) {
+            assertEquals(1, filtered.get(i).getPlans().size());
+            assertEquals(modes(expected.get(i)), modes(filtered.get(i)));
+            assertEquals(42, filtered.get(i).getAttributes().getAttribute("age"));
+        }
+    }
+
+    private static void addPerson(Population population, String id, List<String> planModes, int selected, String routingMode) {
+        var factory = population.getFactory();
+        var person = factory.createPerson(Id.createPersonId(id));
+        person.getAttributes().putAttribute("age", 42);
+        for (var i = 0; i < planModes.size(); i++) {
+            var plan = factory.createPlan();
+            var home = factory.createActivityFromCoord("h", new Coord(0, 0));
+            home.setEndTime(8 * 3600);
+            plan.addActivity(home);
+            var leg = factory.createLeg(planModes.get(i));
+            TripStructureUtils.setRoutingMode(leg, i == selected ? routingMode : planModes.get(i));
+            plan.addLeg(leg);
+            plan.addActivity(factory.createActivityFromCoord("w", new Coord(1000, 0)));
+            person.addPlan(plan);
+        }
+        person.setSelectedPlan(person.getPlans().get(selected));
+        population.addPerson(person);
+    }
+
+    private static List<String> modes(Person person) {
+        return TripStructureUtils.getLegs(person.getSelectedPlan()).stream()
+                .map(leg -> leg.getMode() + "/" + leg.getRoutingMode())
+                .toList();
+    }
+
+    private static InputStream slowStream(InputStream in, int bytesPerRead) {
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return super.read(bytes, offset, Math.min(length, bytesPerRead));
+            }
+        };
+    }
+}
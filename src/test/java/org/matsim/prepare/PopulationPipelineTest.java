@@ -0,0 +1,125 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.algorithms.PersonAlgorithm;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PopulationPipelineTest {
+
+    @Test
+    public void keepsInputOrder() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+
+        // emit every person twice. The first person waits until the last one is done, so that workers finish out of
+        // order. The sequential run below must not wait.
+        var persons = new ArrayList<>(scenario.getPopulation().getPersons().values());
+        var first = persons.get(0).getId();
+        var last = persons.get(persons.size() - 1).getId();
+        var lastDone = new CountDownLatch(1);
+        var pipelined = new AtomicBoolean(false);
+        Function<PersonAlgorithm, PersonAlgorithm> chain = next -> person -> {
+            if (pipelined.get() && person.getId().equals(first)) {
+                try {
+                    assertTrue(lastDone.await(30, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            next.run(person);
+            next.run(person);
+            if (pipelined.get() && person.getId().equals(last)) lastDone.countDown();
+        };
+
+        var expected = new ArrayList<Id<Person>>();
+        var sequential = chain.apply(person -> expected.add(person.getId()));
+        scenario.getPopulation().getPersons().values().forEach(sequential::run);
+
+        var written = new ArrayList<Id<Person>>();
+        pipelined.set(true);
+        try (var pipeline = new PopulationPipeline(4, 1, chain, person -> written.add(person.getId()))) {
+            scenario.getPopulation().getPersons().values().forEach(pipeline::run);
+        }
+
+        assertEquals(2 * scenario.getPopulation().getPersons().size(), written.size());
+        assertEquals(expected, written);
+    }
+
+    @Test
+    public void emittedPersonsCountAgainstTheBudget() throws InterruptedException {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var persons = List.copyOf(scenario.getPopulation().getPersons().values());
+
+        // every person emits 100 persons, i.e. several hundred kb, so that the 1MB budget is used up by a few inputs
+        // while the writer is held back
+        var copies = 100;
+        Function<PersonAlgorithm, PersonAlgorithm> chain = next -> person -> {
+            for (var i = 0; i < copies; i++) {
+                next.run(person);
+            }
+        };
+        var writerReleased = new CountDownLatch(1);
+        var written = new AtomicInteger();
+        PersonAlgorithm writer = person -> {
+            try {
+                assertTrue(writerReleased.await(30, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            written.incrementAndGet();
+        };
+
+        var submitted = new AtomicInteger();
+        try (var pipeline = new PopulationPipeline(2, 1, chain, writer)) {
+            var reader = new Thread(() -> persons.forEach(person -> {
+                pipeline.run(person);
+                submitted.incrementAndGet();
+            }));
+            reader.start();
+            Thread.sleep(1000);
+            assertTrue(submitted.get() < 10, "reader passed " + submitted.get() + " persons while the writer was held back");
+
+            writerReleased.countDown();
+            reader.join();
+        }
+        assertEquals(copies * persons.size(), written.get());
+    }
+
+    @Test
+    public void forwardsFailures() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+
+        Function<PersonAlgorithm, PersonAlgorithm> chain = next -> person -> {
+            throw new IllegalStateException("test");
+        };
+
+        assertThrows(RuntimeException.class, () -> {
+            try (var pipeline = new PopulationPipeline(2, 1, chain, person -> {})) {
+                scenario.getPopulation().getPersons().values().forEach(pipeline::run);
+            }
+        });
+    }
+}
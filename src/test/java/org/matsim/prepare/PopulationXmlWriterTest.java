@@ -0,0 +1,119 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PopulationXmlWriterTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void writeSingleAndEncodedPersons() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var population = scenario.getPopulation();
+
+        var outFile = utils.getOutputDirectory() + "plans.xml.gz";
+        var writer = new PopulationXmlWriter();
+        writer.startStreaming(outFile);
+
+        // write half of the persons one by one and the other half as one pre-encoded block
+        var encoder = new PopulationXmlEncoder();
+        var i = 0;
+        for (var person : population.getPersons().values()) {
+            if (i++ % 2 == 0) {
+                writer.run(person);
+            } else {
+                encoder.encode(person);
+            }
+        }
+        writer.write(encoder);
+        writer.closeStreaming();
+
+        var readPopulation = PopulationUtils.readPopulation(outFile);
+        assertEquals(population.getPersons().keySet(), readPopulation.getPersons().keySet());
+        for (var person : population.getPersons().values()) {
+            var readPerson = readPopulation.getPersons().get(person.getId());
+            assertEquals(person.getSelectedPlan().getPlanElements().size(), readPerson.getSelectedPlan().getPlanElements().size());
+            assertEquals(person.getSelectedPlan().getScore(), readPerson.getSelectedPlan().getScore());
+        }
+    }
+
+    @Test
+    public void fanOut() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var population = scenario.getPopulation();
+
+        var fullWriter = new PopulationXmlWriter(1.0);
+        fullWriter.startStreaming(utils.getOutputDirectory() + "full.plans.xml.gz");
+        var emptyWriter = new PopulationXmlWriter(0.0);
+        emptyWriter.startStreaming(utils.getOutputDirectory() + "empty.plans.xml.gz");
+        var fanOut = new FanOutPopulationWriter(List.of(fullWriter, emptyWriter));
+
+        population.getPersons().values().forEach(fanOut::run);
+        fanOut.closeStreaming();
+
+        var full = PopulationUtils.readPopulation(utils.getOutputDirectory() + "full.plans.xml.gz");
+        var empty = PopulationUtils.readPopulation(utils.getOutputDirectory() + "empty.plans.xml.gz");
+        assertEquals(population.getPersons().keySet(), full.getPersons().keySet());
+        assertTrue(empty.getPersons().isEmpty());
+    }
+
+    @Test
+    public void clonesUseTheirOwnVehicles() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var person = scenario.getPopulation().getPersons().values().iterator().next();
+        for (var leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+            ((NetworkRoute) leg.getRoute()).setVehicleId(Id.createVehicleId("original_car"));
+        }
+
+        var clone = new ClonedPerson(Id.createPersonId("clone"), person);
+        VehicleUtils.insertVehicleIdsIntoAttributes(clone, Map.of(TransportMode.car, Id.createVehicleId("clone_car")));
+        assertSame(person.getSelectedPlan(), clone.getSelectedPlan());
+
+        var outFile = utils.getOutputDirectory() + "plans.xml.gz";
+        var writer = new PopulationXmlWriter();
+        writer.startStreaming(outFile);
+        writer.run(person);
+        writer.run(clone);
+        writer.closeStreaming();
+
+        var readPopulation = PopulationUtils.readPopulation(outFile);
+        assertVehicle("original_car", readPopulation.getPersons().get(person.getId()));
+        assertVehicle("clone_car", readPopulation.getPersons().get(clone.getId()));
+    }
+
+    private static void assertVehicle(String expected, Person person) {
+        var legs = TripStructureUtils.getLegs(person.getSelectedPlan());
+        assertFalse(legs.isEmpty());
+        for (var leg : legs) {
+            assertEquals(expected, ((NetworkRoute) leg.getRoute()).getVehicleId().toString());
+        }
+    }
+}
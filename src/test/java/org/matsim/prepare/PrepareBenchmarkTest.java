@@ -0,0 +1,50 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrepareBenchmarkTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void runStagesAndCreateBaseline() {
+
+        var outputDir = Path.of(utils.getOutputDirectory());
+        var baseline = outputDir.resolve("baseline.csv");
+        PrepareBenchmark.main(new String[]{
+                "-o", outputDir.toString(),
+                "-n", "250",
+                "-f", "2",
+                "-w", "0",
+                "-b", baseline.toString()
+        });
+
+        assertTrue(Files.exists(outputDir.resolve("benchmark.csv")));
+        var results = PrepareBenchmark.readBaseline(baseline);
+        assertEquals(2, results.size());
+        assertTrue(results.get(PrepareBenchmark.SCALING_EXPERIMENT + "-250") > 0);
+        assertTrue(results.get(PrepareBenchmark.QSIM_SCENARIO + "-250") > 0);
+    }
+
+    @Test
+    public void findRegressions() {
+
+        var result = new PrepareBenchmark.StageResult(PrepareBenchmark.QSIM_SCENARIO, 1000, 10, 9000, 100, 10, 1000);
+        var key = result.key();
+
+        // 100 persons/s against a baseline of 105 is within 10%, against 120 it is not
+        assertTrue(PrepareBenchmark.findRegressions(List.of(result), Map.of(key, 105.), 10).isEmpty());
+        assertEquals(1, PrepareBenchmark.findRegressions(List.of(result), Map.of(key, 120.), 10).size());
+        assertTrue(PrepareBenchmark.findRegressions(List.of(result), Map.of(), 10).isEmpty());
+    }
+}
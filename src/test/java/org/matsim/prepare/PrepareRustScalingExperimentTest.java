@@ -0,0 +1,129 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrepareRustScalingExperimentTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void writesEveryTargetAndNetworkVariant() throws IOException {
+
+        var config = writeInput(Path.of(utils.getOutputDirectory(), "input"));
+        var sequential = Path.of(utils.getOutputDirectory(), "sequential");
+        var pipelined = Path.of(utils.getOutputDirectory(), "pipelined");
+        run(config, sequential, 0);
+        run(config, pipelined, 2);
+
+        // the population is the source sample, which is sampled down to 50% and cloned up to 200%
+        var persons = PopulationUtils.readPopulation(config.getParent().resolve("plans.xml").toString()).getPersons().values();
+        var sampled = persons.stream().filter(new PopulationXmlWriter(0.5)::sample).count();
+        assertTrue(sampled > 0 && sampled < persons.size());
+        assertEquals(sampled, countPersons(sequential.resolve(populationName(50))));
+        assertEquals(2L * persons.size(), countPersons(sequential.resolve(populationName(200))));
+
+        for (var size : new double[]{50, 200}) {
+            assertArrayEquals(readGzip(sequential.resolve(populationName(size))), readGzip(pipelined.resolve(populationName(size))),
+                    "population of " + size + "% differs between -p 0 and -p 2");
+        }
+
+        // the pt link is only part of the network which is written before pt is removed
+        var withPt = NetworkUtils.readNetwork(sequential.resolve("equil-" + PrepareRustScalingExperiment.WITH_PT + ".network.xml.gz").toString());
+        assertTrue(withPt.getLinks().containsKey(Id.createLinkId("pt")));
+        assertTrue(withPt.getLinks().get(Id.createLinkId("1")).getAllowedModes().contains(TransportMode.pt));
+        var noPt = NetworkUtils.readNetwork(sequential.resolve("equil.network.xml.gz").toString());
+        assertFalse(noPt.getLinks().containsKey(Id.createLinkId("pt")));
+        assertEquals(Set.of(TransportMode.car), noPt.getLinks().get(Id.createLinkId("1")).getAllowedModes());
+    }
+
+    private static void run(Path config, Path outputDirectory, int pipelineThreads) {
+        PrepareRustScalingExperiment.main(new String[]{
+                "-c", config.toString(),
+                "-o", outputDirectory.toString(),
+                "-sss", "1.0",
+                "-tss", "0.5,2.0",
+                "-wn",
+                "-nv", PrepareRustScalingExperiment.NO_PT + "," + PrepareRustScalingExperiment.WITH_PT,
+                "-p", Integer.toString(pipelineThreads),
+                "-pl", "0"
+        });
+    }
+
+    private static String populationName(double size) {
+        return "equil-" + String.format("%.1f", size) + "pct.plans.xml.gz";
+    }
+
+    /**
+     * Writes equil with absolute paths, vehicle types, a pt only link and a link which pt shares with cars.
+     */
+    private static Path writeInput(Path inputDir) throws IOException {
+        Files.createDirectories(inputDir);
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+
+        var network = scenario.getNetwork();
+        var shared = network.getLinks().get(Id.createLinkId("1"));
+        shared.setAllowedModes(Set.of(TransportMode.car, TransportMode.pt));
+        var pt = NetworkUtils.createAndAddLink(network, Id.createLinkId("pt"), shared.getToNode(), shared.getFromNode(), 100, 10, 1000, 1);
+        pt.setAllowedModes(Set.of(TransportMode.pt));
+
+        // clones get a vehicle of the type of each mode
+        var vehicles = VehicleUtils.createVehiclesContainer();
+        vehicles.addVehicleType(VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class)));
+
+        var networkFile = inputDir.resolve("network.xml").toAbsolutePath();
+        var plansFile = inputDir.resolve("plans.xml").toAbsolutePath();
+        var vehiclesFile = inputDir.resolve("vehicle-types.xml").toAbsolutePath();
+        NetworkUtils.writeNetwork(network, networkFile.toString());
+        PopulationUtils.writePopulation(scenario.getPopulation(), plansFile.toString());
+        new MatsimVehicleWriter(vehicles).writeFile(vehiclesFile.toString());
+        config.network().setInputFile(networkFile.toString());
+        config.plans().setInputFile(plansFile.toString());
+        config.vehicles().setVehiclesFile(vehiclesFile.toString());
+        config.controller().setRunId("equil");
+        var configFile = inputDir.resolve("config.xml").toAbsolutePath();
+        ConfigUtils.writeConfig(config, configFile.toString());
+        return configFile;
+    }
+
+    private static long countPersons(Path file) {
+        var persons = new long[1];
+        var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        reader.addAlgorithm(person -> persons[0]++);
+        reader.readFile(file.toString());
+        return persons[0];
+    }
+
+    private static byte[] readGzip(Path file) {
+        try (var in = new GZIPInputStream(Files.newInputStream(file))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
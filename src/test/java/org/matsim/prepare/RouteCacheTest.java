@@ -0,0 +1,85 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.PlanRouter;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.timing.TimeInterpretation;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouteCacheTest {
+
+    @Test
+    public void sameRoutesAsWithoutCache() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        // routing needs the vehicles of a person
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            VehicleUtils.insertVehicleIdsIntoAttributes(person, Map.of(TransportMode.car, VehicleUtils.createVehicleId(person, TransportMode.car)));
+        }
+
+        var injector = Injector.createMinimalMatsimInjector(config, scenario);
+        var tripRouter = injector.getInstance(TripRouter.class);
+        var timeInterpretation = injector.getInstance(TimeInterpretation.class);
+        var cache = new RouteCache(10, 900, false);
+        var router = new PlanRouter(tripRouter, timeInterpretation);
+        var cachedRouter = new PlanRouter(cache.createTripRouter(tripRouter, config), timeInterpretation);
+
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            var plan = copy(person.getSelectedPlan());
+            router.run(plan);
+            var cachedPlan = copy(person.getSelectedPlan());
+            cachedRouter.run(cachedPlan);
+
+            var legs = TripStructureUtils.getLegs(plan);
+            var cachedLegs = TripStructureUtils.getLegs(cachedPlan);
+            assertEquals(legs.size(), cachedLegs.size());
+            for (var i = 0; i < legs.size(); i++) {
+                assertLegEquals(legs.get(i), cachedLegs.get(i));
+            }
+        }
+
+        // all persons in equil travel between the same links
+        assertTrue(cache.getHits() > cache.getMisses());
+    }
+
+    @Test
+    public void refusesRandomizedRouting() {
+
+        var config = ConfigUtils.createConfig();
+        config.routing().setRoutingRandomness(3.0);
+        assertThrows(IllegalArgumentException.class, () -> RouteCache.create(10, config));
+
+        config.routing().setRoutingRandomness(0.0);
+        assertNotNull(RouteCache.create(10, config));
+    }
+
+    private static Plan copy(Plan plan) {
+        var copy = PopulationUtils.createPlan();
+        PopulationUtils.copyFromTo(plan, copy);
+        copy.setPerson(plan.getPerson());
+        return copy;
+    }
+
+    private static void assertLegEquals(Leg expected, Leg actual) {
+        assertEquals(expected.getMode(), actual.getMode());
+        assertEquals(expected.getDepartureTime(), actual.getDepartureTime());
+        assertEquals(expected.getTravelTime(), actual.getTravelTime());
+        assertEquals(expected.getRoute().getRouteDescription(), actual.getRoute().getRouteDescription());
+    }
+}
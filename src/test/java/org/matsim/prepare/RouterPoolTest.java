@@ -0,0 +1,74 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouterPoolTest {
+
+    @Test
+    public void parallelRoutesEqualSingleThreaded() throws InterruptedException {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        // routing needs the vehicles of a person
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            VehicleUtils.insertVehicleIdsIntoAttributes(person, Map.of(TransportMode.car, VehicleUtils.createVehicleId(person, TransportMode.car)));
+        }
+        var injector = Injector.createMinimalMatsimInjector(config, scenario);
+
+        // baseline with a single router
+        var baseline = RouterPool.create(injector, null, config);
+        var expected = copyPlans(scenario.getPopulation().getPersons().values().stream().map(p -> p.getSelectedPlan()).toList());
+        expected.forEach(baseline::run);
+        baseline.logStats();
+        assertEquals(1, baseline.size());
+
+        var pool = RouterPool.create(injector, null, config);
+        var actual = copyPlans(scenario.getPopulation().getPersons().values().stream().map(p -> p.getSelectedPlan()).toList());
+        var executor = Executors.newFixedThreadPool(4);
+        actual.forEach(plan -> executor.execute(() -> pool.run(plan)));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        pool.logStats();
+        assertTrue(pool.size() <= 4);
+
+        for (var i = 0; i < expected.size(); i++) {
+            var expectedLegs = TripStructureUtils.getLegs(expected.get(i));
+            var actualLegs = TripStructureUtils.getLegs(actual.get(i));
+            assertEquals(expectedLegs.size(), actualLegs.size());
+            for (var j = 0; j < expectedLegs.size(); j++) {
+                assertEquals(expectedLegs.get(j).getRoute().getRouteDescription(), actualLegs.get(j).getRoute().getRouteDescription());
+                assertEquals(expectedLegs.get(j).getTravelTime(), actualLegs.get(j).getTravelTime());
+            }
+        }
+    }
+
+    private static List<Plan> copyPlans(List<Plan> plans) {
+        var copies = new ArrayList<Plan>();
+        for (var plan : plans) {
+            var copy = PopulationUtils.createPlan();
+            PopulationUtils.copyFromTo(plan, copy);
+            copy.setPerson(plan.getPerson());
+            copies.add(copy);
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,124 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SortPopulationTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void xmlIsSortedByFirstDeparture() throws IOException {
+
+        var file = generate(PrepareRustQSimScenario.XML);
+        var unsorted = ids(PopulationUtils.readPopulation(file.toString()).getPersons().values());
+
+        // a few persons per run, so that the runs are merged in more than one pass
+        new SortPopulation(4096, null).sort(file);
+
+        // streamed, because the order of a population's persons does not have to be the order of the file
+        var sorted = new ArrayList<Person>();
+        var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        reader.addAlgorithm(sorted::add);
+        reader.readFile(file.toString());
+        assertSorted(sorted, unsorted);
+        assertEquals(List.of(file), listFiles(file.getParent()));
+    }
+
+    @Test
+    public void binaryIsSortedByFirstDeparture() throws IOException {
+
+        var file = generate(PrepareRustQSimScenario.BINARY);
+        var unsorted = new ArrayList<Person>();
+        new BinaryPopulationReader(PopulationUtils.getFactory()).readFile(file.toString(), unsorted::add);
+
+        new SortPopulation(4096, null).sort(file);
+
+        var sorted = new ArrayList<Person>();
+        new BinaryPopulationReader(PopulationUtils.getFactory()).readFile(file.toString(), sorted::add);
+        assertSorted(sorted, ids(unsorted));
+        assertEquals(List.of(file), listFiles(file.getParent()));
+    }
+
+    @Test
+    public void xmlWriterSortsWhileWriting() throws IOException {
+        writerSortsWhileWriting(PrepareRustQSimScenario.XML);
+    }
+
+    @Test
+    public void binaryWriterSortsWhileWriting() throws IOException {
+        writerSortsWhileWriting(PrepareRustQSimScenario.BINARY);
+    }
+
+    private void writerSortsWhileWriting(String format) throws IOException {
+        var file = generate(format);
+        var unsorted = read(format, file);
+
+        // a few persons per run, so that the writer spills and merges runs as well
+        var writer = PrepareRustQSimScenario.startPopulationWriter(format, 1.0, file.getParent(), "sorted", null, 4096);
+        unsorted.forEach(writer::run);
+        writer.closeStreaming();
+
+        var sorted = read(format, PrepareRustQSimScenario.populationFile(format, file.getParent(), "sorted"));
+        assertSorted(sorted, ids(unsorted));
+        assertTrue(listFiles(file.getParent()).stream().noneMatch(path -> path.getFileName().toString().startsWith("sort-")));
+    }
+
+    private static List<Person> read(String format, Path file) {
+        var persons = new ArrayList<Person>();
+        if (format.equals(PrepareRustQSimScenario.BINARY)) {
+            new BinaryPopulationReader(PopulationUtils.getFactory()).readFile(file.toString(), persons::add);
+        } else {
+            var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+            reader.addAlgorithm(persons::add);
+            reader.readFile(file.toString());
+        }
+        return persons;
+    }
+
+    private Path generate(String format) {
+        var outputDir = Path.of(utils.getOutputDirectory()).resolve(format);
+        GenerateSyntheticPopulation.main(new String[]{"-o", outputDir.toString(), "-g", "10", "-s", "1000", "-pf", format});
+        return PrepareRustQSimScenario.populationFile(format, outputDir, "synthetic");
+    }
+
+    private static void assertSorted(List<? extends Person> sorted, List<String> unsorted) {
+        assertEquals(unsorted.size(), sorted.size());
+        assertEquals(unsorted.stream().sorted().toList(), ids(sorted).stream().sorted().toList());
+        for (var i = 1; i < sorted.size(); i++) {
+            assertTrue(firstDeparture(sorted.get(i - 1)) <= firstDeparture(sorted.get(i)), "persons " + (i - 1) + " and " + i);
+        }
+    }
+
+    private static double firstDeparture(Person person) {
+        return ((Activity) person.getSelectedPlan().getPlanElements().get(0)).getEndTime().seconds();
+    }
+
+    private static List<String> ids(Collection<? extends Person> persons) {
+        return persons.stream().map(person -> person.getId().toString()).collect(Collectors.toList());
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().contains("plans") || file.getFileName().toString().startsWith("sort-")).toList();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StageStatsTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void bucketsCoverAllDurations() {
+
+        for (var nanos : new long[]{0, 1, 7, 8, 15, 16, 1000, 123_456_789, Long.MAX_VALUE}) {
+            var bucket = StageStats.Stage.bucket(nanos);
+            assertTrue(StageStats.Stage.lowerBound(bucket) <= nanos, "lower bound of " + nanos);
+            if (nanos < Long.MAX_VALUE) {
+                assertTrue(StageStats.Stage.lowerBound(bucket + 1) > nanos, "upper bound of " + nanos);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAndSummary() throws IOException {
+
+        var file = Path.of(utils.getOutputDirectory()).resolve("stage-stats.csv");
+        try (var stats = StageStats.start()) {
+            var stage = StageStats.get("test");
+            for (var i = 1; i <= 100; i++) {
+                stage.record(2, i * 1000L);
+            }
+            stage.addBytes(42);
+
+            assertEquals(200, stage.count());
+            // percentiles are the upper bounds of their buckets, which are at most 12.5% larger than the value
+            assertEquals(50_000, stage.percentile(0.5), 50_000 * 0.125);
+            assertEquals(99_000, stage.percentile(0.99), 99_000 * 0.125);
+            assertTrue(stage.percentile(1) >= 100_000);
+
+            stats.writeSummary(file);
+        }
+        var lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).startsWith("test;200;"));
+        assertTrue(lines.get(1).endsWith(";42"));
+    }
+
+    @Test
+    public void runsDoNotShareStages() {
+
+        try (var outer = StageStats.start()) {
+            StageStats.get("test").increment();
+            try (var inner = StageStats.start()) {
+                StageStats.get("test").add(5);
+                assertEquals(5, inner.stage("test").count());
+            }
+            assertEquals(1, outer.stage("test").count());
+        }
+        // nothing is recorded while no run is open
+        StageStats.get("test").increment();
+        assertEquals(0, StageStats.get("test").count());
+    }
+}
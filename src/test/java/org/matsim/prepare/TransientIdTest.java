@@ -0,0 +1,23 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransientIdTest {
+
+    @Test
+    public void equalsOnlyTransientIdsAndHasNoIndex() {
+
+        var transientId = new TransientId<>(Person.class, Id.createPersonId("person"), "_cloned_0");
+        var other = new TransientId<>(Person.class, "person_cloned", "_0");
+        assertEquals("person_cloned_0", transientId.toString());
+        assertEquals(other, transientId);
+        assertEquals(other.hashCode(), transientId.hashCode());
+
+        assertNotEquals(Id.createPersonId("person_cloned_0"), transientId);
+        assertThrows(UnsupportedOperationException.class, transientId::index);
+    }
+}
@@ -0,0 +1,128 @@
+package org.matsim.prepare;
+
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TravelTimeEventsReaderTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void parseSkipsOtherEvents() {
+
+        var xml = """
+                <?xml version="1.0" encoding="utf-8"?>
+                <events version="1.0">
+                	<event time="21600.0" type="actend" person="1" link="1" actType="h"  />
+                	<event time="21600.0" type="vehicle enters traffic" person="1" link="1" vehicle="1&amp;car" networkMode="car" relativePosition="1.0"  />
+                	<event time="21601.0" type="left link" link="1" vehicle="1&amp;car"  />
+                	<event time="21601.0" type="entered link" link="2" vehicle="1&amp;car"  />
+                </events>
+                """;
+        var bytes = xml.getBytes(StandardCharsets.UTF_8);
+        var chunk = TravelTimeEventsReader.parse(bytes, bytes.length);
+
+        assertEquals(4, chunk.scanned);
+        assertEquals(3, chunk.events.size());
+
+        var entersTraffic = (VehicleEntersTrafficEvent) chunk.events.get(0);
+        assertEquals(21600.0, entersTraffic.getTime());
+        assertEquals("1&car", entersTraffic.getVehicleId().toString());
+        assertEquals(TransportMode.car, entersTraffic.getNetworkMode());
+
+        var enter = (LinkEnterEvent) chunk.events.get(2);
+        assertEquals("2", enter.getLinkId().toString());
+    }
+
+    @Test
+    public void sameTravelTimesAsMatsimReader() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        config.controller().setOutputDirectory(utils.getOutputDirectory() + "output");
+        config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+        config.controller().setLastIteration(0);
+        var scenario = ScenarioUtils.loadScenario(config);
+        new Controler(scenario).run();
+
+        var eventsFile = utils.getOutputDirectory() + "output/output_events.xml.gz";
+        var allEvents = readTravelTimes(scenario, eventsFile, 0);
+        var filtered = readTravelTimes(scenario, eventsFile, 4);
+
+        for (var link : scenario.getNetwork().getLinks().values()) {
+            for (var time = 0; time < 30 * 3600; time += 900) {
+                assertEquals(allEvents.getLinkTravelTime(link, time, null, null), filtered.getLinkTravelTime(link, time, null, null), 1e-6,
+                        "Travel time of link " + link.getId() + " at " + time);
+            }
+        }
+    }
+
+    @Test
+    public void emptyFileIsRead() throws IOException {
+        var file = Path.of(utils.getOutputDirectory(), "events.xml");
+        Files.write(file, new byte[0]);
+        assertEquals(0, countLinkEnterEvents(file));
+    }
+
+    @Test
+    public void fileEndingAtChunkBoundaryIsRead() throws IOException {
+        var text = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n");
+        var events = 1000;
+        for (var i = 0; i < events; i++) {
+            text.append("\t<event time=\"").append(i).append(".0\" type=\"entered link\" link=\"1\" vehicle=\"1\"  />\n");
+        }
+        var footer = "</events>\n";
+        // the last chunk ends with a line end and leaves nothing over
+        text.append(" ".repeat(TravelTimeEventsReader.CHUNK_SIZE - text.length() - footer.length() - 1)).append('\n').append(footer);
+        assertEquals(TravelTimeEventsReader.CHUNK_SIZE, text.length());
+
+        var file = Path.of(utils.getOutputDirectory(), "events.xml");
+        Files.writeString(file, text);
+        assertEquals(events, countLinkEnterEvents(file));
+    }
+
+    private static int countLinkEnterEvents(Path file) {
+        var eventsManager = EventsUtils.createEventsManager();
+        var count = new AtomicInteger();
+        eventsManager.addHandler((BasicEventHandler) event -> {
+            if (event instanceof LinkEnterEvent) count.incrementAndGet();
+        });
+        TravelTimeEventsReader.readEvents(eventsManager, file.toString(), 2);
+        return count.get();
+    }
+
+    private static TravelTime readTravelTimes(Scenario scenario, String eventsFile, int threads) {
+        var injector = Injector.createMinimalMatsimInjector(scenario.getConfig(), scenario);
+        TravelTimeEventsReader.readEvents(injector.getInstance(EventsManager.class), eventsFile, threads);
+        return injector.getInstance(Key.get(new TypeLiteral<Map<String, TravelTime>>() {
+        })).get(TransportMode.car);
+    }
+}
@@ -0,0 +1,152 @@
+package org.matsim.prepare;
+
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.ScoringConfigGroup;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TravelTimeSnapshotTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void snapshotReproducesTravelTimes() {
+
+        var outputDirectory = utils.getOutputDirectory() + "output";
+        var scenario = createScenario(outputDirectory);
+        new Controler(scenario).run();
+
+        var eventsFile = outputDirectory + "/output_events.xml.gz";
+        var snapshotFile = Path.of(utils.getOutputDirectory(), "travel-times.bin");
+
+        // first run reads the events and writes the snapshot, second run loads the snapshot
+        var fromEvents = readTravelTimes(scenario, eventsFile, snapshotFile);
+        assertTrue(Files.exists(snapshotFile));
+        var fromSnapshot = readTravelTimes(scenario, eventsFile, snapshotFile);
+        assertInstanceOf(TravelTimeSnapshot.SnapshotTravelTime.class, fromSnapshot);
+        assertSameTravelTimes(scenario, fromEvents, fromSnapshot);
+    }
+
+    @Test
+    public void snapshotHasATableForEachNetworkMode() {
+
+        var outputDirectory = utils.getOutputDirectory() + "output";
+        var scenario = createScenario(outputDirectory);
+        // trucks share the links with cars, and every second person goes by truck
+        var truck = "truck";
+        var modes = List.of(TransportMode.car, truck);
+        var config = scenario.getConfig();
+        config.routing().setNetworkModes(modes);
+        config.qsim().setMainModes(modes);
+        config.travelTimeCalculator().setAnalyzedModes(Set.copyOf(modes));
+        config.scoring().addModeParams(new ScoringConfigGroup.ModeParams(truck));
+        for (var link : scenario.getNetwork().getLinks().values()) {
+            link.setAllowedModes(Set.copyOf(modes));
+        }
+        var byTruck = false;
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            byTruck = !byTruck;
+            if (!byTruck) continue;
+            for (var leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+                leg.setMode(truck);
+                leg.setRoute(null);
+                TripStructureUtils.setRoutingMode(leg, truck);
+            }
+        }
+        new Controler(scenario).run();
+
+        var eventsFile = outputDirectory + "/output_events.xml.gz";
+        var snapshotFile = Path.of(utils.getOutputDirectory(), "travel-times.bin");
+        var fromEvents = readAllTravelTimes(scenario, eventsFile, snapshotFile);
+        var fromSnapshot = readAllTravelTimes(scenario, eventsFile, snapshotFile);
+        for (var mode : modes) {
+            assertInstanceOf(TravelTimeSnapshot.SnapshotTravelTime.class, fromSnapshot.get(mode), "travel time of " + mode);
+            assertSameTravelTimes(scenario, fromEvents.get(mode), fromSnapshot.get(mode));
+        }
+    }
+
+    @Test
+    public void truncatedSnapshotIsReplaced() throws IOException {
+
+        var outputDirectory = utils.getOutputDirectory() + "output";
+        var scenario = createScenario(outputDirectory);
+        new Controler(scenario).run();
+
+        var eventsFile = outputDirectory + "/output_events.xml.gz";
+        var snapshotFile = Path.of(utils.getOutputDirectory(), "travel-times.bin");
+        var fromEvents = readTravelTimes(scenario, eventsFile, snapshotFile);
+
+        var bytes = Files.readAllBytes(snapshotFile);
+        Files.write(snapshotFile, Arrays.copyOf(bytes, bytes.length / 2));
+        // the truncated snapshot is replaced from the events, and the replacement is loaded by the next run
+        assertSameTravelTimes(scenario, fromEvents, readTravelTimes(scenario, eventsFile, snapshotFile));
+        assertEquals(bytes.length, Files.size(snapshotFile));
+        assertSameTravelTimes(scenario, fromEvents, readTravelTimes(scenario, eventsFile, snapshotFile));
+    }
+
+    @Test
+    public void snapshotOfOtherNetworkIsReplaced() {
+
+        var outputDirectory = utils.getOutputDirectory() + "output";
+        var scenario = createScenario(outputDirectory);
+        new Controler(scenario).run();
+
+        var eventsFile = outputDirectory + "/output_events.xml.gz";
+        var header = TravelTimeSnapshot.createHeader(scenario, eventsFile);
+
+        scenario.getNetwork().getLinks().values().iterator().next().setFreespeed(1.0);
+        assertNotEquals(header, TravelTimeSnapshot.createHeader(scenario, eventsFile));
+    }
+
+    private static void assertSameTravelTimes(Scenario scenario, TravelTime expected, TravelTime actual) {
+        var binSize = scenario.getConfig().travelTimeCalculator().getTraveltimeBinSize();
+        for (var link : scenario.getNetwork().getLinks().values()) {
+            for (var time = 0; time < 30 * 3600; time += binSize) {
+                assertEquals(expected.getLinkTravelTime(link, time, null, null), actual.getLinkTravelTime(link, time, null, null), 1e-6,
+                        "Travel time of link " + link.getId() + " at " + time);
+            }
+        }
+    }
+
+    private static TravelTime readTravelTimes(Scenario scenario, String eventsFile, Path snapshotFile) {
+        return readAllTravelTimes(scenario, eventsFile, snapshotFile).get(TransportMode.car);
+    }
+
+    private static Map<String, TravelTime> readAllTravelTimes(Scenario scenario, String eventsFile, Path snapshotFile) {
+        var injector = TravelTimeSnapshot.createInjector(scenario, eventsFile, snapshotFile, 0);
+        return injector.getInstance(Key.get(new TypeLiteral<Map<String, TravelTime>>() {
+        }));
+    }
+
+    private static Scenario createScenario(String outputDirectory) {
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        config.controller().setOutputDirectory(outputDirectory);
+        config.controller().setOverwriteFileSetting(OutputDirectoryHierarchy.OverwriteFileSetting.deleteDirectoryIfExists);
+        config.controller().setLastIteration(0);
+        return ScenarioUtils.loadScenario(config);
+    }
+}
@@ -0,0 +1,181 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.io.StreamingPopulationReader;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpscaleAlgorithmTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void writesClonesInOrderFollowedByTheOriginal() throws IOException {
+
+        var scenario = loadScenario();
+        var originals = List.copyOf(scenario.getPopulation().getPersons().values());
+        // enough clones for several parallel chunks
+        var factor = 40;
+        var written = upscale(scenario, factor);
+
+        var expected = new ArrayList<String>();
+        for (var person : originals) {
+            for (var i = 0; i < factor - 1; i++) {
+                expected.add(person.getId() + "_cloned_" + i);
+            }
+            expected.add(person.getId().toString());
+        }
+        assertEquals(expected, written.stream().map(person -> person.getId().toString()).toList());
+    }
+
+    @Test
+    public void personsOnlyUseTheirOwnVehicles() throws IOException {
+
+        var scenario = loadScenario();
+        var originals = scenario.getPopulation().getPersons().size();
+        var written = upscale(scenario, 3);
+        assertEquals(3 * originals, written.size());
+
+        var owners = new HashMap<String, Id<Person>>();
+        for (var person : written) {
+            var vehicles = VehicleUtils.getVehicleIds(person).values().stream().map(Object::toString).toList();
+            for (var vehicle : vehicles) {
+                assertNull(owners.put(vehicle, person.getId()), "vehicle " + vehicle + " has several owners");
+            }
+
+            var legs = TripStructureUtils.getLegs(person.getSelectedPlan());
+            assertFalse(legs.isEmpty());
+            for (var leg : legs) {
+                var vehicle = ((NetworkRoute) leg.getRoute()).getVehicleId().toString();
+                assertTrue(vehicles.contains(vehicle), "person " + person.getId() + " uses vehicle " + vehicle);
+            }
+        }
+    }
+
+    @Test
+    public void originalsUseMergedLinksWithoutClones() throws IOException {
+
+        var scenario = loadScenario();
+        var reduction = new NetworkReduction(scenario.getNetwork()).findChains();
+        var eventsFile = writeEmptyEvents();
+        var outFile = utils.getOutputDirectory() + "plans.xml.gz";
+        var writer = new PopulationXmlWriter();
+        writer.startStreaming(outFile);
+        // a factor of 1 creates no clones, but the originals still have to be rewritten to the merged links
+        var algorithm = UpscaleAlgorithm.create(1, eventsFile.toString(), scenario, List.of(writer)).withRouteRewriter(reduction);
+        List.copyOf(scenario.getPopulation().getPersons().values()).forEach(algorithm::run);
+        algorithm.flush();
+        writer.closeStreaming();
+        reduction.applyContraction();
+
+        var written = read(outFile);
+        assertEquals(scenario.getPopulation().getPersons().size(), written.size());
+        var links = scenario.getNetwork().getLinks();
+        for (var person : written) {
+            for (var act : TripStructureUtils.getActivities(person.getSelectedPlan(), TripStructureUtils.StageActivityHandling.ExcludeStageActivities)) {
+                assertTrue(links.containsKey(act.getLinkId()), "activity of person " + person.getId() + " on link " + act.getLinkId());
+            }
+            for (var leg : TripStructureUtils.getLegs(person.getSelectedPlan())) {
+                var route = (NetworkRoute) leg.getRoute();
+                assertTrue(links.containsKey(route.getStartLinkId()));
+                assertTrue(links.containsKey(route.getEndLinkId()));
+                for (var linkId : route.getLinkIds()) {
+                    assertTrue(links.containsKey(linkId), "route of person " + person.getId() + " on link " + linkId);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pipelineWorkersEncodeForTheWriters() throws IOException {
+
+        var eventsFile = writeEmptyEvents();
+
+        var sequentialFile = Path.of(utils.getOutputDirectory(), "sequential.plans.xml");
+        var sequential = new PopulationXmlWriter(0.5);
+        sequential.startStreaming(sequentialFile.toString());
+        var scenario = loadScenario();
+        var algorithm = UpscaleAlgorithm.create(20, eventsFile.toString(), scenario, List.of(sequential));
+        List.copyOf(scenario.getPopulation().getPersons().values()).forEach(algorithm::run);
+        algorithm.flush();
+        sequential.closeStreaming();
+
+        // the workers encode the persons, so the writer must only receive blocks
+        var pipelinedFile = Path.of(utils.getOutputDirectory(), "pipelined.plans.xml");
+        var pipelined = new PopulationXmlWriter(0.5) {
+            @Override
+            public synchronized void run(Person person) {
+                fail("person " + person.getId() + " was passed to the writer thread");
+            }
+        };
+        pipelined.startStreaming(pipelinedFile.toString());
+        var pipelinedScenario = loadScenario();
+        var pipelinedAlgorithm = UpscaleAlgorithm.create(20, eventsFile.toString(), pipelinedScenario, List.of());
+        try (var pipeline = new PopulationPipeline(4, 1, pipelinedAlgorithm::withPersonAlgorithms, List.of(pipelined))) {
+            List.copyOf(pipelinedScenario.getPopulation().getPersons().values()).forEach(pipeline::run);
+        }
+        pipelinedAlgorithm.flush();
+        pipelined.closeStreaming();
+
+        assertEquals(Files.readString(sequentialFile), Files.readString(pipelinedFile));
+    }
+
+    /**
+     * Upscales all persons of the scenario on free speed travel times and reads the written persons in file order.
+     */
+    private List<Person> upscale(Scenario scenario, double factor) throws IOException {
+        var eventsFile = writeEmptyEvents();
+        var outFile = utils.getOutputDirectory() + "plans.xml.gz";
+        var writer = new PopulationXmlWriter();
+        writer.startStreaming(outFile);
+        var algorithm = UpscaleAlgorithm.create(factor, eventsFile.toString(), scenario, List.of(writer));
+        List.copyOf(scenario.getPopulation().getPersons().values()).forEach(algorithm::run);
+        algorithm.flush();
+        writer.closeStreaming();
+        return read(outFile);
+    }
+
+    private Path writeEmptyEvents() throws IOException {
+        var eventsFile = Path.of(utils.getOutputDirectory(), "events.xml");
+        Files.writeString(eventsFile, "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<events version=\"1.0\">\n</events>\n");
+        return eventsFile;
+    }
+
+    private static List<Person> read(String file) {
+        var written = new ArrayList<Person>();
+        var reader = new StreamingPopulationReader(ScenarioUtils.createScenario(ConfigUtils.createConfig()));
+        reader.addAlgorithm(written::add);
+        reader.readFile(file);
+        return written;
+    }
+
+    private static Scenario loadScenario() {
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        scenario.getVehicles().addVehicleType(VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class)));
+        return scenario;
+    }
+}
@@ -45,11 +45,15 @@ public class UpscalePopulationTest {
         var originalIds = new ArrayList<>(scenario.getPopulation().getPersons().keySet());
 
         UpscalePopulation.upscalePopulation(scenario, 2);
+        // the jitter only depends on clone and activity, so a second scenario gets the same coordinates
+        var other = ScenarioUtils.loadScenario(ConfigUtils.loadConfig(configURL));
+        UpscalePopulation.upscalePopulation(other, 2);
 
         for (var origId : originalIds) {
             var origPerson = scenario.getPopulation().getPersons().get(origId);
             var clonedId = Id.createPersonId(origId.toString() + "_cloned_0");
             var clonedPerson = scenario.getPopulation().getPersons().get(clonedId);
+            var otherElements = other.getPopulation().getPersons().get(clonedId).getSelectedPlan().getPlanElements().iterator();
 
             assertNotNull(clonedPerson);
 
@@ -59,6 +63,7 @@ public class UpscalePopulationTest {
             while (origIter.hasNext()) {
                 var origElement = origIter.next();
                 var clonedElement = clonedIter.next();
+                var otherElement = otherElements.next();
                 if (origElement instanceof Activity origAct) {
                     var clonedAct = (Activity) clonedElement;
 
@@ -66,7 +71,11 @@ public class UpscalePopulationTest {
                     assertEquals(origAct.getEndTime(), clonedAct.getEndTime());
                     assertEquals(origAct.getMaximumDuration(), clonedAct.getMaximumDuration());
 
-                    // this should also test coords, but im lazy
+                    // clones are placed up to 100m around the activity of the original
+                    assertEquals(origAct.getCoord().getX(), clonedAct.getCoord().getX(), 100);
+                    assertEquals(origAct.getCoord().getY(), clonedAct.getCoord().getY(), 100);
+                    assertNotSame(origAct, clonedAct);
+                    assertEquals(clonedAct.getCoord(), ((Activity) otherElement).getCoord());
                 }
                 if (origElement instanceof Leg origLeg) {
                     var clonedLeg = (Leg) clonedElement;
@@ -0,0 +1,69 @@
+package org.matsim.prepare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.MatsimVehicleReader;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VehiclesXmlWriterTest {
+
+    @RegisterExtension
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void clonesVehiclesAreStreamed() {
+
+        var configURL = IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml");
+        var config = ConfigUtils.loadConfig(configURL);
+        var scenario = ScenarioUtils.loadScenario(config);
+        var carType = VehicleUtils.createVehicleType(Id.create(TransportMode.car, VehicleType.class));
+        scenario.getVehicles().addVehicleType(carType);
+        var modeVehicleTypes = Map.of(TransportMode.car, carType);
+
+        var file = utils.getOutputDirectory() + "vehicles.xml.gz";
+        var writer = new VehiclesXmlWriter(scenario.getVehicles());
+        writer.startStreaming(file);
+        var registeredPersonIds = Id.getNumberOfIds(Person.class);
+        var registeredVehicleIds = Id.getNumberOfIds(Vehicle.class);
+        var clones = 0;
+        for (var person : scenario.getPopulation().getPersons().values()) {
+            for (var i = 0; i < 3; i++) {
+                var clone = UpscaleAlgorithm.clonePerson(person, i);
+                UpscaleAlgorithm.addModeVehicles(clone, modeVehicleTypes);
+                writer.run(clone);
+                clones++;
+            }
+        }
+        writer.closeStreaming();
+
+        // the clones' vehicles are only in the file, not in the scenario, and their ids are not registered
+        assertTrue(scenario.getVehicles().getVehicles().isEmpty());
+        assertEquals(registeredPersonIds, Id.getNumberOfIds(Person.class));
+        assertEquals(registeredVehicleIds, Id.getNumberOfIds(Vehicle.class));
+
+        var read = VehicleUtils.createVehiclesContainer();
+        new MatsimVehicleReader(read).readFile(file);
+        assertEquals(clones, read.getVehicles().size());
+        assertTrue(read.getVehicleTypes().containsKey(carType.getId()));
+        for (var vehicle : read.getVehicles().values()) {
+            assertEquals(carType.getId(), vehicle.getType().getId());
+        }
+        var person = scenario.getPopulation().getPersons().values().iterator().next();
+        var clone = UpscaleAlgorithm.clonePerson(person, 0);
+        assertTrue(read.getVehicles().containsKey(VehicleUtils.createVehicleId(clone, TransportMode.car)));
+    }
+}